@@ -30,11 +30,13 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.MessageListener;
 import org.dom4j.Document;
+import org.dom4j.XPath;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
@@ -63,6 +65,78 @@ public abstract class AbstractPipeline implements MessageListener {
    *
    */
   public static final String ACTION_UPDATE = "update";
+  /** The plugin name in an action message. */
+  protected static final XPath X_NAME
+    = XPathRegistry.get("/plugin/name");
+  /** The action to take in an action message. */
+  protected static final XPath X_ACTION
+    = XPathRegistry.get("/plugin/action");
+  /** The plugin class in an action message. */
+  protected static final XPath X_TYPE
+    = XPathRegistry.get("/plugin/type");
+  /** The action message version in an action message. */
+  protected static final XPath X_VERSION
+    = XPathRegistry.get("/plugin/version");
+  /** The plugin configuration in an action message. */
+  protected static final XPath X_WORK
+    = XPathRegistry.get("/plugin/work");
+  /** The input destination in an action message. */
+  protected static final XPath X_INPUT
+    = XPathRegistry.get("/plugin/destinations/input");
+  /** The output destination in an action message. */
+  protected static final XPath X_OUTPUT
+    = XPathRegistry.get("/plugin/destinations/output");
+  /** The reply/status destination in an action message. */
+  protected static final XPath X_REPLYTO
+    = XPathRegistry.get("/plugin/destinations/replyto");
+  /** The consumers' message selector in an action message. */
+  protected static final XPath X_SELECTOR
+    = XPathRegistry.get("/plugin/destinations/selector");
+  /** The plugin jar in an action message. */
+  protected static final XPath X_URL
+    = XPathRegistry.get("/plugin/url");
+  /** The minimum number of consumers in an action message. */
+  protected static final XPath X_MIN_CONSUMERS
+    = XPathRegistry.get("/plugin/concurrency/min");
+  /** The maximum number of consumers in an action message. */
+  protected static final XPath X_MAX_CONSUMERS
+    = XPathRegistry.get("/plugin/concurrency/max");
+  /** The acknowledge mode in an action message. */
+  protected static final XPath X_ACK_MODE
+    = XPathRegistry.get("/plugin/acknowledge/mode");
+  /** The acknowledge batch size in an action message. */
+  protected static final XPath X_ACK_BATCH_SIZE
+    = XPathRegistry.get("/plugin/acknowledge/batchSize");
+  /** The acknowledge batch wait in an action message. */
+  protected static final XPath X_ACK_BATCH_WAIT
+    = XPathRegistry.get("/plugin/acknowledge/batchWait");
+  /** The send mode in an action message. */
+  protected static final XPath X_SEND_MODE
+    = XPathRegistry.get("/plugin/send/mode");
+  /** The most asynchronous sends in flight in an action message. */
+  protected static final XPath X_SEND_MAX_IN_FLIGHT
+    = XPathRegistry.get("/plugin/send/maxInFlight");
+  /** The transport mode in an action message. */
+  protected static final XPath X_TRANSPORT_MODE
+    = XPathRegistry.get("/plugin/transport/mode");
+  /** Whether local output goes to the broker too in an action message. */
+  protected static final XPath X_TRANSPORT_BROKER
+    = XPathRegistry.get("/plugin/transport/broker");
+  /** The in-memory input capacity in an action message. */
+  protected static final XPath X_TRANSPORT_CAPACITY
+    = XPathRegistry.get("/plugin/transport/capacity");
+  /** The partition settings in an action message. */
+  protected static final XPath X_PARTITION
+    = XPathRegistry.get("/plugin/partition");
+  /** The partition key in an action message. */
+  protected static final XPath X_PARTITION_KEY
+    = XPathRegistry.get("/plugin/partition/key");
+  /** The number of partition lanes in an action message. */
+  protected static final XPath X_PARTITION_LANES
+    = XPathRegistry.get("/plugin/partition/lanes");
+  /** The partition lane capacity in an action message. */
+  protected static final XPath X_PARTITION_CAPACITY
+    = XPathRegistry.get("/plugin/partition/capacity");
   /**
    *
    */
@@ -195,14 +269,28 @@ public abstract class AbstractPipeline implements MessageListener {
   public final Plugin getPlugin(final Document doc) throws PipelineException {
     Plugin plugin = null;
     // pull out the individual String to make debugging easier!
-    final String name = trim(doc.valueOf("//plugin/name"));
-    final String type = trim(doc.valueOf("//plugin/type"));
-    final String work = trim(doc.valueOf("//plugin/work"));
-    final String inputName = trim(doc.valueOf("//plugin/destinations/input"));
-    final String outputName = trim(doc.valueOf("//plugin/destinations/output"));
-    final String replyToName
-      = trim(doc.valueOf("//plugin/destinations/replyto"));
-    final String xformJar = trim(doc.valueOf("//plugin/url"));
+    final String name = trim(X_NAME.valueOf(doc));
+    final String type = trim(X_TYPE.valueOf(doc));
+    final String work = trim(X_WORK.valueOf(doc));
+    final String inputName = trim(X_INPUT.valueOf(doc));
+    final String outputName = trim(X_OUTPUT.valueOf(doc));
+    final String replyToName = trim(X_REPLYTO.valueOf(doc));
+    final String selector = trim(X_SELECTOR.valueOf(doc));
+    final String xformJar = trim(X_URL.valueOf(doc));
+    final String minConsumers = trim(X_MIN_CONSUMERS.valueOf(doc));
+    final String maxConsumers = trim(X_MAX_CONSUMERS.valueOf(doc));
+    final String ackMode = trim(X_ACK_MODE.valueOf(doc));
+    final String ackBatchSize = trim(X_ACK_BATCH_SIZE.valueOf(doc));
+    final String ackBatchWait = trim(X_ACK_BATCH_WAIT.valueOf(doc));
+    final String sendMode = trim(X_SEND_MODE.valueOf(doc));
+    final String maxInFlight = trim(X_SEND_MAX_IN_FLIGHT.valueOf(doc));
+    final String transport = trim(X_TRANSPORT_MODE.valueOf(doc));
+    final String brokerCopy = trim(X_TRANSPORT_BROKER.valueOf(doc));
+    final String capacity = trim(X_TRANSPORT_CAPACITY.valueOf(doc));
+    final boolean partitioned = X_PARTITION.selectSingleNode(doc) != null;
+    final String partitionKey = trim(X_PARTITION_KEY.valueOf(doc));
+    final String lanes = trim(X_PARTITION_LANES.valueOf(doc));
+    final String laneCapacity = trim(X_PARTITION_CAPACITY.valueOf(doc));
     try {
 
       final List<URL> xformURL = new ArrayList();
@@ -256,9 +344,158 @@ public abstract class AbstractPipeline implements MessageListener {
     if (plugin == null) {
       throw new PipelineException("Failed to create Plugin: " + name);
     }
+    if (plugin instanceof AbstractPlugin) {
+      setConcurrency((AbstractPlugin) plugin, minConsumers, maxConsumers);
+      setAcknowledge((AbstractPlugin) plugin, ackMode, ackBatchSize,
+        ackBatchWait);
+      setSend((AbstractPlugin) plugin, sendMode, maxInFlight);
+      setTransport((AbstractPlugin) plugin, transport, brokerCopy, capacity);
+      setSelector((AbstractPlugin) plugin, selector);
+      if (partitioned) {
+        setPartition((AbstractPlugin) plugin, partitionKey, lanes,
+          laneCapacity);
+      }
+    }
     return plugin;
   }
 
+  /**
+   * Apply the optional <code>concurrency</code> settings from the action
+   * message. A missing minimum means one consumer, a missing maximum means
+   * the same as the minimum.
+   *
+   * @param plugin the Plugin to configure
+   * @param min the minimum number of consumers, may be empty
+   * @param max the maximum number of consumers, may be empty
+   * @throws PipelineException if the numbers are not valid
+   */
+  private void setConcurrency(final AbstractPlugin plugin, final String min,
+    final String max) throws PipelineException {
+    try {
+      final int minimum = min.isEmpty()
+        ? AbstractPlugin.D_CONSUMERS : Integer.parseInt(min);
+      final int maximum = max.isEmpty() ? minimum : Integer.parseInt(max);
+      plugin.setConcurrency(minimum, maximum);
+    } catch (IllegalArgumentException ex) {
+      throw new PipelineException("Bad concurrency for Plugin: "
+        + plugin.getName(), ex);
+    }
+  }
+
+  /**
+   * Apply the optional <code>acknowledge</code> settings from the action
+   * message. A missing mode means auto, missing batch settings mean the
+   * AbstractPlugin defaults.
+   *
+   * @param plugin the Plugin to configure
+   * @param mode auto, dups_ok, client or transacted, may be empty
+   * @param batchSize messages acknowledged together, may be empty
+   * @param batchWait longest wait to acknowledge in ms, may be empty
+   * @throws PipelineException if the settings are not valid
+   */
+  private void setAcknowledge(final AbstractPlugin plugin, final String mode,
+    final String batchSize, final String batchWait) throws PipelineException {
+    try {
+      plugin.setAcknowledge(
+        mode.isEmpty() ? AbstractPlugin.ACK_AUTO : mode.toLowerCase(),
+        batchSize.isEmpty()
+          ? AbstractPlugin.D_ACK_BATCH_SIZE : Integer.parseInt(batchSize),
+        batchWait.isEmpty()
+          ? AbstractPlugin.D_ACK_BATCH_WAIT : Long.parseLong(batchWait));
+    } catch (IllegalArgumentException ex) {
+      throw new PipelineException("Bad acknowledge for Plugin: "
+        + plugin.getName(), ex);
+    }
+  }
+
+  /**
+   * Apply the optional <code>send</code> settings from the action message.
+   * A missing mode means sync.
+   *
+   * @param plugin the Plugin to configure
+   * @param mode sync or async, may be empty
+   * @param maxInFlight most asynchronous sends in flight, may be empty
+   * @throws PipelineException if the settings are not valid
+   */
+  private void setSend(final AbstractPlugin plugin, final String mode,
+    final String maxInFlight) throws PipelineException {
+    try {
+      plugin.setSend(
+        mode.isEmpty() ? AbstractPlugin.SEND_SYNC : mode.toLowerCase(),
+        maxInFlight.isEmpty()
+          ? AbstractPlugin.D_MAX_IN_FLIGHT : Integer.parseInt(maxInFlight));
+    } catch (IllegalArgumentException ex) {
+      throw new PipelineException("Bad send for Plugin: "
+        + plugin.getName(), ex);
+    }
+  }
+
+  /**
+   * Apply the optional <code>transport</code> settings from the action
+   * message. A missing mode means jms.
+   *
+   * @param plugin the Plugin to configure
+   * @param mode jms or local, may be empty
+   * @param brokerCopy true to send local output to the broker too, may be
+   * empty
+   * @param capacity the most messages in the in-memory input, may be empty
+   * @throws PipelineException if the settings are not valid
+   */
+  private void setTransport(final AbstractPlugin plugin, final String mode,
+    final String brokerCopy, final String capacity) throws PipelineException {
+    try {
+      plugin.setTransport(
+        mode.isEmpty() ? AbstractPlugin.TRANSPORT_JMS : mode.toLowerCase(),
+        Boolean.parseBoolean(brokerCopy),
+        capacity.isEmpty()
+          ? AbstractPlugin.D_LOCAL_CAPACITY : Integer.parseInt(capacity));
+    } catch (IllegalArgumentException ex) {
+      throw new PipelineException("Bad transport for Plugin: "
+        + plugin.getName(), ex);
+    }
+  }
+
+  /**
+   * Apply the optional <code>partition</code> settings from the action
+   * message. Missing settings mean the AbstractPlugin defaults.
+   *
+   * @param plugin the Plugin to configure
+   * @param key a message property or an XPath, may be empty
+   * @param lanes the number of lanes, may be empty
+   * @param capacity the most messages waiting in a lane, may be empty
+   * @throws PipelineException if the settings are not valid
+   */
+  private void setPartition(final AbstractPlugin plugin, final String key,
+    final String lanes, final String capacity) throws PipelineException {
+    try {
+      plugin.setPartition(key,
+        lanes.isEmpty()
+          ? AbstractPlugin.D_PARTITION_LANES : Integer.parseInt(lanes),
+        capacity.isEmpty()
+          ? AbstractPlugin.D_PARTITION_CAPACITY : Integer.parseInt(capacity));
+    } catch (IllegalArgumentException ex) {
+      throw new PipelineException("Bad partition for Plugin: "
+        + plugin.getName(), ex);
+    }
+  }
+
+  /**
+   * Apply the optional <code>selector</code> from the action message.
+   *
+   * @param plugin the Plugin to configure
+   * @param selector the JMS message selector, may be empty
+   * @throws PipelineException if the selector is not valid
+   */
+  private void setSelector(final AbstractPlugin plugin, final String selector)
+    throws PipelineException {
+    try {
+      plugin.setSelector(selector);
+    } catch (IllegalArgumentException ex) {
+      throw new PipelineException("Bad selector for Plugin: "
+        + plugin.getName(), ex);
+    }
+  }
+
   /**
    * Save the action message to a file on disk.
    *
@@ -293,6 +530,61 @@ public abstract class AbstractPipeline implements MessageListener {
     return plugins;
   }
 
+  /**
+   * Register a started plugin and link it to the plugins it sends to, or
+   * receives from, locally.
+   *
+   * @param name the plugin name
+   * @param plugin the plugin
+   */
+  protected final void addPlugin(final String name, final Plugin plugin) {
+    plugins.put(name, plugin);
+    linkLocalPlugins();
+  }
+
+  /**
+   * Unregister a plugin, unlink it, and stop it.
+   *
+   * @param name the plugin name
+   * @return the plugin, null if there was none
+   */
+  protected final Plugin removePlugin(final String name) {
+    final Plugin plugin = plugins.remove(name);
+    if (plugin != null) {
+      linkLocalPlugins();
+      plugin.stop();
+    }
+    return plugin;
+  }
+
+  /**
+   * Point every plugin with the local transport at the plugins whose input
+   * has the same name as its output. Plugins with a selector are left to
+   * the broker.
+   */
+  private synchronized void linkLocalPlugins() {
+    for (Plugin sender : plugins.values()) {
+      if (!(sender instanceof AbstractPlugin)) {
+        continue;
+      }
+      final String outName = ((AbstractPlugin) sender).getOutName();
+      final List<AbstractPlugin> targets = new ArrayList<>();
+      for (Plugin receiver : plugins.values()) {
+        if (receiver != sender && receiver instanceof AbstractPlugin
+          && ((AbstractPlugin) receiver).getSelector() == null
+          && outName != null && !outName.isEmpty()
+          && outName.equals(((AbstractPlugin) receiver).getInName())) {
+          targets.add((AbstractPlugin) receiver);
+        }
+      }
+      ((AbstractPlugin) sender).setLocalTargets(targets);
+      if (!((AbstractPlugin) sender).getLocalTargets().isEmpty()) {
+        CONSOLE.log(Level.INFO, "{0} sends to {1} plugin(s) locally",
+          new Object[]{((AbstractPlugin) sender).getName(), targets.size()});
+      }
+    }
+  }
+
   /**
    *
    * @param inString the String to trim
@@ -16,17 +16,39 @@ package com.jmstoolkit.pipeline;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import org.dom4j.DocumentException;
+import org.dom4j.XPath;
+import org.springframework.jms.JmsException;
 import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessageCreator;
 import org.springframework.jms.core.MessagePostProcessor;
+import org.springframework.jms.support.JmsUtils;
 import org.springframework.jndi.JndiTemplate;
 
 /**
@@ -82,6 +104,103 @@ public abstract class AbstractPlugin implements Plugin {
    *
    */
   protected static final String STATUS_FAILED = "FAIL";
+  /**
+   * Default number of concurrent consumers.
+   */
+  public static final int D_CONSUMERS = 1;
+  /**
+   * How long a consumer above the minimum may sit idle before it is closed.
+   */
+  protected static final long CONSUMER_IDLE_MILLIS = 60000L;
+  /**
+   * Each message is acknowledged by the provider as it is handled.
+   */
+  public static final String ACK_AUTO = "auto";
+  /**
+   * The provider acknowledges lazily, a message may be delivered twice.
+   */
+  public static final String ACK_DUPS_OK = "dups_ok";
+  /**
+   * Messages are acknowledged in batches, see <code>setAcknowledge</code>.
+   */
+  public static final String ACK_CLIENT = "client";
+  /**
+   * Messages received and the messages sent while handling them are
+   * committed together in batches, see <code>setAcknowledge</code>.
+   */
+  public static final String ACK_TRANSACTED = "transacted";
+  /**
+   * Default number of messages acknowledged or committed together.
+   */
+  public static final int D_ACK_BATCH_SIZE = 100;
+  /**
+   * Default longest time a handled message waits to be acknowledged or
+   * committed, in ms.
+   */
+  public static final long D_ACK_BATCH_WAIT = 1000L;
+  /**
+   * Each send waits for the broker to accept the message.
+   */
+  public static final String SEND_SYNC = "sync";
+  /**
+   * Sends return at once, the broker's answer is handled by a JMS 2.0
+   * CompletionListener.
+   */
+  public static final String SEND_ASYNC = "async";
+  /**
+   * Default number of asynchronous sends waiting for the broker.
+   */
+  public static final int D_MAX_IN_FLIGHT = 100;
+  /**
+   * Output is always sent through the broker.
+   */
+  public static final String TRANSPORT_JMS = "jms";
+  /**
+   * Output is handed straight to plugins in the same Pipeline whose input
+   * is this plugin's output.
+   */
+  public static final String TRANSPORT_LOCAL = "local";
+  /**
+   * Default number of messages waiting in a plugin's in-memory input.
+   */
+  public static final int D_LOCAL_CAPACITY = 1000;
+  /**
+   * Message property naming the JVM which delivered a message locally.
+   */
+  public static final String P_LOCAL_ORIGIN = "localOrigin";
+  /**
+   * Message property listing the plugins which got the message locally, as
+   * ",NAME1,NAME2,".
+   */
+  public static final String P_LOCAL_DELIVERED = "localDelivered";
+  /**
+   * The JMS message group property.
+   */
+  public static final String P_GROUP_ID = "JMSXGroupID";
+  /**
+   * The JMS message group sequence property.
+   */
+  public static final String P_GROUP_SEQ = "JMSXGroupSeq";
+  /**
+   * Default partition key, the JMS message group.
+   */
+  public static final String D_PARTITION_KEY = P_GROUP_ID;
+  /**
+   * Default number of partition lanes.
+   */
+  public static final int D_PARTITION_LANES = 4;
+  /**
+   * Default number of messages waiting in a partition lane.
+   */
+  public static final int D_PARTITION_CAPACITY = 1000;
+  /**
+   * Identifies this JVM in P_LOCAL_ORIGIN.
+   */
+  private static final String JVM_ID = UUID.randomUUID().toString();
+  /**
+   * Numbers the JMSMessageIDs of locally delivered messages.
+   */
+  private static final AtomicLong LOCAL_IDS = new AtomicLong();
   /**
    *
    */
@@ -133,23 +252,175 @@ public abstract class AbstractPlugin implements Plugin {
   /**
    *
    */
-  protected String status = STATUS_OK;
+  protected volatile String status = STATUS_OK;
   /**
-   *
+   * Incremented by every consumer thread, so it has to be atomic.
+   */
+  private final AtomicInteger operationCount = new AtomicInteger();
+  /**
+   * The number of consumers started by <code>init()</code>.
+   */
+  private int minConsumers = D_CONSUMERS;
+  /**
+   * The number of consumers the plugin may grow to under load.
+   */
+  private int maxConsumers = D_CONSUMERS;
+  /**
+   * The running consumers, each with its own Session.
+   */
+  private final List<PluginConsumer> consumers = new CopyOnWriteArrayList<>();
+  /**
+   * The number of consumers currently inside <code>onMessage</code>.
+   */
+  private final AtomicInteger busyConsumers = new AtomicInteger();
+  /**
+   * How received messages are acknowledged, one of the ACK_ constants.
+   */
+  private String acknowledge = ACK_AUTO;
+  /**
+   * The Session acknowledge mode for <code>acknowledge</code>.
+   */
+  private int sessionMode = Session.AUTO_ACKNOWLEDGE;
+  /**
+   * Messages acknowledged or committed together by each consumer.
+   */
+  private int ackBatchSize = D_ACK_BATCH_SIZE;
+  /**
+   * Longest time a handled message waits to be acknowledged or committed.
+   */
+  private long ackBatchWait = D_ACK_BATCH_WAIT;
+  /**
+   * The number of batches acknowledged or committed.
+   */
+  private final AtomicLong commits = new AtomicLong();
+  /**
+   * Whether sends from consumer threads are asynchronous.
+   */
+  private volatile boolean asyncSend;
+  /**
+   * The number of asynchronous sends allowed to wait for the broker.
+   */
+  private int maxInFlight = D_MAX_IN_FLIGHT;
+  /**
+   * Permits for asynchronous sends, one is held until the broker answers.
+   */
+  private Semaphore inFlight = new Semaphore(D_MAX_IN_FLIGHT);
+  /**
+   * The number of asynchronous sends the broker failed.
+   */
+  private final LongAdder sendFailures = new LongAdder();
+  /**
+   * Frees the permit of an asynchronous send and reports failures.
    */
-  protected Integer operationCount = 0;
+  private final CompletionListener completion = new CompletionListener() {
+    @Override
+    public void onCompletion(final Message message) {
+      inFlight.release();
+    }
 
+    @Override
+    public void onException(final Message message, final Exception ex) {
+      inFlight.release();
+      sendFailed(message, ex);
+    }
+  };
   /**
-   * Configures and starts the JMS MessageConsumer.
+   * The JMS message selector of the consumers, null for every message.
+   */
+  private String selector;
+  /**
+   * TRANSPORT_JMS or TRANSPORT_LOCAL.
+   */
+  private String transport = TRANSPORT_JMS;
+  /**
+   * Whether locally delivered output is sent through the broker as well.
+   */
+  private boolean brokerCopy;
+  /**
+   * The most messages waiting in <code>localInput</code>.
+   */
+  private int localCapacity = D_LOCAL_CAPACITY;
+  /**
+   * The plugins in the same Pipeline whose input is this plugin's output,
+   * set by the Pipeline.
+   */
+  private volatile List<AbstractPlugin> localTargets = Collections.emptyList();
+  /**
+   * Picks the local target of a Queue.
+   */
+  private final AtomicInteger nextTarget = new AtomicInteger();
+  /**
+   * In-memory input, opened when another plugin first sends here locally.
+   */
+  private volatile LocalInput localInput;
+  /**
+   * Messages handed to local targets.
+   */
+  private final LongAdder localSent = new LongAdder();
+  /**
+   * Messages received from the local input.
+   */
+  private final LongAdder localReceived = new LongAdder();
+  /**
+   * Broker copies dropped because they were already received locally.
+   */
+  private final LongAdder localDuplicates = new LongAdder();
+  /**
+   * The property holding the partition key, when there is no XPath.
+   */
+  private String partitionKey = D_PARTITION_KEY;
+  /**
+   * The XPath of the partition key in the message, null for a property.
+   */
+  private XPath partitionXPath;
+  /**
+   * The number of partition lanes, 0 when messages aren't partitioned.
+   */
+  private int partitionLanes;
+  /**
+   * The most messages waiting in a partition lane.
+   */
+  private int partitionCapacity = D_PARTITION_CAPACITY;
+  /**
+   * The partition lanes while the plugin runs.
+   */
+  private volatile PartitionLanes lanes;
+  /**
+   * The consumer whose message this thread is handling.
+   */
+  private final ThreadLocal<PluginConsumer> current = new ThreadLocal<>();
+  /**
+   * Housekeeping timer, created on first use.
+   */
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Configures and starts the JMS MessageConsumers. The minimum number of
+   * consumers are started immediately, more are added while all of them are
+   * busy, up to the maximum.
    */
   @Override
   public void init() {
+    if (partitionLanes > 0) {
+      synchronized (this) {
+        lanes = new PartitionLanes(getName(), partitionLanes,
+          partitionCapacity, this::onMessage);
+      }
+    }
     try {
       setConnection(getJmsTemplate().getConnectionFactory().createConnection());
-      setSession(getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE));
-      setConsumer(getSession().createConsumer(getInput()));
-      getConsumer().setMessageListener(this);
+      for (int i = 0; i < getMinConsumers(); i++) {
+        addConsumer();
+      }
       getConnection().start();
+      if (getMaxConsumers() > getMinConsumers()) {
+        getScheduler().scheduleWithFixedDelay(this::removeIdleConsumers,
+          CONSUMER_IDLE_MILLIS, CONSUMER_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      if (isBatchAcknowledged() && getAckBatchWait() > 0) {
+        getScheduler().scheduleWithFixedDelay(this::completeBatches,
+          getAckBatchWait(), getAckBatchWait(), TimeUnit.MILLISECONDS);
+      }
 
       System.setProperty(P_APP_NAME, APP_NAME);
       try {
@@ -166,19 +437,469 @@ public abstract class AbstractPlugin implements Plugin {
   }
 
   /**
-   * Stops the JMS MessageConsumer.
+   * Stops the JMS MessageConsumers, then waits for the messages already
+   * queued on the local input or the partition lanes to be handled.
    */
   @Override
   public void stop() {
+    synchronized (this) {
+      if (scheduler != null) {
+        scheduler.shutdownNow();
+        scheduler = null;
+      }
+    }
+    for (PluginConsumer pc : consumers) {
+      try {
+        pc.close();
+      } catch (JMSException ex) {
+        LOGGER.log(Level.SEVERE, "Failed to close consumer for " + getName(),
+          ex);
+      }
+    }
+    consumers.clear();
+    synchronized (this) {
+      if (localInput != null) {
+        localInput.close();
+      }
+      if (lanes != null) {
+        lanes.close();
+        lanes = null;
+      }
+    }
     try {
-      getConsumer().setMessageListener(null);
-      getConsumer().close();
-      getConnection().stop();
+      if (getConnection() != null) {
+        getConnection().stop();
+      }
     } catch (JMSException ex) {
       LOGGER.log(Level.SEVERE, "Failed to stop connection for " + getName(), ex);
     }
   }
 
+  /**
+   * Creates one more Session and MessageConsumer on the connection, unless
+   * the maximum number of consumers is already running.
+   *
+   * @return true if a consumer was added
+   * @throws JMSException on JMS error
+   */
+  protected final synchronized boolean addConsumer() throws JMSException {
+    if (consumers.size() >= getMaxConsumers()) {
+      return false;
+    }
+    final Session newSession = getConnection().createSession(
+      sessionMode == Session.SESSION_TRANSACTED, sessionMode);
+    final MessageConsumer newConsumer = createConsumer(newSession);
+    final PluginConsumer pc = new PluginConsumer(this, newSession, newConsumer);
+    newConsumer.setMessageListener(pc);
+    consumers.add(pc);
+    if (consumers.size() == 1) {
+      setSession(newSession);
+      setConsumer(newConsumer);
+    }
+    return true;
+  }
+
+  /**
+   * Creates the MessageConsumer for the input Destination. Several consumers
+   * on a Queue share its messages, but every consumer on a Topic gets its own
+   * copy, so concurrent Topic consumers use a JMS 2.0 shared subscription
+   * named after the plugin. When the provider can't do that the plugin is
+   * limited to a single consumer. The selector, if any, is given to the
+   * broker, which then keeps the messages it doesn't match.
+   *
+   * @param inSession the Session to create the consumer on
+   * @return the MessageConsumer
+   * @throws JMSException on JMS error
+   */
+  private MessageConsumer createConsumer(final Session inSession)
+    throws JMSException {
+    MessageConsumer result = null;
+    if (getMaxConsumers() > 1 && getInput() instanceof Topic) {
+      try {
+        result = inSession.createSharedConsumer((Topic) getInput(), getName(),
+          selector);
+      } catch (UnsupportedOperationException | AbstractMethodError ex) {
+        LOGGER.log(Level.WARNING, "JMS provider has no shared subscriptions, "
+          + "{0} will use a single consumer on {1}",
+          new Object[]{getName(), getInName()});
+        this.minConsumers = 1;
+        this.maxConsumers = 1;
+      }
+    }
+    if (result == null) {
+      result = inSession.createConsumer(getInput(), selector);
+    }
+    return result;
+  }
+
+  /**
+   * Closes consumers above the minimum which haven't had any work for a
+   * while.
+   */
+  private void removeIdleConsumers() {
+    for (PluginConsumer pc : consumers) {
+      if (consumers.size() <= getMinConsumers()) {
+        break;
+      }
+      if (pc.getIdleMillis() > CONSUMER_IDLE_MILLIS
+        && pc.getSession() != getSession() && consumers.remove(pc)) {
+        try {
+          pc.close();
+        } catch (JMSException ex) {
+          LOGGER.log(Level.WARNING, "Failed to close idle consumer for "
+            + getName(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Acknowledges or commits the messages each consumer has handled so far,
+   * so that a quiet input doesn't hold them back for ever.
+   */
+  private void completeBatches() {
+    for (PluginConsumer pc : consumers) {
+      try {
+        pc.complete();
+      } catch (JMSException ex) {
+        LOGGER.log(Level.WARNING, "Failed to acknowledge messages for "
+          + getName(), ex);
+      }
+    }
+  }
+
+  /**
+   * Called by each consumer thread with a received message, and by the local
+   * input threads with a message from another plugin. When every consumer is
+   * busy another one is started before the message is handled. A broker copy
+   * of a message this plugin already received locally is dropped. When the
+   * plugin is partitioned the message is queued on the lane of its key
+   * instead, and handled there.
+   *
+   * @param message the JMS Message received
+   * @param pc the consumer which received it, null for local messages
+   */
+  final void dispatch(final Message message, final PluginConsumer pc) {
+    if (pc != null && localInput != null && isLocalCopy(message)) {
+      localDuplicates.increment();
+      return;
+    }
+    final PartitionLanes partitioned = lanes;
+    if (partitioned != null) {
+      if (!partitioned.submit(getPartitionKey(message), message)) {
+        LOGGER.log(Level.WARNING, "{0} stopped, message not handled",
+          getName());
+      }
+      return;
+    }
+    final int busy = busyConsumers.incrementAndGet();
+    current.set(pc);
+    try {
+      if (pc != null && busy >= consumers.size()
+        && consumers.size() < getMaxConsumers()) {
+        try {
+          addConsumer();
+        } catch (JMSException ex) {
+          LOGGER.log(Level.WARNING, "Failed to add consumer for "
+            + getName(), ex);
+        }
+      }
+      onMessage(message);
+    } finally {
+      current.remove();
+      busyConsumers.decrementAndGet();
+    }
+  }
+
+  /**
+   * The partition key of a message: the value of the key property or XPath,
+   * or the JMSMessageID when it has none, which spreads such messages over
+   * the lanes without any order.
+   *
+   * @param message the message
+   * @return the key
+   */
+  private String getPartitionKey(final Message message) {
+    String result = null;
+    try {
+      if (partitionXPath == null) {
+        final Object value = message.getObjectProperty(partitionKey);
+        result = value == null ? null : value.toString();
+      } else if (message instanceof TextMessage) {
+        result = partitionXPath.valueOf(XMLParsers.parse(
+          ((TextMessage) message).getText(), false));
+      }
+      if (result == null || result.isEmpty()) {
+        result = String.valueOf(message.getJMSMessageID());
+      }
+    } catch (JMSException | DocumentException ex) {
+      LOGGER.log(Level.WARNING, "No partition key for " + getName(), ex);
+      result = "";
+    }
+    return result;
+  }
+
+  /**
+   *
+   * @param message a message received from the broker
+   * @return true if it was also delivered to this plugin locally
+   */
+  private boolean isLocalCopy(final Message message) {
+    try {
+      final String delivered = message.getStringProperty(P_LOCAL_DELIVERED);
+      return delivered != null && delivered.contains("," + getName() + ",")
+        && JVM_ID.equals(message.getStringProperty(P_LOCAL_ORIGIN));
+    } catch (JMSException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Called by a consumer when it has acknowledged or committed a batch.
+   */
+  final void countCommit() {
+    commits.incrementAndGet();
+  }
+
+  /**
+   * Sends a message to the output Destination, see
+   * <code>send(Destination, MessageCreator)</code>.
+   *
+   * @param creator creates the message
+   * @throws JmsException on JMS error
+   */
+  protected final void send(final MessageCreator creator) {
+    send(getJmsTemplate().getDefaultDestination(), creator);
+  }
+
+  /**
+   * Sends a message. Output to plugins in the same Pipeline is handed to
+   * them directly when the transport is local. On a consumer thread a
+   * message for the broker is sent by a long lived
+   * producer on the consumer's Session, so in transacted mode it is
+   * committed or rolled back together with the message being handled. In
+   * async send mode, other than in transacted mode, the send doesn't wait
+   * for the broker unless <code>maxInFlight</code> sends already are; a
+   * failure is logged and reported to the replyTo Destination. Sends from
+   * any other thread go through the JmsTemplate.
+   *
+   * @param destination where to send the message
+   * @param creator creates the message
+   * @throws JmsException on JMS error
+   */
+  protected final void send(final Destination destination,
+    final MessageCreator creator) {
+    final List<AbstractPlugin> targets = localTargets;
+    if (targets.isEmpty() || destination == null
+      || !destination.equals(getOutput())
+      || !sendLocal(targets, destination, creator)) {
+      sendRemote(destination, creator);
+    }
+  }
+
+  /**
+   * Hands a message to the local targets. On a Topic every target gets the
+   * message, on a Queue one of them does. A message a target can't take
+   * right now, or any message when a broker copy is wanted, goes through
+   * the broker too, marked with the targets which already have it. A
+   * BytesMessage body is read through a cursor, so each target gets its own.
+   *
+   * @param targets the plugins reading this plugin's output
+   * @param destination the output Destination
+   * @param creator creates the message
+   * @return false if no target took the message, so it still has to be sent
+   * @throws JmsException on JMS error
+   */
+  private boolean sendLocal(final List<AbstractPlugin> targets,
+    final Destination destination, final MessageCreator creator) {
+    final PluginConsumer pc = current.get();
+    Message message = null;
+    final List<AbstractPlugin> receivers = destination instanceof Topic
+      ? targets : Collections.singletonList(targets.get(
+        Math.floorMod(nextTarget.getAndIncrement(), targets.size())));
+    final StringBuilder delivered = new StringBuilder(",");
+    boolean refused = false;
+    for (AbstractPlugin target : receivers) {
+      final LocalInput in = target.localInput;
+      if (message == null) {
+        message = createLocal(creator, pc);
+      }
+      if (in != null && in.offer(message)) {
+        delivered.append(target.getName()).append(',');
+        localSent.increment();
+        if (message instanceof BytesMessage) {
+          message = null;
+        }
+      } else {
+        refused = true;
+      }
+    }
+    if (delivered.length() == 1) {
+      return false;
+    }
+    if (refused || brokerCopy) {
+      final String names = delivered.toString();
+      sendRemote(destination, inSession -> {
+        final Message copy = creator.createMessage(inSession);
+        copy.setStringProperty(P_LOCAL_ORIGIN, JVM_ID);
+        copy.setStringProperty(P_LOCAL_DELIVERED, names);
+        return copy;
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Creates a message to be handed to a local target as if it had been
+   * received: a BytesMessage is made readable, and the message gets a
+   * JMSMessageID, which the broker would have given it.
+   *
+   * @param creator creates the message
+   * @param pc the consumer whose Session creates it, null for the
+   * JmsTemplate
+   * @return the message
+   * @throws JmsException on JMS error
+   */
+  private Message createLocal(final MessageCreator creator,
+    final PluginConsumer pc) {
+    try {
+      final Message message = pc == null
+        ? getJmsTemplate().execute(creator::createMessage, false)
+        : creator.createMessage(pc.getSession());
+      if (message instanceof BytesMessage) {
+        ((BytesMessage) message).reset();
+      }
+      message.setJMSMessageID("ID:" + JVM_ID + ":"
+        + LOCAL_IDS.incrementAndGet());
+      return message;
+    } catch (JMSException ex) {
+      throw JmsUtils.convertJmsAccessException(ex);
+    }
+  }
+
+  /**
+   * Sends a message through the broker, see
+   * <code>send(Destination, MessageCreator)</code>.
+   *
+   * @param destination where to send the message
+   * @param creator creates the message
+   * @throws JmsException on JMS error
+   */
+  private void sendRemote(final Destination destination,
+    final MessageCreator creator) {
+    final PluginConsumer pc = current.get();
+    if (pc == null) {
+      getJmsTemplate().send(destination, creator);
+      return;
+    }
+    try {
+      if (asyncSend && sessionMode != Session.SESSION_TRANSACTED) {
+        sendAsync(pc, destination, creator);
+      } else {
+        pc.send(destination, creator, null);
+      }
+    } catch (JMSException ex) {
+      throw JmsUtils.convertJmsAccessException(ex);
+    }
+  }
+
+  /**
+   * Sends a message asynchronously, once a permit is free. When the
+   * provider can't send asynchronously the plugin goes back to synchronous
+   * sends.
+   *
+   * @param pc the consumer whose Session sends the message
+   * @param destination where to send the message
+   * @param creator creates the message
+   * @throws JMSException on JMS error
+   */
+  private void sendAsync(final PluginConsumer pc,
+    final Destination destination, final MessageCreator creator)
+    throws JMSException {
+    inFlight.acquireUninterruptibly();
+    boolean sent = false;
+    try {
+      pc.send(destination, creator, completion);
+      sent = true;
+    } catch (UnsupportedOperationException | AbstractMethodError ex) {
+      LOGGER.log(Level.WARNING, "JMS provider has no asynchronous send, "
+        + "{0} will send synchronously", getName());
+      asyncSend = false;
+      pc.send(destination, creator, null);
+    } finally {
+      if (!sent) {
+        inFlight.release();
+      }
+    }
+  }
+
+  /**
+   * Reports an asynchronous send the broker failed to the replyTo
+   * Destination, with the message text if it had any, so that it can be
+   * sent again.
+   *
+   * @param message the message which wasn't sent
+   * @param ex why
+   */
+  private void sendFailed(final Message message, final Exception ex) {
+    sendFailures.increment();
+    LOGGER.log(Level.SEVERE, "Asynchronous send failed for " + getName(), ex);
+    if (getReplyTo() == null) {
+      return;
+    }
+    try {
+      final String text = message instanceof TextMessage
+        ? ((TextMessage) message).getText() : null;
+      final String correlationId = message.getJMSCorrelationID();
+      getJmsTemplate().send(getReplyTo(), inSession -> {
+        final Message failure = inSession.createTextMessage(
+          text == null ? "Send failed for " + getName() + ": " + ex : text);
+        failure.setStringProperty("plugin", getName());
+        failure.setStringProperty("error", String.valueOf(ex));
+        failure.setJMSCorrelationID(correlationId);
+        return failure;
+      });
+    } catch (JMSException | JmsException e) {
+      LOGGER.log(Level.SEVERE, "Failed to report failed send for "
+        + getName(), e);
+    }
+  }
+
+  /**
+   * Sends a <code>TextMessage</code> to the output Destination, see
+   * <code>send(MessageCreator)</code>.
+   *
+   * @param text the message text
+   * @param processor adds properties to the message, may be null
+   * @throws JmsException on JMS error
+   */
+  protected final void send(final String text,
+    final MessagePostProcessor processor) {
+    send(inSession -> {
+      final Message message = inSession.createTextMessage(text);
+      return processor == null
+        ? message : processor.postProcessMessage(message);
+    });
+  }
+
+  /**
+   * A single threaded timer for plugin housekeeping. It is shut down by
+   * <code>stop()</code>.
+   *
+   * @return the scheduler
+   */
+  protected final synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      final String threadName = getName() + "-timer";
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, threadName);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return scheduler;
+  }
+
   /**
    * Gets some basic information about the <code>Plugin</code>.
    *
@@ -197,13 +918,101 @@ public abstract class AbstractPlugin implements Plugin {
     sb.append(getOutName());
     sb.append(",replyto=");
     sb.append(getReplyToName());
+    if (selector != null) {
+      sb.append(",selector=");
+      sb.append(selector);
+    }
     sb.append(",status=");
     sb.append(getStatus());
+    sb.append(",consumers=");
+    sb.append(getConsumerCount());
+    sb.append(",busy=");
+    sb.append(getBusyConsumers());
+    sb.append(",acknowledge=");
+    sb.append(getAcknowledge());
+    sb.append(",send=");
+    sb.append(asyncSend ? SEND_ASYNC : SEND_SYNC);
+    sb.append(",transport=");
+    sb.append(getTransport());
+    if (partitionLanes > 0) {
+      sb.append(",partition=");
+      sb.append(partitionKey);
+      sb.append('/');
+      sb.append(partitionLanes);
+    }
     sb.append(",operations=");
     sb.append(this.getOperationCount());
     return sb.toString();
   }
 
+  /**
+   * Gets the counters for this plugin. Subclasses add their own to the ones
+   * returned here.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("operations", (long) getOperationCount());
+    stats.put("consumers", (long) getConsumerCount());
+    stats.put("busy", (long) getBusyConsumers());
+    if (isBatchAcknowledged()) {
+      stats.put("commits", commits.get());
+    }
+    if (asyncSend) {
+      stats.put("inFlight", (long) (maxInFlight - inFlight.availablePermits()));
+    }
+    stats.put("sendFailures", sendFailures.sum());
+    if (TRANSPORT_LOCAL.equals(transport)) {
+      stats.put("localSent", localSent.sum());
+    }
+    final LocalInput in = localInput;
+    if (in != null) {
+      stats.put("localReceived", localReceived.sum());
+      stats.put("localDuplicates", localDuplicates.sum());
+      stats.put("localQueued", (long) in.size());
+    }
+    final PartitionLanes partitioned = lanes;
+    if (partitioned != null) {
+      stats.put("laneQueued", (long) partitioned.size());
+      for (int i = 0; i < partitioned.getLanes(); i++) {
+        stats.put("lane" + i + "Queued", (long) partitioned.size(i));
+        stats.put("lane" + i + "Handled", partitioned.getHandled(i));
+      }
+      stats.put("laneSkewPct", partitioned.getSkew());
+    }
+    return stats;
+  }
+
+  /**
+   * Copy a received message to be sent on unchanged, with its properties
+   * apart from the ones set by the provider or by local delivery. The
+   * message group properties are set by the sender, so they are kept.
+   *
+   * @param message the message received
+   * @param inSession the Session sending the copy
+   * @return the copy
+   * @throws JMSException on JMS error
+   */
+  protected final Message copyMessage(final TextMessage message,
+    final Session inSession) throws JMSException {
+    final TextMessage result = inSession.createTextMessage(message.getText());
+    final Enumeration<?> names = message.getPropertyNames();
+    while (names.hasMoreElements()) {
+      final String propertyName = (String) names.nextElement();
+      if ((!propertyName.startsWith("JMSX")
+        || P_GROUP_ID.equals(propertyName) || P_GROUP_SEQ.equals(propertyName))
+        && !P_LOCAL_ORIGIN.equals(propertyName)
+        && !P_LOCAL_DELIVERED.equals(propertyName)) {
+        result.setObjectProperty(propertyName,
+          message.getObjectProperty(propertyName));
+      }
+    }
+    return new BasicMessageProcessor(message.getJMSCorrelationID())
+      .postProcessMessage(result);
+  }
+
   /**
    *
    * @param inString The String to trim
@@ -447,13 +1256,319 @@ public abstract class AbstractPlugin implements Plugin {
    */
   @Override
   public Integer getOperationCount() {
-    return operationCount;
+    return operationCount.get();
   }
 
   /**
    * @param count the count to set
    */
   public void setOperationCount(Integer count) {
-    this.operationCount = count;
+    this.operationCount.set(count);
+  }
+
+  /**
+   * Adds one to the count of operations, safe to call from any consumer.
+   */
+  protected final void countOperation() {
+    this.operationCount.incrementAndGet();
+  }
+
+  /**
+   * @return the number of consumers started by <code>init()</code>
+   */
+  public final int getMinConsumers() {
+    return minConsumers;
+  }
+
+  /**
+   * @return the number of consumers the plugin may grow to
+   */
+  public final int getMaxConsumers() {
+    return maxConsumers;
+  }
+
+  /**
+   * Sets the number of concurrent consumers, must be called before
+   * <code>init()</code>.
+   *
+   * @param inMin the number of consumers to start with
+   * @param inMax the number of consumers to grow to under load
+   */
+  public final void setConcurrency(final int inMin, final int inMax) {
+    if (inMin < 1 || inMax < inMin) {
+      throw new IllegalArgumentException("Bad concurrency: min=" + inMin
+        + ", max=" + inMax);
+    }
+    this.minConsumers = inMin;
+    this.maxConsumers = inMax;
+  }
+
+  /**
+   * @return the number of running consumers
+   */
+  public final int getConsumerCount() {
+    return consumers.size();
+  }
+
+  /**
+   * @return the number of consumers currently handling a message
+   */
+  public final int getBusyConsumers() {
+    return busyConsumers.get();
+  }
+
+  /**
+   * @return how received messages are acknowledged, one of the ACK_
+   * constants
+   */
+  public final String getAcknowledge() {
+    return acknowledge;
+  }
+
+  /**
+   * @return true if messages are acknowledged or committed in batches
+   */
+  public final boolean isBatchAcknowledged() {
+    return sessionMode == Session.CLIENT_ACKNOWLEDGE
+      || sessionMode == Session.SESSION_TRANSACTED;
+  }
+
+  /**
+   * @return the number of messages acknowledged or committed together
+   */
+  public final int getAckBatchSize() {
+    return ackBatchSize;
+  }
+
+  /**
+   * @return the longest time a handled message waits to be acknowledged or
+   * committed, in ms, 0 for no limit
+   */
+  public final long getAckBatchWait() {
+    return ackBatchWait;
+  }
+
+  /**
+   * Sets how received messages are acknowledged, must be called before
+   * <code>init()</code>. In client and transacted modes each consumer
+   * acknowledges or commits once it has handled <code>batchSize</code>
+   * messages, or when <code>batchWait</code> ms have passed, whichever comes
+   * first. A message whose handling throws a RuntimeException rolls back,
+   * or recovers, the whole batch.
+   *
+   * @param inMode one of the ACK_ constants
+   * @param inBatchSize the number of messages acknowledged together
+   * @param inBatchWait the longest time a message waits to be acknowledged,
+   * in ms, 0 for no limit
+   */
+  public final void setAcknowledge(final String inMode, final int inBatchSize,
+    final long inBatchWait) {
+    final int mode;
+    switch (inMode) {
+      case ACK_AUTO:
+        mode = Session.AUTO_ACKNOWLEDGE;
+        break;
+      case ACK_DUPS_OK:
+        mode = Session.DUPS_OK_ACKNOWLEDGE;
+        break;
+      case ACK_CLIENT:
+        mode = Session.CLIENT_ACKNOWLEDGE;
+        break;
+      case ACK_TRANSACTED:
+        mode = Session.SESSION_TRANSACTED;
+        break;
+      default:
+        throw new IllegalArgumentException("Bad acknowledge mode: " + inMode);
+    }
+    if (inBatchSize < 1 || inBatchWait < 0) {
+      throw new IllegalArgumentException("Bad acknowledge batch: size="
+        + inBatchSize + ", wait=" + inBatchWait);
+    }
+    this.acknowledge = inMode;
+    this.sessionMode = mode;
+    this.ackBatchSize = inBatchSize;
+    this.ackBatchWait = inBatchWait;
+  }
+
+  /**
+   * @return true if sends from consumer threads are asynchronous
+   */
+  public final boolean isAsyncSend() {
+    return asyncSend;
+  }
+
+  /**
+   * @return the number of asynchronous sends allowed to wait for the broker
+   */
+  public final int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Sets how messages are sent from consumer threads, must be called before
+   * <code>init()</code>. Transacted plugins always send synchronously, their
+   * sends are committed with the messages received.
+   *
+   * @param inMode SEND_SYNC or SEND_ASYNC
+   * @param inMaxInFlight the number of asynchronous sends allowed to wait
+   * for the broker, more sends block until one of them is answered
+   */
+  public final void setSend(final String inMode, final int inMaxInFlight) {
+    if (!SEND_SYNC.equals(inMode) && !SEND_ASYNC.equals(inMode)) {
+      throw new IllegalArgumentException("Bad send mode: " + inMode);
+    }
+    if (inMaxInFlight < 1) {
+      throw new IllegalArgumentException("Bad send maxInFlight: "
+        + inMaxInFlight);
+    }
+    this.asyncSend = SEND_ASYNC.equals(inMode);
+    this.maxInFlight = inMaxInFlight;
+    this.inFlight = new Semaphore(inMaxInFlight);
+  }
+
+  /**
+   * @return the JMS message selector, null if every message is consumed
+   */
+  public final String getSelector() {
+    return selector;
+  }
+
+  /**
+   * Sets the JMS message selector of the consumers, must be called before
+   * <code>init()</code>. The syntax is checked here, so a bad selector
+   * fails the deployment rather than the start of the consumers. A plugin
+   * with a selector is never sent to locally, its messages always go
+   * through the broker which does the selecting.
+   *
+   * @param inSelector the selector, null or empty for every message
+   * @throws IllegalArgumentException if the selector isn't valid
+   */
+  public final void setSelector(final String inSelector) {
+    if (inSelector == null || inSelector.trim().isEmpty()) {
+      this.selector = null;
+    } else {
+      MessageSelectors.validate(inSelector);
+      this.selector = inSelector.trim();
+    }
+  }
+
+  /**
+   * @return TRANSPORT_JMS or TRANSPORT_LOCAL
+   */
+  public final String getTransport() {
+    return transport;
+  }
+
+  /**
+   * @return true if locally delivered output is sent through the broker too
+   */
+  public final boolean isBrokerCopy() {
+    return brokerCopy;
+  }
+
+  /**
+   * Sets how output reaches plugins in the same Pipeline, must be called
+   * before <code>init()</code>. Local messages skip the broker, so they are
+   * not persisted or acknowledged and are not part of a transaction. Keep a
+   * broker copy when something outside the Pipeline reads the output.
+   *
+   * @param inMode TRANSPORT_JMS or TRANSPORT_LOCAL
+   * @param inBrokerCopy true to send local output through the broker too
+   * @param inCapacity the most messages waiting in this plugin's own
+   * in-memory input, when other plugins send to it locally
+   */
+  public final void setTransport(final String inMode,
+    final boolean inBrokerCopy, final int inCapacity) {
+    if (!TRANSPORT_JMS.equals(inMode) && !TRANSPORT_LOCAL.equals(inMode)) {
+      throw new IllegalArgumentException("Bad transport: " + inMode);
+    }
+    if (inCapacity < 1) {
+      throw new IllegalArgumentException("Bad transport capacity: "
+        + inCapacity);
+    }
+    this.transport = inMode;
+    this.brokerCopy = inBrokerCopy;
+    this.localCapacity = inCapacity;
+  }
+
+  /**
+   * @return the number of partition lanes, 0 if messages aren't partitioned
+   */
+  public final int getPartitionLanes() {
+    return partitionLanes;
+  }
+
+  /**
+   * Spreads the messages over single threaded lanes by a partition key, so
+   * messages with the same key are handled in order while different keys run
+   * in parallel. Must be called before <code>init()</code>.
+   *
+   * The consumers only hand each message to its lane, which means it is
+   * acknowledged before it is handled, so partitioning needs the auto or
+   * dups_ok acknowledge mode. <code>stop()</code> waits for the lanes to
+   * empty, but the messages in them are lost if the JVM dies. The lane
+   * threads send through the JmsTemplate. Per key order holds for the order
+   * the consumers receive in: use a single consumer, or JMSXGroupID on a
+   * Queue, where the broker keeps a group on one consumer.
+   *
+   * @param inKey a message property, or an XPath starting with /, null or
+   * empty for JMSXGroupID
+   * @param inLanes the number of lanes, 0 for no partitioning
+   * @param inCapacity the most messages waiting in a lane, a full lane
+   * holds back the consumers
+   * @throws IllegalArgumentException if the settings aren't valid
+   */
+  public final void setPartition(final String inKey, final int inLanes,
+    final int inCapacity) {
+    if (inLanes < 0 || inCapacity < 1) {
+      throw new IllegalArgumentException("Bad partition: lanes=" + inLanes
+        + ", capacity=" + inCapacity);
+    }
+    if (inLanes > 0 && isBatchAcknowledged()) {
+      throw new IllegalArgumentException("Partitioning needs the "
+        + ACK_AUTO + " or " + ACK_DUPS_OK + " acknowledge mode, not "
+        + acknowledge);
+    }
+    final String key = inKey == null || inKey.trim().isEmpty()
+      ? D_PARTITION_KEY : inKey.trim();
+    this.partitionXPath = key.startsWith("/") ? XPathRegistry.get(key) : null;
+    this.partitionKey = key;
+    this.partitionLanes = inLanes;
+    this.partitionCapacity = inCapacity;
+  }
+
+  /**
+   * Sets the plugins which this plugin's output is handed to directly,
+   * called by the Pipeline when plugins come and go.
+   *
+   * @param targets the plugins whose input is this plugin's output
+   */
+  final void setLocalTargets(final List<AbstractPlugin> targets) {
+    this.localTargets = TRANSPORT_LOCAL.equals(transport)
+      ? Collections.unmodifiableList(targets) : Collections.emptyList();
+    for (AbstractPlugin target : localTargets) {
+      target.openLocalInput();
+    }
+  }
+
+  /**
+   * @return the plugins this plugin's output is handed to directly
+   */
+  final List<AbstractPlugin> getLocalTargets() {
+    return localTargets;
+  }
+
+  /**
+   * Opens the in-memory input, with one thread for every consumer this
+   * plugin may grow to.
+   */
+  private synchronized void openLocalInput() {
+    if (localInput == null) {
+      localInput = new LocalInput(getName(), localCapacity,
+        getMaxConsumers(), message -> {
+          localReceived.increment();
+          dispatch(message, null);
+        });
+    }
   }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.BasicDataSourceFactory;
+
+/**
+ * A JVM wide registry of JDBC connection pools, one per driver, url and
+ * username, shared by every plugin using the same database. Plugins
+ * {@link #acquire(Properties)} a pool when they are created and
+ * {@link #release(DataSource)} it when they are stopped; the pool is closed
+ * when its last user releases it.
+ *
+ * The pool is configured with the commons-dbcp
+ * <code>BasicDataSourceFactory</code> property names. The first plugin to
+ * acquire a pool decides its settings, and a plugin asking for the same
+ * pool with different ones is refused rather than silently given a pool
+ * which isn't what it configured.
+ *
+ * @author Scott Douglass
+ */
+public final class DataSourceRegistry {
+
+  /** Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(DataSourceRegistry.class.getName());
+  /** Pool settings used when none are given. */
+  private static final Properties DEFAULTS = new Properties();
+
+  static {
+    DEFAULTS.setProperty("maxActive", "5");
+    DEFAULTS.setProperty("maxIdle", "2");
+    DEFAULTS.setProperty("minIdle", "1");
+  }
+
+  /** The pools by key, guarded by itself. */
+  private static final Map<String, PooledDataSource> POOLS = new HashMap<>();
+  /** The settings each pool was created with, guarded by POOLS. */
+  private static final Map<String, Properties> SETTINGS = new HashMap<>();
+
+  /** Static methods only. */
+  private DataSourceRegistry() {
+  }
+
+  /**
+   * Get the pool for a database, creating it the first time it is asked
+   * for. Every call must be matched by a call to <code>release</code>.
+   *
+   * @param settings driverClassName, url, username, password and any other
+   * <code>BasicDataSourceFactory</code> properties
+   * @return the shared pool
+   * @throws SQLException if the pool can't be created, or is already open
+   * with different settings
+   */
+  public static PooledDataSource acquire(final Properties settings)
+    throws SQLException {
+    final String key = settings.getProperty("driverClassName") + "|"
+      + settings.getProperty("url") + "|" + settings.getProperty("username");
+    final Properties properties = new Properties();
+    properties.putAll(DEFAULTS);
+    properties.putAll(settings);
+    synchronized (POOLS) {
+      PooledDataSource result = POOLS.get(key);
+      if (result != null) {
+        final List<String> conflicts = getConflicts(SETTINGS.get(key),
+          properties);
+        if (!conflicts.isEmpty()) {
+          throw new SQLException("JDBC pool " + key + " is already open "
+            + "with different settings for: " + conflicts);
+        }
+      } else {
+        try {
+          result = new PooledDataSource(key, (BasicDataSource)
+            BasicDataSourceFactory.createDataSource(properties));
+        } catch (Exception ex) {
+          throw new SQLException("Failed to create pool for: " + key, ex);
+        }
+        POOLS.put(key, result);
+        SETTINGS.put(key, properties);
+        LOGGER.log(Level.INFO, "Created JDBC pool: {0}", key);
+      }
+      result.addUsers(1);
+      return result;
+    }
+  }
+
+  /**
+   * Compare the settings of an open pool with the ones asked for. Only the
+   * names are given, so that a password doesn't end up in the log.
+   *
+   * @param open the settings the pool was created with
+   * @param wanted the settings asked for, with the defaults
+   * @return the names of the settings which differ, sorted
+   */
+  private static List<String> getConflicts(final Properties open,
+    final Properties wanted) {
+    final Set<String> names = new TreeSet<>(open.stringPropertyNames());
+    names.addAll(wanted.stringPropertyNames());
+    final List<String> result = new ArrayList<>();
+    for (String name : names) {
+      if (!Objects.equals(open.getProperty(name),
+        wanted.getProperty(name))) {
+        result.add(name);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Give back a pool, closing it if nobody else is using it. Anything else
+   * is ignored.
+   *
+   * @param dataSource a pool returned by <code>acquire</code>
+   */
+  public static void release(final DataSource dataSource) {
+    if (!(dataSource instanceof PooledDataSource)) {
+      return;
+    }
+    final PooledDataSource pooled = (PooledDataSource) dataSource;
+    synchronized (POOLS) {
+      if (POOLS.get(pooled.getKey()) != pooled
+        || pooled.addUsers(-1) > 0) {
+        return;
+      }
+      POOLS.remove(pooled.getKey());
+      SETTINGS.remove(pooled.getKey());
+    }
+    try {
+      pooled.getPool().close();
+      LOGGER.log(Level.INFO, "Closed JDBC pool: {0}", pooled.getKey());
+    } catch (SQLException ex) {
+      LOGGER.log(Level.WARNING, "Failed to close JDBC pool: "
+        + pooled.getKey(), ex);
+    }
+  }
+
+  /**
+   * @return the pools currently open
+   */
+  public static List<PooledDataSource> getPools() {
+    synchronized (POOLS) {
+      return new ArrayList<>(POOLS.values());
+    }
+  }
+
+  /**
+   * @return the number of pools currently open
+   */
+  public static int size() {
+    synchronized (POOLS) {
+      return POOLS.size();
+    }
+  }
+}
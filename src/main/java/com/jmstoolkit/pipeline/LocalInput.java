@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.function.Consumer;
+import javax.jms.Message;
+
+/**
+ * The in-memory input of a plugin which other plugins in the same Pipeline
+ * send to directly, without a trip through the broker. Messages wait in a
+ * bounded {@link WorkQueue} and are handed to the plugin by its own
+ * threads, so the sender never runs the receiver's work. When the queue is
+ * full <code>offer</code> refuses the message and the sender uses the
+ * broker.
+ *
+ * @author Scott Douglass
+ */
+final class LocalInput {
+
+  /** Messages waiting to be handled. */
+  private final WorkQueue queue;
+
+  /**
+   *
+   * @param name the plugin name, for thread names
+   * @param capacity the most messages waiting
+   * @param threads the number of threads handling messages
+   * @param inHandler handles one message
+   */
+  LocalInput(final String name, final int capacity, final int threads,
+    final Consumer<Message> inHandler) {
+    this.queue = new WorkQueue(name + "-local", capacity, threads, inHandler);
+  }
+
+  /**
+   * Queue a message, without waiting.
+   *
+   * @param message the message
+   * @return false if the input is full or closed
+   */
+  boolean offer(final Message message) {
+    return queue.offer(message);
+  }
+
+  /**
+   * Stop accepting messages and wait for the queued ones to be handled.
+   */
+  void close() {
+    queue.close();
+  }
+
+  /**
+   * @return the number of messages waiting
+   */
+  int size() {
+    return queue.size();
+  }
+}
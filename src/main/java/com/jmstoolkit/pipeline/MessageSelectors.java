@@ -0,0 +1,410 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Checks the syntax of a JMS message selector, the SQL 92 conditional
+ * expression subset described by the <code>javax.jms.Message</code>
+ * javadoc. The broker only parses a selector when a consumer is created,
+ * which for a plugin is after it has been deployed, so a typo would leave a
+ * plugin that can't start. Checking when the action message is read lets
+ * the deployment fail instead.
+ *
+ * Only syntax is checked, not the types of the operands, which the JMS
+ * provider may treat more or less strictly.
+ *
+ * @author Scott Douglass
+ */
+final class MessageSelectors {
+
+  /** Words which can't be identifiers. */
+  private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+    "NOT", "AND", "OR", "BETWEEN", "LIKE", "IN", "IS", "ESCAPE", "NULL",
+    "TRUE", "FALSE"));
+  /** Comparison operators. */
+  private static final Set<String> COMPARISONS = new HashSet<>(Arrays.asList(
+    "=", "<>", "<", ">", "<=", ">="));
+
+  /** Kinds of token. */
+  private enum Kind {
+    /** A message property or header name. */
+    IDENTIFIER,
+    /** A reserved word, upper case. */
+    WORD,
+    /** A quoted String. */
+    STRING,
+    /** An exact or approximate number. */
+    NUMBER,
+    /** An operator or parenthesis. */
+    SYMBOL,
+    /** The end of the selector. */
+    END
+  }
+
+  /** One token of the selector. */
+  private static final class Token {
+
+    /** What the token is. */
+    private final Kind kind;
+    /** Its text, upper case for words. */
+    private final String text;
+    /** Where it starts in the selector. */
+    private final int position;
+
+    /**
+     *
+     * @param inKind what the token is
+     * @param inText its text
+     * @param inPosition where it starts
+     */
+    Token(final Kind inKind, final String inText, final int inPosition) {
+      this.kind = inKind;
+      this.text = inText;
+      this.position = inPosition;
+    }
+  }
+
+  /** The selector. */
+  private final String selector;
+  /** The tokens of the selector, ending with an END token. */
+  private final List<Token> tokens = new ArrayList<>();
+  /** The index of the next token. */
+  private int next;
+
+  /**
+   *
+   * @param inSelector the selector
+   */
+  private MessageSelectors(final String inSelector) {
+    this.selector = inSelector;
+  }
+
+  /**
+   * Check a selector.
+   *
+   * @param selector the selector
+   * @throws IllegalArgumentException if it isn't a valid selector
+   */
+  static void validate(final String selector) {
+    if (selector == null || selector.trim().isEmpty()) {
+      throw new IllegalArgumentException("Empty selector");
+    }
+    final MessageSelectors parser = new MessageSelectors(selector);
+    parser.tokenize();
+    parser.orExpression();
+    parser.expect(Kind.END, null);
+  }
+
+  /**
+   * Split the selector into tokens.
+   */
+  private void tokenize() {
+    int i = 0;
+    final int length = selector.length();
+    while (i < length) {
+      final char c = selector.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '\'') {
+        i = string(i);
+      } else if (Character.isDigit(c)
+        || (c == '.' && i + 1 < length
+        && Character.isDigit(selector.charAt(i + 1)))) {
+        i = number(i);
+      } else if (Character.isJavaIdentifierStart(c)) {
+        int end = i + 1;
+        while (end < length
+          && Character.isJavaIdentifierPart(selector.charAt(end))) {
+          end++;
+        }
+        final String word = selector.substring(i, end);
+        final String upper = word.toUpperCase(Locale.ROOT);
+        if (RESERVED.contains(upper)) {
+          tokens.add(new Token(Kind.WORD, upper, i));
+        } else {
+          tokens.add(new Token(Kind.IDENTIFIER, word, i));
+        }
+        i = end;
+      } else if ((c == '<' || c == '>') && i + 1 < length
+        && (selector.charAt(i + 1) == '=' || (c == '<'
+        && selector.charAt(i + 1) == '>'))) {
+        tokens.add(new Token(Kind.SYMBOL, selector.substring(i, i + 2), i));
+        i += 2;
+      } else if ("=<>+-*/(),".indexOf(c) >= 0) {
+        tokens.add(new Token(Kind.SYMBOL, String.valueOf(c), i));
+        i++;
+      } else {
+        throw error("Unexpected character '" + c + "'", i);
+      }
+    }
+    tokens.add(new Token(Kind.END, "", length));
+  }
+
+  /**
+   * Read a quoted String, in which a quote is written as two quotes.
+   *
+   * @param start the position of the opening quote
+   * @return the position after the closing quote
+   */
+  private int string(final int start) {
+    int i = start + 1;
+    while (i < selector.length()) {
+      if (selector.charAt(i) == '\'') {
+        if (i + 1 < selector.length() && selector.charAt(i + 1) == '\'') {
+          i += 2;
+        } else {
+          tokens.add(new Token(Kind.STRING,
+            selector.substring(start + 1, i).replace("''", "'"), start));
+          return i + 1;
+        }
+      } else {
+        i++;
+      }
+    }
+    throw error("Unterminated string", start);
+  }
+
+  /**
+   * Read an exact or approximate numeric literal: digits with an optional
+   * decimal point, exponent, and L, F or D suffix.
+   *
+   * @param start the position of the first character
+   * @return the position after the number
+   */
+  private int number(final int start) {
+    int i = start;
+    final int length = selector.length();
+    boolean exact = true;
+    while (i < length && Character.isDigit(selector.charAt(i))) {
+      i++;
+    }
+    if (i < length && selector.charAt(i) == '.') {
+      exact = false;
+      i++;
+      while (i < length && Character.isDigit(selector.charAt(i))) {
+        i++;
+      }
+    }
+    if (i < length && (selector.charAt(i) == 'e'
+      || selector.charAt(i) == 'E')) {
+      exact = false;
+      i++;
+      if (i < length && (selector.charAt(i) == '+'
+        || selector.charAt(i) == '-')) {
+        i++;
+      }
+      final int digits = i;
+      while (i < length && Character.isDigit(selector.charAt(i))) {
+        i++;
+      }
+      if (i == digits) {
+        throw error("Bad exponent", start);
+      }
+    }
+    if (i < length) {
+      final char suffix = Character.toUpperCase(selector.charAt(i));
+      if ((suffix == 'L' && exact) || suffix == 'F' || suffix == 'D') {
+        i++;
+      }
+    }
+    if (i < length && Character.isJavaIdentifierPart(selector.charAt(i))) {
+      throw error("Bad number", start);
+    }
+    tokens.add(new Token(Kind.NUMBER, selector.substring(start, i), start));
+    return i;
+  }
+
+  /**
+   * or_expression := and_expression { OR and_expression }.
+   */
+  private void orExpression() {
+    andExpression();
+    while (accept(Kind.WORD, "OR")) {
+      andExpression();
+    }
+  }
+
+  /**
+   * and_expression := not_expression { AND not_expression }.
+   */
+  private void andExpression() {
+    notExpression();
+    while (accept(Kind.WORD, "AND")) {
+      notExpression();
+    }
+  }
+
+  /**
+   * not_expression := NOT not_expression | predicate.
+   */
+  private void notExpression() {
+    if (accept(Kind.WORD, "NOT")) {
+      notExpression();
+    } else {
+      predicate();
+    }
+  }
+
+  /**
+   * predicate := arithmetic [ comparison arithmetic
+   * | [NOT] BETWEEN arithmetic AND arithmetic
+   * | [NOT] IN ( string {, string} )
+   * | [NOT] LIKE string [ESCAPE string]
+   * | IS [NOT] NULL ].
+   */
+  private void predicate() {
+    arithmetic();
+    final Token token = peek();
+    if (token.kind == Kind.SYMBOL && COMPARISONS.contains(token.text)) {
+      next++;
+      arithmetic();
+    } else if (accept(Kind.WORD, "IS")) {
+      accept(Kind.WORD, "NOT");
+      expect(Kind.WORD, "NULL");
+    } else {
+      final boolean not = accept(Kind.WORD, "NOT");
+      if (accept(Kind.WORD, "BETWEEN")) {
+        arithmetic();
+        expect(Kind.WORD, "AND");
+        arithmetic();
+      } else if (accept(Kind.WORD, "IN")) {
+        expect(Kind.SYMBOL, "(");
+        do {
+          expect(Kind.STRING, null);
+        } while (accept(Kind.SYMBOL, ","));
+        expect(Kind.SYMBOL, ")");
+      } else if (accept(Kind.WORD, "LIKE")) {
+        expect(Kind.STRING, null);
+        if (accept(Kind.WORD, "ESCAPE")) {
+          final Token escape = expect(Kind.STRING, null);
+          if (escape.text.length() != 1) {
+            throw error("ESCAPE must be one character", escape.position);
+          }
+        }
+      } else if (not) {
+        throw error("Expected BETWEEN, IN or LIKE after NOT", peek().position);
+      }
+    }
+  }
+
+  /**
+   * arithmetic := term { (+|-) term }.
+   */
+  private void arithmetic() {
+    term();
+    while (accept(Kind.SYMBOL, "+") || accept(Kind.SYMBOL, "-")) {
+      term();
+    }
+  }
+
+  /**
+   * term := unary { (*|/) unary }.
+   */
+  private void term() {
+    unary();
+    while (accept(Kind.SYMBOL, "*") || accept(Kind.SYMBOL, "/")) {
+      unary();
+    }
+  }
+
+  /**
+   * unary := (+|-) unary | primary.
+   */
+  private void unary() {
+    if (accept(Kind.SYMBOL, "+") || accept(Kind.SYMBOL, "-")) {
+      unary();
+    } else {
+      primary();
+    }
+  }
+
+  /**
+   * primary := ( or_expression ) | identifier | literal.
+   */
+  private void primary() {
+    final Token token = peek();
+    if (accept(Kind.SYMBOL, "(")) {
+      orExpression();
+      expect(Kind.SYMBOL, ")");
+    } else if (token.kind == Kind.IDENTIFIER || token.kind == Kind.STRING
+      || token.kind == Kind.NUMBER) {
+      next++;
+    } else if (!accept(Kind.WORD, "TRUE") && !accept(Kind.WORD, "FALSE")) {
+      throw error(token.kind == Kind.END ? "Unexpected end"
+        : "Unexpected '" + token.text + "'", token.position);
+    }
+  }
+
+  /**
+   * @return the next token, without consuming it
+   */
+  private Token peek() {
+    return tokens.get(next);
+  }
+
+  /**
+   * Consume the next token if it is the one given.
+   *
+   * @param kind the kind of token
+   * @param text its text
+   * @return true if it was consumed
+   */
+  private boolean accept(final Kind kind, final String text) {
+    final Token token = peek();
+    if (token.kind == kind && text.equals(token.text)) {
+      next++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Consume the next token, which has to be the one given.
+   *
+   * @param kind the kind of token
+   * @param text its text, null for any
+   * @return the token
+   */
+  private Token expect(final Kind kind, final String text) {
+    final Token token = peek();
+    if (token.kind != kind || (text != null && !text.equals(token.text))) {
+      final String wanted = text == null ? kind.name().toLowerCase() : text;
+      throw error("Expected " + (kind == Kind.END ? "end" : wanted)
+        + " but found " + (token.kind == Kind.END ? "end"
+        : "'" + token.text + "'"), token.position);
+    }
+    next++;
+    return token;
+  }
+
+  /**
+   *
+   * @param message what is wrong
+   * @param position where
+   * @return the exception to throw
+   */
+  private IllegalArgumentException error(final String message,
+    final int position) {
+    return new IllegalArgumentException(message + " at " + position
+      + " in selector: " + selector);
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.jms.Message;
+
+/**
+ * Lanes which a plugin's messages are spread over by partition key. Each
+ * lane is a bounded {@link WorkQueue} with a single thread, and a key
+ * always hashes to the same lane, so the messages of a key are handled one
+ * at a time in the order they were submitted while different keys run in
+ * parallel. A full lane makes <code>submit</code> wait, which holds back
+ * the consumer, and so the broker, rather than reordering anything.
+ *
+ * @author Scott Douglass
+ */
+final class PartitionLanes {
+
+  /** The lanes. */
+  private final List<WorkQueue> queues;
+
+  /**
+   *
+   * @param name the plugin name, for thread names
+   * @param count the number of lanes
+   * @param capacity the most messages waiting in a lane
+   * @param handler handles one message
+   */
+  PartitionLanes(final String name, final int count, final int capacity,
+    final Consumer<Message> handler) {
+    this.queues = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      queues.add(new WorkQueue(name + "-lane-" + i, capacity, 1, handler));
+    }
+  }
+
+  /**
+   * The lane of a key. The hash code is mixed first, so keys which differ
+   * only in their last characters still spread over the lanes.
+   *
+   * @param key the partition key
+   * @param lanes the number of lanes
+   * @return the lane, from 0 to lanes - 1
+   */
+  static int lane(final String key, final int lanes) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return Math.floorMod(h, lanes);
+  }
+
+  /**
+   * Queue a message on the lane of its key, waiting while the lane is full.
+   *
+   * @param key the partition key
+   * @param message the message
+   * @return false if the lanes were closed, or the thread interrupted,
+   * before the message was queued
+   */
+  boolean submit(final String key, final Message message) {
+    return queues.get(lane(key, queues.size())).put(message);
+  }
+
+  /**
+   * Stop accepting messages and wait for the queued ones to be handled.
+   * The lanes go on with their messages while an earlier one is waited for.
+   */
+  void close() {
+    for (WorkQueue lane : queues) {
+      lane.close();
+    }
+  }
+
+  /**
+   * @return the number of lanes
+   */
+  int getLanes() {
+    return queues.size();
+  }
+
+  /**
+   * @param lane the lane number
+   * @return the number of messages waiting in the lane
+   */
+  int size(final int lane) {
+    return queues.get(lane).size();
+  }
+
+  /**
+   * @return the number of messages waiting in all lanes
+   */
+  int size() {
+    int result = 0;
+    for (WorkQueue lane : queues) {
+      result += lane.size();
+    }
+    return result;
+  }
+
+  /**
+   * @param lane the lane number
+   * @return the number of messages the lane has handled
+   */
+  long getHandled(final int lane) {
+    return queues.get(lane).getHandled();
+  }
+
+  /**
+   * How unevenly the keys spread: the busiest lane's messages as a
+   * percentage of the average lane's. 100 is even, lanes * 100 means one
+   * lane does everything.
+   *
+   * @return the skew, 0 before any message
+   */
+  long getSkew() {
+    long total = 0;
+    long most = 0;
+    for (WorkQueue lane : queues) {
+      total += lane.getHandled();
+      most = Math.max(most, lane.getHandled());
+    }
+    return total == 0 ? 0 : most * 100 * queues.size() / total;
+  }
+}
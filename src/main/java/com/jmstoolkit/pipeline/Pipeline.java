@@ -22,14 +22,13 @@ import org.springframework.jms.listener.DefaultMessageListenerContainer;
 import com.jmstoolkit.Settings;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Map;
 import java.util.logging.Level;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.io.SAXReader;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 
@@ -119,30 +118,26 @@ public class Pipeline extends AbstractPipeline {
       try {
         final String xml = ((TextMessage) message).getText();
         final Document doc = getAction(xml);
-        final String name = trim(doc.valueOf("//plugin/name"));
-        final String action = trim(doc.valueOf("//plugin/action"));
+        final String name = trim(X_NAME.valueOf(doc));
+        final String action = trim(X_ACTION.valueOf(doc));
         if (ACTION_NEW.equalsIgnoreCase(action)) {
           plugin = getPlugin(doc);
           plugin.init(); // starts the MessageListener
-          getPlugins().put(name, plugin);
+          addPlugin(name, plugin);
           //Save file
           saveConfigMessage(name, xml);
         } else if (ACTION_STOP.equalsIgnoreCase(action)) {
-          plugin = getPlugins().get(name);
-          plugin.stop(); // stops the MessageListener
-          getPlugins().remove(name);
+          removePlugin(name); // stops the MessageListener
           removeConfigMessage(name);
         } else if (ACTION_UPDATE.equalsIgnoreCase(action)) {
           // stop
-          plugin = getPlugins().get(name);
-          plugin.stop();
-          getPlugins().remove(name);
+          removePlugin(name);
           // start
           plugin = getPlugin(doc);
           plugin.init(); // starts the MessageListener
-          getPlugins().put(name, plugin);
+          addPlugin(name, plugin);
           // save, but change update to new
-          doc.selectSingleNode("//plugin/action").setText(ACTION_NEW);
+          X_ACTION.selectSingleNode(doc).setText(ACTION_NEW);
           saveConfigMessage(name, doc.asXML());
         } else {
           throw new PipelineException("Unknown action requested: " + action);
@@ -177,15 +172,13 @@ public class Pipeline extends AbstractPipeline {
     System.out.println("############################################");
 
     // Below will all bomb with DocumentException
-    // enable validation
-    final SAXReader saxReader = new SAXReader(isValidated());
     // Validation is done using the JDK's bundled xerces implementation
     // against a DTD. The DTD should be in the user.dir location!
-    final Document doc = saxReader.read(new StringReader(xml));
-    final String name = trim(doc.valueOf("//plugin/name"));
-    final String action = trim(doc.valueOf("//plugin/action"));
-    final String type = trim(doc.valueOf("//plugin/type"));
-    final String xversion = trim(doc.valueOf("//plugin/version"));
+    final Document doc = XMLParsers.parse(xml, isValidated());
+    final String name = trim(X_NAME.valueOf(doc));
+    final String action = trim(X_ACTION.valueOf(doc));
+    final String type = trim(X_TYPE.valueOf(doc));
+    final String xversion = trim(X_VERSION.valueOf(doc));
 
     LOG.log(Level.INFO,
     "Action message received: {0}, for service name: {1} and service type: {2}",
@@ -280,9 +273,7 @@ public class Pipeline extends AbstractPipeline {
   public final Integer killPlugin(final String name) {
     Integer result = 1;
     if (this.getPlugins().containsKey(name)) {
-      final Plugin plugin = this.getPlugins().get(name);
-      plugin.stop();
-      this.getPlugins().remove(name);
+      removePlugin(name);
       //plugin = null;
       result = 0;
       LOG.log(Level.INFO, "Killed Plugin: {1}", name);
@@ -290,6 +281,71 @@ public class Pipeline extends AbstractPipeline {
     return result;
   }
 
+  /**
+   *
+   * @param name of the plugin
+   * @return the plugin counters as comma separated name=value pairs
+   */
+  @ManagedOperation
+  public final String getPluginStatistics(final String name) {
+    String result = "";
+    if (getPlugins().containsKey(name)) {
+      final StringBuilder stats = new StringBuilder();
+      for (Map.Entry<String, Long> stat
+        : getPlugins().get(name).getStatistics().entrySet()) {
+        if (stats.length() > 0) {
+          stats.append(",");
+        }
+        stats.append(stat.getKey());
+        stats.append("=");
+        stats.append(stat.getValue());
+      }
+      result = stats.toString();
+    }
+    return result;
+  }
+
+  /**
+   *
+   * @param name of the plugin
+   * @param statistic name of the counter
+   * @return the counter value, or -1 if there is no such plugin or counter
+   */
+  @ManagedOperation
+  public final Long getPluginStatistic(final String name,
+    final String statistic) {
+    Long result = null;
+    if (getPlugins().containsKey(name)) {
+      result = getPlugins().get(name).getStatistics().get(statistic);
+    }
+    return (result == null) ? -1L : result;
+  }
+
+  /**
+   *
+   * @return the counters of each shared JDBC pool as the pool key followed
+   * by comma separated name=value pairs, one pool per line
+   */
+  @ManagedAttribute
+  public final String getDataSourceStatistics() {
+    final StringBuilder stats = new StringBuilder();
+    for (PooledDataSource pool : DataSourceRegistry.getPools()) {
+      if (stats.length() > 0) {
+        stats.append("\n");
+      }
+      stats.append(pool.getKey());
+      String separator = ": ";
+      for (Map.Entry<String, Long> stat : pool.getStatistics().entrySet()) {
+        stats.append(separator);
+        stats.append(stat.getKey());
+        stats.append("=");
+        stats.append(stat.getValue());
+        separator = ",";
+      }
+    }
+    return stats.toString();
+  }
+
   /**
    * @return the VERSION
    */
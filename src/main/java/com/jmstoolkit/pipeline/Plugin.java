@@ -14,6 +14,8 @@
  */
 package com.jmstoolkit.pipeline;
 
+import java.util.Collections;
+import java.util.Map;
 import javax.jms.MessageListener;
 
 /**
@@ -47,4 +49,14 @@ public interface Plugin extends MessageListener {
    * @return the count of operations
    */
   Integer getOperationCount();
+
+  /**
+   * Gets the counters kept by the <code>Plugin</code>, for monitoring. None
+   * unless the implementation keeps some.
+   *
+   * @return the counter names and their values
+   */
+  default Map<String, Long> getStatistics() {
+    return Collections.emptyMap();
+  }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import org.springframework.jms.core.MessageCreator;
+
+/**
+ * One JMS <code>Session</code> and <code>MessageConsumer</code> pair owned by
+ * an {@link AbstractPlugin}. A plugin runs one or more of these, each of which
+ * is called on its own provider thread, and all of which hand the received
+ * messages to the same plugin instance.
+ *
+ * When the plugin acknowledges in batches the consumer counts the messages
+ * handled since its last acknowledgement or commit. The plugin's timer may
+ * complete a batch from another thread, so the session is only used while
+ * holding this consumer's lock.
+ *
+ * @author Scott Douglass
+ */
+final class PluginConsumer implements MessageListener {
+
+  /** Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(PluginConsumer.class.getName());
+  /** The plugin doing the work. */
+  private final AbstractPlugin plugin;
+  /** The JMS Session, only ever used by the provider thread. */
+  private final Session session;
+  /** The JMS MessageConsumer created on the session. */
+  private final MessageConsumer consumer;
+  /** When this consumer last finished a message. */
+  private volatile long lastUsed = System.currentTimeMillis();
+  /** Producers on the session by Destination, created on first use. */
+  private final Map<Destination, MessageProducer> producers
+    = new HashMap<>();
+  /** The last message handled and not yet acknowledged. */
+  private Message last;
+  /** The number of messages handled and not yet acknowledged. */
+  private int pending;
+
+  /**
+   *
+   * @param inPlugin the plugin messages are handed to
+   * @param inSession the JMS Session
+   * @param inConsumer the JMS MessageConsumer created on the session
+   */
+  PluginConsumer(final AbstractPlugin inPlugin, final Session inSession,
+    final MessageConsumer inConsumer) {
+    this.plugin = inPlugin;
+    this.session = inSession;
+    this.consumer = inConsumer;
+  }
+
+  /**
+   *
+   * @param message the JMS Message received
+   */
+  @Override
+  public void onMessage(final Message message) {
+    if (!plugin.isBatchAcknowledged()) {
+      try {
+        plugin.dispatch(message, this);
+      } finally {
+        lastUsed = System.currentTimeMillis();
+      }
+      return;
+    }
+    synchronized (this) {
+      try {
+        plugin.dispatch(message, this);
+        last = message;
+        if (++pending >= plugin.getAckBatchSize()) {
+          complete();
+        }
+      } catch (RuntimeException ex) {
+        LOGGER.log(Level.SEVERE, "Failed to handle message for "
+          + plugin.getName() + ", rolling back " + (pending + 1)
+          + " message(s)", ex);
+        rollback();
+      } catch (JMSException ex) {
+        LOGGER.log(Level.SEVERE, "Failed to acknowledge messages for "
+          + plugin.getName(), ex);
+        rollback();
+      } finally {
+        lastUsed = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Acknowledges, or commits, the messages handled so far.
+   *
+   * @throws JMSException on JMS error
+   */
+  synchronized void complete() throws JMSException {
+    if (pending == 0) {
+      return;
+    }
+    if (session.getTransacted()) {
+      session.commit();
+    } else {
+      last.acknowledge();
+    }
+    pending = 0;
+    last = null;
+    plugin.countCommit();
+  }
+
+  /**
+   * Rolls back, or recovers, the messages handled since the last commit so
+   * that they are delivered again.
+   */
+  private void rollback() {
+    pending = 0;
+    last = null;
+    try {
+      if (session.getTransacted()) {
+        session.rollback();
+      } else {
+        session.recover();
+      }
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to roll back messages for "
+        + plugin.getName(), ex);
+    }
+  }
+
+  /**
+   * Sends a message on this consumer's session, with the producer kept for
+   * the Destination. Only called by the thread handling a message.
+   *
+   * @param destination where to send the message
+   * @param creator creates the message
+   * @param listener told when the broker has the message, null to wait for
+   * it
+   * @throws JMSException on JMS error
+   */
+  void send(final Destination destination, final MessageCreator creator,
+    final CompletionListener listener) throws JMSException {
+    MessageProducer producer = producers.get(destination);
+    if (producer == null) {
+      producer = session.createProducer(destination);
+      producers.put(destination, producer);
+    }
+    final Message message = creator.createMessage(session);
+    if (listener == null) {
+      producer.send(message);
+    } else {
+      producer.send(message, listener);
+    }
+  }
+
+  /**
+   * Stops delivery and closes the consumer and its session. The JMS
+   * specification allows <code>close()</code> to be called from any thread, it
+   * blocks until a message being delivered has been handled. Messages handled
+   * but not yet acknowledged or committed are completed first.
+   *
+   * @throws JMSException on JMS error
+   */
+  void close() throws JMSException {
+    consumer.setMessageListener(null);
+    consumer.close();
+    synchronized (this) {
+      complete();
+      for (MessageProducer producer : producers.values()) {
+        producer.close();
+      }
+      producers.clear();
+    }
+    session.close();
+  }
+
+  /**
+   * @return the session
+   */
+  Session getSession() {
+    return session;
+  }
+
+  /**
+   * @return the consumer
+   */
+  MessageConsumer getConsumer() {
+    return consumer;
+  }
+
+  /**
+   * @return how long since this consumer last handled a message, in ms
+   */
+  long getIdleMillis() {
+    return System.currentTimeMillis() - lastUsed;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * A connection pool handed out by the {@link DataSourceRegistry}. It times
+ * how long callers wait for a connection, so a pool that is too small shows
+ * up in the statistics.
+ *
+ * @author Scott Douglass
+ */
+public final class PooledDataSource extends DelegatingDataSource {
+
+  /** The registry key: driver, url and username. */
+  private final String key;
+  /** The pool. */
+  private final BasicDataSource pool;
+  /** Number of plugins using this pool, guarded by the registry. */
+  private int users;
+  /** Connections handed out. */
+  private final LongAdder borrowed = new LongAdder();
+  /** Total time spent waiting for connections, in nanoseconds. */
+  private final LongAdder waitNanos = new LongAdder();
+  /** Longest wait for a connection, in nanoseconds. */
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  /**
+   *
+   * @param inKey the registry key
+   * @param inPool the pool
+   */
+  PooledDataSource(final String inKey, final BasicDataSource inPool) {
+    super(inPool);
+    this.key = inKey;
+    this.pool = inPool;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    final long start = System.nanoTime();
+    try {
+      return super.getConnection();
+    } finally {
+      waited(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public Connection getConnection(final String username,
+    final String password) throws SQLException {
+    final long start = System.nanoTime();
+    try {
+      return super.getConnection(username, password);
+    } finally {
+      waited(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   *
+   * @param nanos how long the caller waited
+   */
+  private void waited(final long nanos) {
+    borrowed.increment();
+    waitNanos.add(nanos);
+    long max = maxWaitNanos.get();
+    while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  /**
+   * @return the counter names and their values
+   */
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("users", (long) getUsers());
+    stats.put("active", (long) pool.getNumActive());
+    stats.put("idle", (long) pool.getNumIdle());
+    stats.put("maxActive", (long) pool.getMaxActive());
+    stats.put("borrowed", borrowed.sum());
+    stats.put("waitMillis", waitNanos.sum() / 1000000L);
+    stats.put("maxWaitMillis", maxWaitNanos.get() / 1000000L);
+    return stats;
+  }
+
+  /**
+   * @return the registry key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the underlying pool
+   */
+  BasicDataSource getPool() {
+    return pool;
+  }
+
+  /**
+   * @return the number of plugins using this pool
+   */
+  synchronized int getUsers() {
+    return users;
+  }
+
+  /**
+   *
+   * @param delta the change in the number of users
+   * @return the number of users after the change
+   */
+  synchronized int addUsers(final int delta) {
+    users += delta;
+    return users;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A JVM wide cache of compiled XSL stylesheets. <code>Templates</code> are
+ * thread safe, so every plugin using the same stylesheet shares one compiled
+ * copy and creates cheap <code>Transformer</code> instances from it. The
+ * cache holds at most <code>MAX_ENTRIES</code> stylesheets, the least
+ * recently used one is dropped to make room for another.
+ *
+ * This lives outside of the <code>com.jmstoolkit.pipeline.plugin</code>
+ * package on purpose: the {@link PluginClassLoader} loads that package child
+ * first, so a static there would be one per plugin instead of one per JVM.
+ *
+ * @author Scott Douglass
+ */
+public final class TemplatesCache {
+
+  /** XSL Transformer Factory, which is not thread safe. */
+  private static final TransformerFactory TRANSFORMER_FACTORY
+    = TransformerFactory.newInstance();
+  /** The most compiled stylesheets kept. */
+  public static final int MAX_ENTRIES = 256;
+  /**
+   * Compiled stylesheets keyed by the SHA-256 of the XSL text, least
+   * recently used first, only used while holding its lock.
+   */
+  private static final Map<String, Templates> TEMPLATES
+    = new LinkedHashMap<String, Templates>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<String, Templates> eldest) {
+        return size() > MAX_ENTRIES;
+      }
+    };
+
+  /** Static methods only. */
+  private TemplatesCache() {
+  }
+
+  /**
+   * Get the compiled form of a stylesheet, compiling it the first time it is
+   * seen.
+   *
+   * @param xsl the XSL text
+   * @return the compiled stylesheet
+   * @throws TransformerConfigurationException if the XSL doesn't compile
+   */
+  public static Templates getTemplates(final String xsl)
+    throws TransformerConfigurationException {
+    final String key = hash(xsl);
+    Templates result = get(key);
+    if (result == null) {
+      synchronized (TRANSFORMER_FACTORY) {
+        result = get(key);
+        if (result == null) {
+          result = TRANSFORMER_FACTORY.newTemplates(
+            new StreamSource(new StringReader(xsl)));
+          synchronized (TEMPLATES) {
+            TEMPLATES.put(key, result);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   *
+   * @param key the SHA-256 of the XSL text
+   * @return the compiled stylesheet, or null if it isn't cached
+   */
+  private static Templates get(final String key) {
+    synchronized (TEMPLATES) {
+      return TEMPLATES.get(key);
+    }
+  }
+
+  /**
+   * @return the number of compiled stylesheets in the cache
+   */
+  public static int size() {
+    synchronized (TEMPLATES) {
+      return TEMPLATES.size();
+    }
+  }
+
+  /**
+   * Empty the cache, stylesheets will be compiled again when next used.
+   */
+  public static void clear() {
+    synchronized (TEMPLATES) {
+      TEMPLATES.clear();
+    }
+  }
+
+  /**
+   *
+   * @param xsl the XSL text
+   * @return the SHA-256 of the text as a hex String
+   */
+  private static String hash(final String xsl) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256")
+        .digest(xsl.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+        hex.append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      // every JRE is required to have SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Message;
+
+/**
+ * A bounded queue of messages and the daemon threads which handle them,
+ * behind both {@link LocalInput} and {@link PartitionLanes}.
+ *
+ * Closing it refuses new messages and waits until the queued ones have been
+ * handled. The messages were already acknowledged, so they would be lost
+ * otherwise. It only gives up, and drops what is left, when no message at
+ * all was handled for a while, which means a handler is stuck.
+ *
+ * @author Scott Douglass
+ */
+final class WorkQueue {
+
+  /** Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(WorkQueue.class.getName());
+  /** How often waiting threads check whether the queue was closed, in ms. */
+  private static final long POLL_MILLIS = 100L;
+  /** How long <code>close</code> waits without any progress, in ms. */
+  private static final long STALL_MILLIS = 5000L;
+
+  /** What the messages are, for the log. */
+  private final String name;
+  /** Messages waiting to be handled. */
+  private final BlockingQueue<Message> queue;
+  /** The threads handling them. */
+  private final ExecutorService workers;
+  /** Handles one message. */
+  private final Consumer<Message> handler;
+  /** The messages handled. */
+  private final AtomicLong handled = new AtomicLong();
+  /** Set once no more messages are accepted. */
+  private volatile boolean closed;
+
+  /**
+   *
+   * @param inName the thread name, numbered if there are several threads
+   * @param capacity the most messages waiting
+   * @param threads the number of threads handling messages
+   * @param inHandler handles one message
+   */
+  WorkQueue(final String inName, final int capacity, final int threads,
+    final Consumer<Message> inHandler) {
+    this.name = inName;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.handler = inHandler;
+    final AtomicInteger count = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(threads, r -> {
+      final Thread thread = new Thread(r, threads == 1
+        ? inName : inName + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < threads; i++) {
+      workers.execute(this::work);
+    }
+  }
+
+  /**
+   * Queue a message, without waiting.
+   *
+   * @param message the message
+   * @return false if the queue is full or closed
+   */
+  boolean offer(final Message message) {
+    return !closed && queue.offer(message);
+  }
+
+  /**
+   * Queue a message, waiting while the queue is full.
+   *
+   * @param message the message
+   * @return false if the queue was closed, or the thread interrupted,
+   * before the message was queued
+   */
+  boolean put(final Message message) {
+    try {
+      while (!closed) {
+        if (queue.offer(message, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * Handle messages until the queue is closed and empty.
+   */
+  private void work() {
+    while (true) {
+      final Message message;
+      try {
+        message = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        return;
+      }
+      if (message == null) {
+        if (closed) {
+          return;
+        }
+      } else {
+        try {
+          handler.accept(message);
+        } catch (RuntimeException ex) {
+          LOGGER.log(Level.SEVERE, "Failed to handle message in " + name, ex);
+        }
+        handled.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Stop accepting messages and wait for the queued ones to be handled, for
+   * as long as they keep being handled.
+   */
+  void close() {
+    closed = true;
+    workers.shutdown();
+    try {
+      long last = handled.get();
+      while (!workers.awaitTermination(STALL_MILLIS, TimeUnit.MILLISECONDS)) {
+        final long now = handled.get();
+        if (now == last) {
+          LOGGER.log(Level.WARNING, "{0} is stuck, dropped {1} message(s)",
+            new Object[]{name, queue.size()});
+          workers.shutdownNow();
+          return;
+        }
+        last = now;
+      }
+    } catch (InterruptedException ex) {
+      LOGGER.log(Level.WARNING, "Interrupted, dropped {0} message(s) in {1}",
+        new Object[]{queue.size(), name});
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the number of messages waiting
+   */
+  int size() {
+    return queue.size();
+  }
+
+  /**
+   * @return the number of messages handled
+   */
+  long getHandled() {
+    return handled.get();
+  }
+}
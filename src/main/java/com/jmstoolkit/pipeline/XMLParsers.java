@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.io.SAXReader;
+import org.xml.sax.InputSource;
+
+/**
+ * Reusable XML parsers for control and data messages. Creating a
+ * <code>SAXReader</code> creates a new <code>SAXParserFactory</code> and
+ * <code>XMLReader</code> the first time it reads, so each thread keeps one
+ * validating and one non-validating reader and reuses them. A
+ * <code>SAXReader</code> is not thread safe, so they never leave their
+ * thread.
+ *
+ * Every reader resolves local DTD files (action.dtd, enrich.dtd,
+ * file.dtd...) through a shared cache, so a DTD is read from disk once per
+ * JVM instead of once per message. The system id comes from the message, so
+ * nothing else is cached: a validating reader reads any other entity every
+ * time, and a non-validating reader, which data messages go through, reads
+ * none and sees an empty one instead. Like {@link TemplatesCache} this
+ * lives outside the plugin package so that every plugin shares it.
+ *
+ * @author Scott Douglass
+ */
+public final class XMLParsers {
+
+  /** Local DTD text keyed by system id. */
+  private static final Map<String, byte[]> DTDS = new ConcurrentHashMap<>();
+  /** Nothing, for entities a non-validating reader doesn't read. */
+  private static final byte[] EMPTY = new byte[0];
+  /** This thread's validating reader. */
+  private static final ThreadLocal<SAXReader> VALIDATING
+    = ThreadLocal.withInitial(() -> newReader(true));
+  /** This thread's non-validating reader. */
+  private static final ThreadLocal<SAXReader> NON_VALIDATING
+    = ThreadLocal.withInitial(() -> newReader(false));
+
+  /** Static methods only. */
+  private XMLParsers() {
+  }
+
+  /**
+   * Parse an XML String with this thread's reader.
+   *
+   * @param xml the XML
+   * @param validate true to validate against the DOCTYPE's DTD
+   * @return the document
+   * @throws DocumentException if the XML can not be parsed or validated
+   */
+  public static Document parse(final String xml, final boolean validate)
+    throws DocumentException {
+    final SAXReader reader = validate
+      ? VALIDATING.get() : NON_VALIDATING.get();
+    return reader.read(new StringReader(xml));
+  }
+
+  /**
+   *
+   * @param validate true to validate against the DOCTYPE's DTD
+   * @return a new reader using the DTD cache
+   */
+  private static SAXReader newReader(final boolean validate) {
+    final SAXReader reader = new SAXReader(validate);
+    reader.setEntityResolver(
+      (publicId, systemId) -> resolve(publicId, systemId, validate));
+    return reader;
+  }
+
+  /**
+   * Resolve an external entity: a local DTD file from the cache, reading it
+   * the first time, anything else only for a validating reader. Relative
+   * system ids are relative to user.dir, as they are for a document read
+   * from a String.
+   *
+   * @param publicId ignored
+   * @param systemId the location of the entity
+   * @param validate true for a validating reader
+   * @return the entity
+   * @throws IOException if the entity can't be read
+   */
+  private static InputSource resolve(final String publicId,
+    final String systemId, final boolean validate) throws IOException {
+    if (systemId == null) {
+      return null;
+    }
+    final URI uri = toURI(systemId);
+    byte[] dtd;
+    if ("file".equals(uri.getScheme())
+      && uri.getPath().toLowerCase().endsWith(".dtd")) {
+      dtd = DTDS.get(systemId);
+      if (dtd == null) {
+        dtd = read(uri);
+        DTDS.putIfAbsent(systemId, dtd);
+      }
+    } else {
+      dtd = validate ? read(uri) : EMPTY;
+    }
+    final InputSource source = new InputSource(new ByteArrayInputStream(dtd));
+    source.setPublicId(publicId);
+    source.setSystemId(systemId);
+    return source;
+  }
+
+  /**
+   *
+   * @param systemId the location of an entity
+   * @return it as an absolute URI
+   * @throws IOException if it isn't a URI
+   */
+  private static URI toURI(final String systemId) throws IOException {
+    try {
+      final URI uri = URI.create(systemId.replace(" ", "%20"));
+      return uri.isAbsolute()
+        ? uri : new File(System.getProperty("user.dir")).toURI().resolve(uri);
+    } catch (IllegalArgumentException ex) {
+      throw new IOException("Bad system id: " + systemId, ex);
+    }
+  }
+
+  /**
+   *
+   * @param uri the location of the entity
+   * @return its contents
+   * @throws IOException if it can't be read
+   */
+  private static byte[] read(final URI uri) throws IOException {
+    try (InputStream in = uri.toURL().openStream()) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * @return the number of cached DTDs
+   */
+  public static int size() {
+    return DTDS.size();
+  }
+
+  /**
+   * Throw away every cached DTD, so they are read again, for instance after
+   * they have been edited.
+   */
+  public static void clear() {
+    DTDS.clear();
+  }
+}
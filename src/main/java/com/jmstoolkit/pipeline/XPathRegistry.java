@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dom4j.DocumentHelper;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.XPath;
+
+/**
+ * A JVM wide registry of compiled XPath expressions. Calling
+ * <code>valueOf(String)</code> on a dom4j <code>Node</code> parses the
+ * expression every time, so paths used for every message are compiled once,
+ * at configuration time, and the <code>XPath</code> is reused.
+ *
+ * Left alone, a dom4j <code>XPath</code> takes its namespace prefixes from
+ * each node it is evaluated on, by replacing its namespace context, which
+ * threads sharing it race on and which keeps the last document reachable.
+ * So the ones handed out here get a fixed, empty, namespace map when they
+ * are compiled: prefixed names don't resolve, use
+ * <code>*[local-name()='name']</code> for elements in a namespace. Their
+ * namespaces, variables or functions must not be changed.
+ *
+ * Like {@link TemplatesCache} this lives outside the plugin package so that
+ * every plugin shares it.
+ *
+ * @author Scott Douglass
+ */
+public final class XPathRegistry {
+
+  /** Compiled expressions keyed by their text. */
+  private static final Map<String, XPath> XPATHS = new ConcurrentHashMap<>();
+
+  /** Static methods only. */
+  private XPathRegistry() {
+  }
+
+  /**
+   * Get the compiled form of an XPath expression, compiling it the first
+   * time it is seen.
+   *
+   * @param expression the XPath expression
+   * @return the compiled expression
+   * @throws InvalidXPathException if the expression doesn't compile
+   */
+  public static XPath get(final String expression) {
+    XPath result = XPATHS.get(expression);
+    if (result == null) {
+      result = DocumentHelper.createXPath(expression);
+      result.setNamespaceURIs(Collections.emptyMap());
+      final XPath existing = XPATHS.putIfAbsent(expression, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of compiled expressions in the registry
+   */
+  public static int size() {
+    return XPATHS.size();
+  }
+
+  /**
+   * Throw away every compiled expression.
+   */
+  public static void clear() {
+    XPATHS.clear();
+  }
+}
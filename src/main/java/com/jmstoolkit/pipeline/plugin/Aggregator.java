@@ -0,0 +1,478 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import com.jmstoolkit.pipeline.XPathRegistry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.XPath;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which collects related messages into groups and publishes each group as
+ * one document, the root elements of its messages inside a
+ * <code>root</code> element.
+ *
+ * The work XML is an <code>aggregate</code> element with these optional
+ * settings:
+ * <ul>
+ * <li><code>key</code>: an XPath whose value groups the messages, the
+ * JMSCorrelationID if there is none,
+ * <li><code>count</code>: the number of messages in a group. Without it a
+ * group is complete when it has the <code>total</code> set by a
+ * {@link Splitter}, and the messages are put back in <code>sequence</code>
+ * order,
+ * <li><code>complete</code>: an XPath, true for the last message of a group,
+ * <li><code>timeout</code>: how long a group is open in ms, 60000 by
+ * default, after which what has arrived is published,
+ * <li><code>maxGroups</code>: the most open groups, 10000 by default. A new
+ * group beyond it publishes the oldest one early,
+ * <li><code>maxMessages</code>: the most messages in a group, 10000 by
+ * default,
+ * <li><code>maxChars</code>: the most characters of message text held in
+ * all the open groups together, 33554432 (64MB) by default. Beyond it the
+ * oldest groups are published early until the rest fit,
+ * <li><code>root</code>: the name of the root element, aggregate by default.
+ * </ul>
+ * The published message has the key as its JMSCorrelationID and the
+ * <code>count</code> and <code>complete</code> properties, complete being
+ * false for a group published by timeout or to make room.
+ *
+ * The timeouts of all the groups are kept in one {@link TimingWheel} driven
+ * by the plugin's timer. Open groups are held in memory only, a restart
+ * loses them.
+ *
+ * @author Scott Douglass
+ */
+public class Aggregator extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Aggregator.class.getName());
+  /** Message property holding the number of messages in a group. */
+  public static final String P_COUNT = "count";
+  /** Message property, false if a group was published unfinished. */
+  public static final String P_COMPLETE = "complete";
+  /** Default time a group is open in ms. */
+  public static final long D_TIMEOUT = 60000L;
+  /** Default number of open groups. */
+  public static final int D_MAX_GROUPS = 10000;
+  /** Default number of messages in a group. */
+  public static final int D_MAX_MESSAGES = 10000;
+  /** Default number of characters held in all the open groups. */
+  public static final long D_MAX_CHARS = 32L * 1024 * 1024;
+  /** The precision of the timeouts in ms. */
+  private static final long TICK_MILLIS = 100L;
+  /** The XML declaration and DOCTYPE of a message. */
+  private static final Pattern PROLOG = Pattern.compile(
+    "^\\s*(<\\?xml[^>]*\\?>)?\\s*(<!DOCTYPE[^>\\[]*(\\[[^\\]]*\\])?\\s*>)?");
+  /** The grouping XPath, null for the JMSCorrelationID. */
+  private XPath key;
+  /** The last message XPath, may be null. */
+  private XPath complete;
+  /** The number of messages in a group, 0 if not fixed. */
+  private int count;
+  /** How long a group is open in ms. */
+  private long timeout = D_TIMEOUT;
+  /** The most open groups. */
+  private int maxGroups = D_MAX_GROUPS;
+  /** The most messages in a group. */
+  private int maxMessages = D_MAX_MESSAGES;
+  /** The most characters held in all the open groups. */
+  private long maxChars = D_MAX_CHARS;
+  /** The characters held in the open groups, guarded by groups. */
+  private long buffered;
+  /** The root element name. */
+  private String root = "aggregate";
+  /** The open groups, oldest first. Locks the groups and the wheel. */
+  private final Map<String, Group> groups = new LinkedHashMap<>();
+  /** The group timeouts. */
+  private final TimingWheel<Group> wheel
+    = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+  /** Groups published complete. */
+  private final LongAdder completed = new LongAdder();
+  /** Groups published by timeout. */
+  private final LongAdder timedOut = new LongAdder();
+  /** Groups published early to make room. */
+  private final LongAdder evicted = new LongAdder();
+
+  /** The messages with one key. */
+  private static final class Group {
+
+    /** The key. */
+    private final String key;
+    /** The messages' root elements, by sequence or arrival. */
+    private final List<Part> parts = new ArrayList<>();
+    /** The characters of its messages. */
+    private long chars;
+    /** The number of messages expected, 0 if unknown. */
+    private int expected;
+    /** True once the last message has arrived. */
+    private boolean last;
+    /** The group's timeout. */
+    private TimingWheel.Timeout<Group> timeout;
+
+    /**
+     *
+     * @param inKey the key
+     */
+    Group(final String inKey) {
+      this.key = inKey;
+    }
+  }
+
+  /** One message of a group. */
+  private static final class Part {
+
+    /** Its order in the group. */
+    private final long order;
+    /** Its root element as XML. */
+    private final String xml;
+
+    /**
+     *
+     * @param inOrder its order in the group
+     * @param inXml its root element as XML
+     */
+    Part(final long inOrder, final String inXml) {
+      this.order = inOrder;
+      this.xml = inXml;
+    }
+  }
+
+  /**
+   * Constructor for creating a useful <code>Aggregator</code>.
+   *
+   * @param pluginName The human readable name for the Aggregator.
+   * @param inConfig The aggregate XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Aggregator(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      configure(XMLParsers.parse(inConfig, false));
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for aggregator: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (InvalidXPathException ex) {
+      LOGGER.log(Level.SEVERE, "Bad XPath: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   *
+   * @param work the aggregate XML
+   * @throws XMLTransformException if a number is bad
+   */
+  private void configure(final Document work) throws XMLTransformException {
+    final String keyPath = trim(work.valueOf("/aggregate/key"));
+    final String completePath = trim(work.valueOf("/aggregate/complete"));
+    key = keyPath.isEmpty() ? null : XPathRegistry.get(keyPath);
+    complete = completePath.isEmpty() ? null : XPathRegistry.get(completePath);
+    final String rootName = trim(work.valueOf("/aggregate/root"));
+    if (!rootName.isEmpty()) {
+      root = rootName;
+    }
+    try {
+      count = getInt(work, "count", 0);
+      timeout = getLong(work, "timeout", D_TIMEOUT);
+      maxGroups = getInt(work, "maxGroups", D_MAX_GROUPS);
+      maxMessages = getInt(work, "maxMessages", D_MAX_MESSAGES);
+      maxChars = getLong(work, "maxChars", D_MAX_CHARS);
+    } catch (NumberFormatException ex) {
+      throw new XMLTransformException("Bad number in aggregator: "
+        + getName(), ex);
+    }
+    if (count < 0 || timeout < 1 || maxGroups < 1 || maxMessages < 1
+      || maxChars < 1) {
+      throw new XMLTransformException("Bad limits in aggregator: "
+        + getName());
+    }
+  }
+
+  /**
+   *
+   * @param work the aggregate XML
+   * @param setting the element name
+   * @param defaultValue the value if the element is missing
+   * @return the value
+   */
+  private int getInt(final Document work, final String setting,
+    final int defaultValue) {
+    final String value = trim(work.valueOf("/aggregate/" + setting));
+    return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+  }
+
+  /**
+   *
+   * @param work the aggregate XML
+   * @param setting the element name
+   * @param defaultValue the value if the element is missing
+   * @return the value
+   */
+  private long getLong(final Document work, final String setting,
+    final long defaultValue) {
+    final String value = trim(work.valueOf("/aggregate/" + setting));
+    return value.isEmpty() ? defaultValue : Long.parseLong(value);
+  }
+
+  /**
+   * Starts the consumers, then turns the timing wheel every tick.
+   */
+  @Override
+  public void init() {
+    super.init();
+    getScheduler().scheduleWithFixedDelay(this::expire, TICK_MILLIS,
+      TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the consumers, then publishes the open groups unfinished.
+   */
+  @Override
+  public void stop() {
+    super.stop();
+    final List<Group> open;
+    synchronized (groups) {
+      open = new ArrayList<>(groups.values());
+      groups.clear();
+      buffered = 0;
+      for (Group group : open) {
+        wheel.cancel(group.timeout);
+      }
+    }
+    for (Group group : open) {
+      publish(group, false);
+    }
+  }
+
+  /**
+   * Publishes the groups which have timed out.
+   */
+  private void expire() {
+    final List<Group> expired;
+    synchronized (groups) {
+      expired = wheel.advance(System.currentTimeMillis());
+      for (Group group : expired) {
+        groups.remove(group.key);
+        buffered -= group.chars;
+      }
+    }
+    for (Group group : expired) {
+      timedOut.increment();
+      publish(group, false);
+    }
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Adds the
+   * message to its group, and publishes the group if it is complete.
+   *
+   * @param message The JMS Message received.
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage. TextMessages only please.",
+        messageId);
+      return;
+    }
+    try {
+      final String text = ((TextMessage) message).getText();
+      String groupKey = message.getJMSCorrelationID();
+      String xml;
+      boolean isLast = false;
+      if (key == null && complete == null) {
+        xml = PROLOG.matcher(text).replaceFirst("");
+      } else {
+        final Document doc = XMLParsers.parse(text, false);
+        xml = doc.getRootElement().asXML();
+        if (key != null) {
+          groupKey = key.valueOf(doc);
+        }
+        isLast = complete != null && complete.booleanValueOf(doc);
+      }
+      if (groupKey == null || groupKey.isEmpty()) {
+        groupKey = messageId;
+      }
+      final long order = message.propertyExists(Splitter.P_SEQUENCE)
+        ? message.getLongProperty(Splitter.P_SEQUENCE) : -1;
+      final int total = message.propertyExists(Splitter.P_TOTAL)
+        ? message.getIntProperty(Splitter.P_TOTAL) : 0;
+      final List<Group> ready = new ArrayList<>(2);
+      synchronized (groups) {
+        Group group = groups.get(groupKey);
+        if (group == null) {
+          if (groups.size() >= maxGroups) {
+            ready.add(evictOldest());
+          }
+          group = new Group(groupKey);
+          group.expected = count > 0 ? count : total;
+          group.timeout = wheel.schedule(group,
+            System.currentTimeMillis() + timeout);
+          groups.put(groupKey, group);
+        }
+        group.parts.add(new Part(order < 0 ? group.parts.size() : order, xml));
+        group.chars += xml.length();
+        buffered += xml.length();
+        group.last |= isLast;
+        if (group.last || group.parts.size() >= maxMessages
+          || (group.expected > 0 && group.parts.size() >= group.expected)) {
+          groups.remove(groupKey);
+          buffered -= group.chars;
+          wheel.cancel(group.timeout);
+          ready.add(group);
+        }
+        while (buffered > maxChars && !groups.isEmpty()) {
+          ready.add(evictOldest());
+        }
+      }
+      for (Group group : ready) {
+        final boolean done = group.last || (group.expected > 0
+          && group.parts.size() >= group.expected);
+        if (done) {
+          completed.increment();
+        }
+        publish(group, done);
+      }
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to read message: ", ex);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: ",
+        ex);
+    }
+  }
+
+  /**
+   * Close the oldest open group to make room, the caller publishes it.
+   * Called holding the groups lock.
+   *
+   * @return the group
+   */
+  private Group evictOldest() {
+    final Iterator<Group> oldest = groups.values().iterator();
+    final Group evict = oldest.next();
+    oldest.remove();
+    buffered -= evict.chars;
+    wheel.cancel(evict.timeout);
+    evicted.increment();
+    return evict;
+  }
+
+  /**
+   * Publish a group as one document.
+   *
+   * @param group the group, no longer open
+   * @param done true if it is complete
+   */
+  private void publish(final Group group, final boolean done) {
+    group.parts.sort((a, b) -> Long.compare(a.order, b.order));
+    final StringBuilder xml = new StringBuilder();
+    xml.append('<').append(root).append('>');
+    for (Part part : group.parts) {
+      xml.append(part.xml);
+    }
+    xml.append("</").append(root).append('>');
+    try {
+      send(inSession -> {
+        final TextMessage result = inSession.createTextMessage(xml.toString());
+        result.setIntProperty(P_COUNT, group.parts.size());
+        result.setBooleanProperty(P_COMPLETE, done);
+        return new BasicMessageProcessor(group.key).postProcessMessage(result);
+      });
+      LOGGER.log(Level.FINE, "{0} Aggregated {1} messages for: {2}",
+        new Object[]{getName(), group.parts.size(), group.key});
+    } catch (JmsException ex) {
+      LOGGER.log(Level.SEVERE, getName() + " Failed to publish group: "
+        + group.key, ex);
+    }
+  }
+
+  /**
+   * Adds the open and published group counters to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    synchronized (groups) {
+      stats.put("openGroups", (long) groups.size());
+      stats.put("bufferedChars", buffered);
+    }
+    stats.put("completed", completed.sum());
+    stats.put("timedOut", timedOut.sum());
+    stats.put("evicted", evicted.sum());
+    return stats;
+  }
+}
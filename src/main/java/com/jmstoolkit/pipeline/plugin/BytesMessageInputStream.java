@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Reads the body of a JMS <code>BytesMessage</code> as an
+ * <code>InputStream</code> without copying it into a byte array first.
+ *
+ * @author Scott Douglass
+ */
+final class BytesMessageInputStream extends InputStream {
+
+  /** The message being read. */
+  private final BytesMessage message;
+  /** Scratch space for reads which don't start at offset zero. */
+  private byte[] scratch;
+
+  /**
+   *
+   * @param inMessage the message to read, positioned at the start of its body
+   */
+  BytesMessageInputStream(final BytesMessage inMessage) {
+    this.message = inMessage;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] one = new byte[1];
+    return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+    throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    try {
+      if (off == 0) {
+        return message.readBytes(b, len);
+      }
+      if (scratch == null || scratch.length < len) {
+        scratch = new byte[len];
+      }
+      final int count = message.readBytes(scratch, len);
+      if (count > 0) {
+        System.arraycopy(scratch, 0, b, off, count);
+      }
+      return count;
+    } catch (JMSException ex) {
+      throw new IOException("Failed to read BytesMessage body", ex);
+    }
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import com.jmstoolkit.pipeline.XPathRegistry;
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.XPath;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which runs several stages on a message, one after another, on one dom4j
+ * <code>Document</code>. The message is parsed once and published once,
+ * instead of once per plugin with a trip through the broker in between.
+ *
+ * The work XML is a <code>chain</code> element holding the stages in order:
+ * <ul>
+ * <li><code>xslt</code>: an XSL stylesheet, either inline or read from the
+ * file named by a <code>file</code> element,
+ * <li><code>enrich</code>: value lookups, configured like an
+ * {@link XMLValueTransform},
+ * <li><code>filter</code>: an XPath expression, messages for which it is
+ * false are dropped.
+ * </ul>
+ * The work XML is not validated, since a stylesheet can't be described by a
+ * DTD.
+ *
+ * @author Scott Douglass
+ */
+public class Chain extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Chain.class.getName());
+  /** The namespace of inline stylesheets. */
+  private static final String XSL_NAMESPACE
+    = "http://www.w3.org/1999/XSL/Transform";
+  /** The stages, in order. */
+  private final List<Stage> stages = new ArrayList<>();
+  /** The lookups of the enrich stages. */
+  private final List<Enricher> enrichers = new ArrayList<>();
+  /** Messages dropped by a filter stage. */
+  private final LongAdder filtered = new LongAdder();
+
+  /** One step in the chain. */
+  private interface Stage {
+
+    /**
+     *
+     * @param doc the message
+     * @return the message for the next stage, may be the same document, or
+     * null to drop the message
+     * @throws XSLTransformerException if an XSL transform fails
+     */
+    Document apply(Document doc) throws XSLTransformerException;
+  }
+
+  /**
+   * Constructor for creating a useful <code>Chain</code>.
+   *
+   * @param pluginName The human readable name for the Chain.
+   * @param inConfig The chain XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Chain(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      final Document doc = XMLParsers.parse(inConfig, false);
+      for (Element element : doc.getRootElement().elements()) {
+        stages.add(getStage(element));
+      }
+      LOGGER.log(Level.INFO, "{0} runs {1} stages",
+        new Object[]{getName(), stages.size()});
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for chain: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException | XMLValueTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XSLTransformerException ex) {
+      LOGGER.log(Level.SEVERE, "Bad XSLT", ex);
+      setStatus(STATUS_FAILED);
+    } catch (SQLException ex) {
+      LOGGER.log(Level.SEVERE, "Bad SQL query or database: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (InvalidXPathException ex) {
+      LOGGER.log(Level.SEVERE, "Bad XPath: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   * Create the stage for one element of the chain.
+   *
+   * @param element the stage configuration
+   * @return the stage
+   * @throws XMLTransformException if the stage is unknown
+   * @throws XMLValueTransformException if an enrich stage is bad
+   * @throws XSLTransformerException if an XSL stylesheet is bad
+   * @throws SQLException if an enrich stage's database or SQL is bad
+   */
+  private Stage getStage(final Element element) throws XMLTransformException,
+    XMLValueTransformException, XSLTransformerException, SQLException {
+    switch (element.getName()) {
+      case "xslt":
+        final XSLTransformer xslt = new XSLTransformer();
+        final String file = trim(element.elementText("file"));
+        if (!file.isEmpty()) {
+          xslt.setXslt(new File(file));
+        } else {
+          final Element stylesheet = getStylesheet(element);
+          if (stylesheet == null) {
+            throw new XMLTransformException(
+              "No stylesheet or file in xslt stage of: " + getName());
+          }
+          xslt.setXslt(stylesheet.asXML());
+        }
+        return xslt::transform;
+      case "enrich":
+        final Enricher enricher = new Enricher(getName(), element);
+        enrichers.add(enricher);
+        return doc -> enrich(enricher, doc);
+      case "filter":
+        final XPath filter = XPathRegistry.get(trim(element.getText()));
+        return doc -> {
+          if (filter.booleanValueOf(doc)) {
+            return doc;
+          }
+          filtered.increment();
+          return null;
+        };
+      default:
+        throw new XMLTransformException("Unknown stage: " + element.getName()
+          + " in chain: " + getName());
+    }
+  }
+
+  /**
+   *
+   * @param element an xslt stage
+   * @return its inline stylesheet element, or null if there is none
+   */
+  private static Element getStylesheet(final Element element) {
+    for (Element child : element.elements()) {
+      if (XSL_NAMESPACE.equals(child.getNamespaceURI())) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Runs the lookups of an enrich stage one after another. A key with no
+   * value, or a lookup whose JDBC query fails, leaves the document as it
+   * was and the message goes on, as with an {@link XMLValueTransform}.
+   *
+   * @param enricher the lookups
+   * @param doc the message
+   * @return the same message
+   */
+  private Document enrich(final Enricher enricher, final Document doc) {
+    for (XMLValueTransformer xvt : enricher.getXforms()) {
+      final String key = xvt.lookupKey(doc);
+      try {
+        xvt.apply(doc, xvt.getRow(key));
+      } catch (EmptyResultDataAccessException ex) {
+        LOGGER.log(Level.WARNING, "{0} No value for {1}: {2}",
+          new Object[]{getName(), key, xvt});
+      } catch (DataAccessException ex) {
+        LOGGER.log(Level.WARNING, getName() + " JDBC failed for " + key
+          + ": " + xvt, ex);
+      }
+    }
+    return doc;
+  }
+
+  /**
+   * Loads the preloaded tables of the enrich stages, then starts the
+   * consumers.
+   */
+  @Override
+  public void init() {
+    for (Enricher enricher : enrichers) {
+      enricher.start(getScheduler());
+    }
+    super.init();
+  }
+
+  /**
+   * Gives back the JDBC pools once the consumers have stopped.
+   */
+  @Override
+  public void stop() {
+    super.stop();
+    for (Enricher enricher : enrichers) {
+      enricher.close();
+    }
+  }
+
+  /**
+   * Adds the filtered count and the lookup counters of the enrich stages to
+   * the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    stats.put("filtered", filtered.sum());
+    for (Enricher enricher : enrichers) {
+      enricher.addStatistics(stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Parses the
+   * message, runs it through the stages and publishes the result.
+   *
+   * @param message The JMS Message received.
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage. TextMessages only please.",
+        messageId);
+      return;
+    }
+    try {
+      Document doc = XMLParsers.parse(((TextMessage) message).getText(), false);
+      for (Stage stage : stages) {
+        doc = stage.apply(doc);
+        if (doc == null) {
+          LOGGER.log(Level.FINE, "{0} Filtered by service: {1}",
+            new Object[]{messageId, getName()});
+          return;
+        }
+      }
+      LOGGER.log(Level.INFO, "{0} Chain performed by service: {1}",
+        new Object[]{messageId, getName()});
+      send(doc.asXML(), null);
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to get message text: ",
+        ex);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: ",
+        ex);
+    } catch (XSLTransformerException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " XSL Transform failed: ", ex);
+    }
+  }
+
+  /**
+   * @return the number of stages
+   */
+  public final int getStageCount() {
+    return stages.size();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A consistent hash ring, which maps keys to nodes so that adding or
+ * removing one of N nodes only moves about 1/N of the keys.
+ *
+ * Each node is placed on the ring at many points, its virtual nodes, hashed
+ * from its name, so the keys spread evenly however few nodes there are. A
+ * key belongs to the node of the first point at or after the key's hash.
+ * Since the points only depend on the names, every ring built from the same
+ * names agrees, in any JVM and whatever the order the nodes were given in.
+ *
+ * Immutable, so safe to share between threads.
+ *
+ * @param <T> the nodes
+ * @author Scott Douglass
+ */
+final class ConsistentHashRing<T> {
+
+  /** The points, sorted. */
+  private final long[] points;
+  /** The node of each point. */
+  private final List<T> owners;
+  /** The number of nodes. */
+  private final int size;
+
+  /** A node's point on the ring, while the ring is built. */
+  private static final class Point<T> {
+
+    /** The hash. */
+    private final long hash;
+    /** The node name, to break ties. */
+    private final String name;
+    /** The node. */
+    private final T node;
+
+    /**
+     *
+     * @param inHash the hash
+     * @param inName the node name
+     * @param inNode the node
+     */
+    Point(final long inHash, final String inName, final T inNode) {
+      this.hash = inHash;
+      this.name = inName;
+      this.node = inNode;
+    }
+  }
+
+  /**
+   *
+   * @param nodes the nodes by name
+   * @param virtualNodes the number of points per node
+   */
+  ConsistentHashRing(final Map<String, T> nodes, final int virtualNodes) {
+    if (nodes.isEmpty() || virtualNodes < 1) {
+      throw new IllegalArgumentException("Bad hash ring: nodes="
+        + nodes.size() + ", virtualNodes=" + virtualNodes);
+    }
+    final List<Point<T>> ring = new ArrayList<>(nodes.size() * virtualNodes);
+    for (Map.Entry<String, T> entry : nodes.entrySet()) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.add(new Point<>(DuplicateFilter.hash(entry.getKey() + "#" + i),
+          entry.getKey(), entry.getValue()));
+      }
+    }
+    ring.sort(Comparator.<Point<T>>comparingLong(p -> p.hash)
+      .thenComparing(p -> p.name));
+    this.points = new long[ring.size()];
+    this.owners = new ArrayList<>(ring.size());
+    for (int i = 0; i < points.length; i++) {
+      points[i] = ring.get(i).hash;
+      owners.add(ring.get(i).node);
+    }
+    this.size = nodes.size();
+  }
+
+  /**
+   * The node a key belongs to.
+   *
+   * @param key the key
+   * @return the node
+   */
+  T get(final String key) {
+    final long hash = DuplicateFilter.hash(key);
+    int low = 0;
+    int high = points.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (points[mid] < hash) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return owners.get(low == points.length ? 0 : low);
+  }
+
+  /**
+   * @return the number of nodes
+   */
+  int size() {
+    return size;
+  }
+}
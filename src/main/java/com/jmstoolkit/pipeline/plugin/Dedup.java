@@ -0,0 +1,241 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import com.jmstoolkit.pipeline.XPathRegistry;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.XPath;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which passes each message on unchanged unless it has already been seen, an
+ * idempotent receiver. Put it in front of plugins with expensive work, such
+ * as the JDBC lookups of an {@link XMLValueTransform}, so that messages
+ * redelivered after a failover are only done once. With the local
+ * transport the extra hop costs no broker round trip.
+ *
+ * The work XML is a <code>dedup</code> element with these optional
+ * settings:
+ * <ul>
+ * <li><code>key</code>: an XPath whose value identifies a message, the
+ * JMSMessageID if there is none,
+ * <li><code>window</code>: how long keys are remembered at least, in ms,
+ * 600000 by default, they are forgotten after twice that,
+ * <li><code>expectedKeys</code>: the number of keys in a window, 1000000 by
+ * default, and <code>falsePositiveRate</code>, 0.001 by default, which
+ * size the Bloom filters,
+ * <li><code>lruSize</code>: the number of recent keys kept exactly, 100000
+ * by default.
+ * </ul>
+ * See {@link DuplicateFilter}. A key is forgotten again if the message
+ * can't be passed on, and in client and transacted modes the batch is
+ * rolled back so that the message comes again. In transacted mode the
+ * other messages of the batch are passed on again too, since what they
+ * sent was rolled back with them; in client mode what they sent is already
+ * gone, so they are dropped. The counters, with the drop rate in parts per
+ * million, are in <code>getStatistics()</code> and so on the Pipeline's JMX
+ * interface.
+ *
+ * @author Scott Douglass
+ */
+public class Dedup extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Dedup.class.getName());
+  /** Default time keys are remembered at least, in ms. */
+  public static final long D_WINDOW = 600000L;
+  /** Default number of keys in a window. */
+  public static final int D_EXPECTED_KEYS = 1000000;
+  /** Default Bloom filter false positive rate. */
+  public static final double D_FALSE_POSITIVE_RATE = 0.001;
+  /** Default number of recent keys kept exactly. */
+  public static final int D_LRU_SIZE = 100000;
+  /** The key XPath, null for the JMSMessageID. */
+  private XPath key;
+  /** The keys seen. */
+  private DuplicateFilter filter;
+
+  /**
+   * Constructor for creating a useful <code>Dedup</code>.
+   *
+   * @param pluginName The human readable name for the Dedup.
+   * @param inConfig The dedup XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Dedup(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      configure(XMLParsers.parse(inConfig, false));
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for dedup: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (InvalidXPathException ex) {
+      LOGGER.log(Level.SEVERE, "Bad XPath: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   *
+   * @param work the dedup XML
+   * @throws XMLTransformException if a setting is bad
+   */
+  final void configure(final Document work) throws XMLTransformException {
+    final String keyPath = trim(work.valueOf("/dedup/key"));
+    key = keyPath.isEmpty() ? null : XPathRegistry.get(keyPath);
+    final String window = trim(work.valueOf("/dedup/window"));
+    final String expected = trim(work.valueOf("/dedup/expectedKeys"));
+    final String rate = trim(work.valueOf("/dedup/falsePositiveRate"));
+    final String lruSize = trim(work.valueOf("/dedup/lruSize"));
+    try {
+      filter = new DuplicateFilter(
+        window.isEmpty() ? D_WINDOW : Long.parseLong(window),
+        expected.isEmpty() ? D_EXPECTED_KEYS : Integer.parseInt(expected),
+        rate.isEmpty() ? D_FALSE_POSITIVE_RATE : Double.parseDouble(rate),
+        lruSize.isEmpty() ? D_LRU_SIZE : Integer.parseInt(lruSize),
+        System.currentTimeMillis());
+    } catch (IllegalArgumentException ex) {
+      throw new XMLTransformException("Bad settings in dedup: " + getName(),
+        ex);
+    }
+    LOGGER.log(Level.INFO, "{0} Bloom filters use {1} bytes, {2} hashes",
+      new Object[]{getName(), filter.getBloomBytes(), filter.getHashes()});
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Passes the
+   * message on if its key hasn't been seen.
+   *
+   * @param message The JMS Message received.
+   * @throws JmsException in client and transacted modes, when the message
+   * couldn't be passed on, to roll back the batch
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage. TextMessages only please.",
+        messageId);
+      return;
+    }
+    String remembered = null;
+    try {
+      String messageKey = messageId;
+      if (key != null) {
+        messageKey = key.valueOf(XMLParsers.parse(
+          ((TextMessage) message).getText(), false));
+      }
+      if (messageKey == null || messageKey.isEmpty()) {
+        LOGGER.log(Level.WARNING, "{0} No key, passed on by: {1}",
+          new Object[]{messageId, getName()});
+      } else if (filter.isDuplicate(messageKey, messageId,
+        ACK_TRANSACTED.equals(getAcknowledge())
+        && message.getJMSRedelivered(), System.currentTimeMillis())) {
+        LOGGER.log(Level.INFO, "{0} Duplicate {1} dropped by: {2}",
+          new Object[]{messageId, messageKey, getName()});
+        return;
+      } else {
+        remembered = messageKey;
+      }
+      send(inSession -> copyMessage((TextMessage) message, inSession));
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to read message: ", ex);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: ",
+        ex);
+    } catch (JmsException ex) {
+      if (remembered != null) {
+        filter.forget(remembered);
+      }
+      if (isBatchAcknowledged()) {
+        throw ex;
+      }
+      LOGGER.log(Level.SEVERE, messageId + " Failed to send message: ", ex);
+    }
+  }
+
+  /**
+   * Adds the duplicate counters to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    if (filter != null) {
+      final long checked = filter.getChecked();
+      final long duplicates = filter.getDuplicates();
+      stats.put("checked", checked);
+      stats.put("duplicates", duplicates);
+      stats.put("falsePositives", filter.getFalsePositives());
+      stats.put("dropRatePpm",
+        checked == 0 ? 0L : duplicates * 1000000L / checked);
+      stats.put("lruSize", (long) filter.getRecentSize());
+      stats.put("bloomBytes", filter.getBloomBytes());
+    }
+    return stats;
+  }
+}
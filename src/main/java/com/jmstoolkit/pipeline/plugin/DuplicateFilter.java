@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the keys seen during a time window, to recognise duplicates.
+ *
+ * Every key goes into a Bloom filter, which answers "new" for most new keys
+ * without looking any further. The window is made of two Bloom filters:
+ * keys are added to the current one, and when a window has passed the
+ * previous one is cleared and becomes the current one, so a key is
+ * remembered for one to two windows.
+ *
+ * A Bloom filter can say a key was seen when it wasn't, so a key it knows is
+ * only a duplicate if it is also in an exact, access ordered set of the most
+ * recently seen keys. A key the Bloom filter knows but the set doesn't is
+ * let through and counted as a false positive. That count also includes
+ * real duplicates whose key had already been pushed out of the set, so size
+ * the set for the keys seen in a window.
+ *
+ * A key is remembered as soon as it is checked, so that of two copies
+ * handled at the same time only one gets through, together with the ID of
+ * the message which had it. If passing that message on fails the key can
+ * be forgotten again, and if the message comes back because its Session
+ * rolled back it is not a duplicate of itself.
+ *
+ * @author Scott Douglass
+ */
+final class DuplicateFilter {
+
+  /** Used to size the Bloom filters. */
+  private static final double LN2 = Math.log(2);
+
+  /** The current and previous window's bits. */
+  private final long[][] generations = new long[2][];
+  /** The number of bits in a Bloom filter. */
+  private final int bits;
+  /** The number of bits set per key. */
+  private final int hashes;
+  /** The length of a window in ms. */
+  private final long windowMillis;
+  /** When the current window started. */
+  private long windowStart;
+  /** The most recently seen keys. */
+  private final LinkedHashMap<String, Seen> recent;
+  /** Keys checked. */
+  private long checked;
+  /** Keys found to be duplicates. */
+  private long duplicates;
+  /** Keys the Bloom filter knew but the exact set didn't. */
+  private long falsePositives;
+
+  /** When a key was last seen, and the message it was first seen in. */
+  private static final class Seen {
+
+    /** The message ID. */
+    private final String messageId;
+    /** The time. */
+    private long time;
+
+    /**
+     *
+     * @param inMessageId the message ID
+     * @param inTime the time
+     */
+    Seen(final String inMessageId, final long inTime) {
+      this.messageId = inMessageId;
+      this.time = inTime;
+    }
+  }
+
+  /**
+   *
+   * @param inWindowMillis how long keys are remembered at least, in ms
+   * @param expectedKeys the number of keys expected in a window
+   * @param falsePositiveRate the wanted Bloom filter false positive rate
+   * @param maxRecent the size of the exact set
+   * @param now the current time
+   */
+  DuplicateFilter(final long inWindowMillis, final int expectedKeys,
+    final double falsePositiveRate, final int maxRecent, final long now) {
+    if (inWindowMillis < 1 || expectedKeys < 1 || maxRecent < 1
+      || !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new IllegalArgumentException("Bad duplicate filter: window="
+        + inWindowMillis + ", expectedKeys=" + expectedKeys
+        + ", falsePositiveRate=" + falsePositiveRate
+        + ", lruSize=" + maxRecent);
+    }
+    final double m = -expectedKeys * Math.log(falsePositiveRate)
+      / (LN2 * LN2);
+    this.bits = (int) Math.min(Integer.MAX_VALUE - 63L,
+      Math.max(64L, (long) Math.ceil(m)));
+    this.hashes = Math.max(1, (int) Math.round(bits * LN2 / expectedKeys));
+    this.windowMillis = inWindowMillis;
+    this.windowStart = now;
+    generations[0] = new long[(bits + 63) / 64];
+    generations[1] = new long[(bits + 63) / 64];
+    this.recent = new LinkedHashMap<String, Seen>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<String, Seen> eldest) {
+        return size() > maxRecent;
+      }
+    };
+  }
+
+  /**
+   * Check a key and remember it.
+   *
+   * @param key the key
+   * @param messageId the ID of the message with the key
+   * @param rolledBack true if the message is redelivered because its
+   * Session rolled back, so it isn't a duplicate of its own earlier delivery
+   * @param now the current time
+   * @return true if the key was seen in the window, in another message
+   */
+  synchronized boolean isDuplicate(final String key, final String messageId,
+    final boolean rolledBack, final long now) {
+    rotate(now);
+    checked++;
+    final long hash = hash(key);
+    final int h1 = (int) hash;
+    final int h2 = (int) (hash >>> 32);
+    boolean known = true;
+    final long[] current = generations[0];
+    final long[] previous = generations[1];
+    for (int i = 0; i < hashes; i++) {
+      final int bit = Math.floorMod(h1 + i * h2, bits);
+      final long mask = 1L << bit;
+      if ((current[bit >>> 6] & mask) == 0
+        && (previous[bit >>> 6] & mask) == 0) {
+        known = false;
+      }
+      current[bit >>> 6] |= mask;
+    }
+    final Seen seen = recent.get(key);
+    if (known) {
+      if (seen != null && now - seen.time < 2 * windowMillis) {
+        seen.time = now;
+        if (rolledBack && messageId != null
+          && messageId.equals(seen.messageId)) {
+          return false;
+        }
+        duplicates++;
+        return true;
+      }
+      falsePositives++;
+    }
+    recent.put(key, new Seen(messageId, now));
+    return false;
+  }
+
+  /**
+   * Forget a key, when the message it was remembered for couldn't be passed
+   * on. Its Bloom filter bits stay set, so the next copy is let through as
+   * a false positive.
+   *
+   * @param key the key
+   */
+  synchronized void forget(final String key) {
+    recent.remove(key);
+  }
+
+  /**
+   * Start a new window if the current one is over.
+   *
+   * @param now the current time
+   */
+  private void rotate(final long now) {
+    if (now - windowStart >= windowMillis) {
+      final long[] cleared = generations[1];
+      Arrays.fill(cleared, 0L);
+      if (now - windowStart >= 2 * windowMillis) {
+        Arrays.fill(generations[0], 0L);
+      }
+      generations[1] = generations[0];
+      generations[0] = cleared;
+      windowStart = now;
+    }
+  }
+
+  /**
+   * A 64 bit FNV-1a hash of the key, mixed so both halves are usable.
+   * {@link ConsistentHashRing} places its nodes with it too.
+   *
+   * @param key the key
+   * @return the hash
+   */
+  static long hash(final String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * @return the keys checked
+   */
+  synchronized long getChecked() {
+    return checked;
+  }
+
+  /**
+   * @return the duplicates found
+   */
+  synchronized long getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * @return the keys the Bloom filter knew but the exact set didn't
+   */
+  synchronized long getFalsePositives() {
+    return falsePositives;
+  }
+
+  /**
+   * @return the number of keys in the exact set
+   */
+  synchronized int getRecentSize() {
+    return recent.size();
+  }
+
+  /**
+   * @return the memory used by the Bloom filters, in bytes
+   */
+  long getBloomBytes() {
+    return 2L * ((bits + 63) / 64) * 8;
+  }
+
+  /**
+   * @return the number of bits set per key
+   */
+  int getHashes() {
+    return hashes;
+  }
+}
@@ -75,15 +75,13 @@ public class Echo extends AbstractPlugin {
   public final void onMessage(final Message inMessage) {
     try {
       if (inMessage instanceof TextMessage) {
-        getJmsTemplate().convertAndSend(
-          (Object) ((TextMessage) inMessage).getText(),
+        send(((TextMessage) inMessage).getText(),
           new BasicMessageProcessor(inMessage.getJMSCorrelationID()));
       } else {
-        getJmsTemplate().convertAndSend(
-          (Object) "Non-text message received by Echo",
+        send("Non-text message received by Echo",
           new BasicMessageProcessor(inMessage.getJMSCorrelationID()));
       }
-      this.operationCount++;
+      countOperation();
     } catch (JMSException ex) {
       LOGGER.log(Level.SEVERE, "Echo had JMS failure onMessage!", ex);
     }
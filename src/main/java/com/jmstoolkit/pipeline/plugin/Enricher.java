@@ -0,0 +1,311 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.DataSourceRegistry;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.dom4j.Node;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * The lookups configured by an <code>enrich</code> element (see
+ * dtd/enrich.dtd): the JDBC pools, and an {@link XMLValueTransformer} with
+ * its cache and preloaded table for every <code>element</code>. Used by
+ * {@link XMLValueTransform} and by the enrich stages of a {@link Chain}.
+ *
+ * @author Scott Douglass
+ */
+final class Enricher {
+
+  /** Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Enricher.class.getName());
+  /** The owner's name, for logging. */
+  private final String name;
+  /** The pools from the DataSourceRegistry, given back by close(). */
+  private final List<DataSource> dataSources = new ArrayList<>();
+  /** The default pool. */
+  private final DataSource defaultDataSource;
+  /** Queries the default pool. */
+  private final JdbcTemplate jdbcTemplate;
+  /** One transformer per element, in configured order. */
+  private final List<XMLValueTransformer> xforms = new ArrayList<>();
+
+  /**
+   * Acquires the pools and creates the transformers. When this fails the
+   * pools already acquired are given back.
+   *
+   * @param inName the owner's name, for logging
+   * @param enrich the <code>enrich</code> element
+   * @throws SQLException if a pool can't be created or a query is bad
+   * @throws XMLValueTransformException if an element is configured badly
+   */
+  Enricher(final String inName, final Node enrich) throws SQLException,
+    XMLValueTransformException {
+    this.name = inName;
+    try {
+      defaultDataSource = getDataSource(
+        enrich.selectSingleNode("defaultDatabase"));
+      jdbcTemplate = new JdbcTemplate(defaultDataSource);
+      for (Node node : enrich.selectNodes("elements/element")) {
+        JdbcTemplate vttemplate = jdbcTemplate;
+        final String ddriver = node.valueOf("database/driver");
+        if (ddriver != null && !"".equals(ddriver)) {
+          // normally we'll use the defaultDataSource but we give the ability
+          // to specify a unique DataSource as well, pooled just the same
+          vttemplate = new JdbcTemplate(
+            getDataSource(node.selectSingleNode("database")));
+        }
+        final XMLValueTransformer xvt = new XMLValueTransformer(vttemplate);
+        xvt.setSrcPath(trim(node.valueOf("srcPath")));
+        xvt.setDstPath(trim(node.valueOf("dstPath")));
+        for (Node mapping : node.selectNodes("mappings/mapping")) {
+          xvt.addMapping(trim(mapping.valueOf("column")),
+            trim(mapping.valueOf("dstPath")));
+        }
+        xvt.setSql(trim(node.valueOf("sql"))); // validates SQL statement
+        xvt.setBatchSql(trim(node.valueOf("batchSql")));
+        xvt.setCache(getCache(node));
+        xvt.setPreload(getPreload(node, vttemplate, xvt));
+        xforms.add(xvt);
+      }
+    } catch (SQLException | XMLValueTransformException | RuntimeException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Get the shared pool for a <code>database</code> or
+   * <code>defaultDatabase</code> configuration, with its optional
+   * <code>pool</code> settings.
+   *
+   * @param database the database configuration
+   * @return the pool from the DataSourceRegistry
+   * @throws SQLException if the pool can't be created
+   */
+  private DataSource getDataSource(final Node database) throws SQLException {
+    if (database == null) {
+      throw new SQLException("No database configured for: " + name);
+    }
+    final Properties settings = new Properties();
+    settings.setProperty("driverClassName", trim(database.valueOf("driver")));
+    settings.setProperty("url", trim(database.valueOf("url")));
+    settings.setProperty("username", trim(database.valueOf("username")));
+    settings.setProperty("password", trim(database.valueOf("password")));
+    final String[][] pool = {{"maxActive", "maxActive"},
+      {"maxIdle", "maxIdle"}, {"minIdle", "minIdle"}, {"maxWait", "maxWait"},
+      {"poolStatements", "poolPreparedStatements"},
+      {"validationQuery", "validationQuery"},
+      {"testOnBorrow", "testOnBorrow"}};
+    for (String[] setting : pool) {
+      final String value = trim(database.valueOf("pool/" + setting[0]));
+      if (!value.isEmpty()) {
+        settings.setProperty(setting[1], value);
+      }
+    }
+    final DataSource result = DataSourceRegistry.acquire(settings);
+    dataSources.add(result);
+    return result;
+  }
+
+  /**
+   * Create the cache for an element from its optional <code>cache</code>
+   * configuration. The time to live is in seconds, none means values never go
+   * stale.
+   *
+   * @param element the element configuration
+   * @return the cache, or null if the element isn't cached
+   * @throws XMLValueTransformException if the cache configuration is bad
+   */
+  private static LookupCache<String, String[]> getCache(final Node element)
+    throws XMLValueTransformException {
+    LookupCache<String, String[]> result = null;
+    final String maxEntries = trim(element.valueOf("cache/maxEntries"));
+    if (!maxEntries.isEmpty()) {
+      final String ttl = trim(element.valueOf("cache/ttl"));
+      final String cacheMisses = trim(element.valueOf("cache/cacheMisses"));
+      try {
+        result = new LookupCache<>(Integer.parseInt(maxEntries),
+          ttl.isEmpty() ? 0 : Long.parseLong(ttl) * 1000L,
+          Boolean.parseBoolean(cacheMisses));
+      } catch (IllegalArgumentException ex) {
+        throw new XMLValueTransformException("Bad cache configuration for: "
+          + trim(element.valueOf("srcPath")), ex);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Create the preloaded table for an element from its optional
+   * <code>preload</code> configuration. The refresh interval is in seconds,
+   * none means the table is only loaded when the plugin starts.
+   *
+   * @param element the element configuration
+   * @param template the JdbcTemplate the element uses
+   * @param xvt the element's transformer, which reads the mapped columns
+   * @return the preloaded table, or null if the element isn't preloaded
+   * @throws XMLValueTransformException if the preload configuration is bad
+   * @throws SQLException if the preload query isn't a select
+   */
+  private static PreloadedLookup getPreload(final Node element,
+    final JdbcTemplate template, final XMLValueTransformer xvt)
+    throws XMLValueTransformException, SQLException {
+    PreloadedLookup result = null;
+    final String preloadSql = trim(element.valueOf("preload/sql"));
+    if (!preloadSql.isEmpty()) {
+      final String refresh = trim(element.valueOf("preload/refresh"));
+      try {
+        result = new PreloadedLookup(template.getDataSource(), preloadSql,
+          refresh.isEmpty() ? 0 : Long.parseLong(refresh),
+          (rs, rowNum) -> xvt.readRow(rs, 1));
+      } catch (NumberFormatException ex) {
+        throw new XMLValueTransformException(
+          "Bad preload refresh for: " + trim(element.valueOf("srcPath")), ex);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads the preloaded tables, then schedules their refreshes.
+   *
+   * @param scheduler the owner's timer
+   */
+  void start(final ScheduledExecutorService scheduler) {
+    for (XMLValueTransformer xvt : xforms) {
+      final PreloadedLookup preload = xvt.getPreload();
+      if (preload != null) {
+        refresh(preload);
+        if (preload.getRefreshSeconds() > 0) {
+          scheduler.scheduleWithFixedDelay(() -> refresh(preload),
+            preload.getRefreshSeconds(), preload.getRefreshSeconds(),
+            TimeUnit.SECONDS);
+        }
+      }
+    }
+  }
+
+  /**
+   * Load a table again. A failed refresh keeps the old table, while until
+   * the first load succeeds each key is queried instead.
+   *
+   * @param preload the table to load again
+   */
+  private void refresh(final PreloadedLookup preload) {
+    try {
+      preload.load();
+      LOGGER.log(Level.INFO, "{0} preloaded {1} rows for: {2}",
+        new Object[]{name, preload.size(), preload.getSql()});
+    } catch (DataAccessException ex) {
+      if (preload.isLoaded()) {
+        LOGGER.log(Level.WARNING, name + " failed to refresh, keeping the "
+          + "old table for: " + preload.getSql(), ex);
+      } else {
+        LOGGER.log(Level.SEVERE, name + " failed to preload, querying each "
+          + "key until a load succeeds: " + preload.getSql(), ex);
+      }
+    }
+  }
+
+  /**
+   * Gives back the JDBC pools.
+   */
+  void close() {
+    for (DataSource dataSource : dataSources) {
+      DataSourceRegistry.release(dataSource);
+    }
+    dataSources.clear();
+  }
+
+  /**
+   * Adds the lookup cache and preload counters, summed over all the
+   * elements.
+   *
+   * @param stats the counters to add to
+   */
+  void addStatistics(final Map<String, Long> stats) {
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    long size = 0;
+    long preloaded = 0;
+    long loads = 0;
+    long failures = 0;
+    for (XMLValueTransformer xvt : xforms) {
+      final LookupCache<String, String[]> cache = xvt.getCache();
+      if (cache != null) {
+        hits += cache.getHits();
+        misses += cache.getMisses();
+        evictions += cache.getEvictions();
+        size += cache.size();
+      }
+      final PreloadedLookup preload = xvt.getPreload();
+      if (preload != null) {
+        preloaded += preload.size();
+        loads += preload.getLoads();
+        failures += preload.getFailures();
+      }
+    }
+    stats.merge("cacheHits", hits, Long::sum);
+    stats.merge("cacheMisses", misses, Long::sum);
+    stats.merge("cacheEvictions", evictions, Long::sum);
+    stats.merge("cacheSize", size, Long::sum);
+    stats.merge("preloadSize", preloaded, Long::sum);
+    stats.merge("preloadLoads", loads, Long::sum);
+    stats.merge("preloadFailures", failures, Long::sum);
+  }
+
+  /**
+   * @return the default pool
+   */
+  DataSource getDefaultDataSource() {
+    return defaultDataSource;
+  }
+
+  /**
+   * @return the JdbcTemplate on the default pool
+   */
+  JdbcTemplate getJdbcTemplate() {
+    return jdbcTemplate;
+  }
+
+  /**
+   * @return the transformers, in configured order
+   */
+  List<XMLValueTransformer> getXforms() {
+    return xforms;
+  }
+
+  /**
+   *
+   * @param inString the String to trim
+   * @return the trimmed String, empty if it was null
+   */
+  private static String trim(final String inString) {
+    return (inString == null) ? "" : inString.trim();
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, read-through cache with an optional time to live. The entries
+ * are spread over a number of segments, each an access ordered
+ * <code>LinkedHashMap</code> with its own lock, so lookups from different
+ * consumer threads rarely wait on each other, and each segment evicts its
+ * least recently used entry when it is full.
+ *
+ * A value that the loader could not find (<code>null</code>) can be cached
+ * as well, so that repeated lookups of an unknown key don't go back to the
+ * database every time.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ * @author Scott Douglass
+ */
+public class LookupCache<K, V> {
+
+  /** Number of segments, a power of two. */
+  private static final int SEGMENTS = 16;
+
+  /**
+   * Loads a value which isn't in the cache.
+   *
+   * @param <K> the key type
+   * @param <V> the value type
+   */
+  public interface Loader<K, V> {
+
+    /**
+     *
+     * @param key the key to look up
+     * @return the value, or null if there is none
+     */
+    V load(K key);
+  }
+
+  /** A cached value and when it goes stale. */
+  private static final class Entry<V> {
+
+    /** The value, null for a cached miss. */
+    private final V value;
+    /** System.nanoTime() after which the value is stale, 0 for never. */
+    private final long expires;
+
+    /**
+     *
+     * @param inValue the value
+     * @param inExpires when the value expires
+     */
+    Entry(final V inValue, final long inExpires) {
+      this.value = inValue;
+      this.expires = inExpires;
+    }
+  }
+
+  /** The segments, a power of two of them. */
+  private final List<Segment> segments;
+  /** Time to live in nanoseconds, 0 for forever. */
+  private final long ttlNanos;
+  /** Whether misses are cached. */
+  private final boolean cacheMisses;
+  /** Lookups answered from the cache. */
+  private final LongAdder hits = new LongAdder();
+  /** Lookups which went to the loader. */
+  private final LongAdder misses = new LongAdder();
+  /** Entries thrown out to make room. */
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   *
+   * @param maxEntries the most entries to hold
+   * @param ttlMillis how long an entry is good for, 0 for forever
+   * @param inCacheMisses true to remember keys the loader couldn't find
+   */
+  public LookupCache(final int maxEntries, final long ttlMillis,
+    final boolean inCacheMisses) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("ttl can not be negative");
+    }
+    this.ttlNanos = ttlMillis * 1000000L;
+    this.cacheMisses = inCacheMisses;
+    final int segmentCount
+      = Math.min(SEGMENTS, Integer.highestOneBit(maxEntries));
+    // share maxEntries exactly, the first segments take the remainder
+    final int perSegment = maxEntries / segmentCount;
+    final int remainder = maxEntries % segmentCount;
+    this.segments = new ArrayList<>(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      segments.add(new Segment(perSegment + (i < remainder ? 1 : 0)));
+    }
+  }
+
+  /**
+   * Get the value for a key, from the cache if it is there and fresh,
+   * otherwise from the loader. The loader is called without holding any lock,
+   * so two threads missing on the same key may both load it.
+   *
+   * @param key the key
+   * @param loader used when the key isn't cached
+   * @return the value, or null if the loader had none
+   */
+  public final V get(final K key, final Loader<K, V> loader) {
+    final Segment segment = segmentFor(key);
+    final Entry<V> cached = segment.get(key);
+    if (cached != null
+      && (cached.expires == 0 || cached.expires - System.nanoTime() > 0)) {
+      hits.increment();
+      return cached.value;
+    }
+    misses.increment();
+    final V value = loader.load(key);
+    if (value != null || cacheMisses) {
+      segment.put(key, new Entry<>(value,
+        ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos));
+    }
+    return value;
+  }
+
+  /**
+   * Check for a fresh entry without counting a hit or miss or loading
+   * anything.
+   *
+   * @param key the key
+   * @return true if the key, or the fact it has no value, is cached
+   */
+  public final boolean isCached(final K key) {
+    final Entry<V> cached = segmentFor(key).get(key);
+    return cached != null
+      && (cached.expires == 0 || cached.expires - System.nanoTime() > 0);
+  }
+
+  /**
+   * Throw away every entry.
+   */
+  public final void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * @return the number of entries currently held, including stale ones
+   */
+  public final int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of lookups answered from the cache
+   */
+  public final long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of lookups that had to use the loader
+   */
+  public final long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of entries evicted to make room
+   */
+  public final long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   *
+   * @param key the key
+   * @return the segment holding the key
+   */
+  private Segment segmentFor(final K key) {
+    int h = key == null ? 0 : key.hashCode();
+    h ^= (h >>> 16);
+    return segments.get(h & (segments.size() - 1));
+  }
+
+  /** One lock and one LRU map. */
+  private final class Segment {
+
+    /** The entries, least recently used first. */
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     *
+     * @param capacity the most entries in this segment
+     */
+    Segment(final int capacity) {
+      this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> e) {
+          final boolean full = size() > capacity;
+          if (full) {
+            evictions.increment();
+          }
+          return full;
+        }
+      };
+    }
+
+    /**
+     *
+     * @param key the key
+     * @return the entry or null
+     */
+    synchronized Entry<V> get(final K key) {
+      return entries.get(key);
+    }
+
+    /**
+     *
+     * @param key the key
+     * @param entry the entry
+     */
+    synchronized void put(final K key, final Entry<V> entry) {
+      entries.put(key, entry);
+    }
+
+    /** Remove everything. */
+    synchronized void clear() {
+      entries.clear();
+    }
+
+    /**
+     * @return the number of entries
+     */
+    synchronized int size() {
+      return entries.size();
+    }
+  }
+}
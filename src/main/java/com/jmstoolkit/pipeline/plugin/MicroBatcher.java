@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Gathers items handed in by several consumer threads into one batch, hands
+ * the batch to a handler, then lets each thread finish its own item in the
+ * order the items arrived.
+ *
+ * The first thread to arrive leads the batch: it waits until the batch holds
+ * <code>maxSize</code> items, or one item for every other thread which could
+ * still join, or until <code>maxWait</code> has passed, then runs the
+ * handler on its own thread. The threads never wait for a batch which no one
+ * else can join, so a single consumer is not slowed down at all.
+ *
+ * @param <T> the item type
+ * @author Scott Douglass
+ */
+final class MicroBatcher<T> {
+
+  /** Most items in one batch. */
+  private final int maxSize;
+  /** Longest time the leader waits for a batch to fill, in nanoseconds. */
+  private final long maxWaitNanos;
+  /** The number of threads which may hand in items right now. */
+  private final IntSupplier parties;
+  /** Works on a whole batch. */
+  private final Consumer<List<T>> handler;
+  /** Guards everything below. */
+  private final ReentrantLock lock = new ReentrantLock();
+  /** Signalled when a batch grows, is handled, or a thread finishes. */
+  private final Condition changed = lock.newCondition();
+  /** The batch being filled, or null. */
+  private Batch<T> open;
+  /** The ticket for the next item handed in. */
+  private long nextTicket;
+  /** The ticket of the next item allowed to finish. */
+  private long nextFinished;
+  /** Threads whose batch is closed but which have not finished yet. */
+  private int settled;
+
+  /** One batch of items and its outcome. */
+  private static final class Batch<T> {
+
+    /** The items. */
+    private final List<T> items = new ArrayList<>();
+    /** System.nanoTime() when the leader stops waiting. */
+    private final long deadline;
+    /** Whether the handler has finished. */
+    private boolean done;
+    /** What the handler threw, if anything. */
+    private RuntimeException failure;
+
+    /**
+     *
+     * @param inDeadline when the leader stops waiting
+     */
+    Batch(final long inDeadline) {
+      this.deadline = inDeadline;
+    }
+  }
+
+  /**
+   *
+   * @param inMaxSize the most items in one batch
+   * @param maxWaitMillis the longest time to wait for a batch to fill
+   * @param inParties the number of threads which may hand in items
+   * @param inHandler works on a whole batch
+   */
+  MicroBatcher(final int inMaxSize, final long maxWaitMillis,
+    final IntSupplier inParties, final Consumer<List<T>> inHandler) {
+    if (inMaxSize < 1) {
+      throw new IllegalArgumentException("Batch size must be at least 1");
+    }
+    if (maxWaitMillis < 0) {
+      throw new IllegalArgumentException("Batch wait can not be negative");
+    }
+    this.maxSize = inMaxSize;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.parties = inParties;
+    this.handler = inHandler;
+  }
+
+  /**
+   * Adds the item to a batch and waits for the batch to be handled, then
+   * waits for every earlier item to finish before calling
+   * <code>finish</code>. Interrupts do not cut the wait short, since the
+   * other threads in the batch depend on this one, but the interrupt status
+   * is kept.
+   *
+   * @param item the item
+   * @param finish called with the item, in arrival order, if the batch was
+   * handled without an exception
+   * @throws RuntimeException whatever the handler threw
+   */
+  void process(final T item, final Consumer<T> finish) {
+    boolean interrupted = false;
+    final long ticket;
+    final Batch<T> batch;
+    lock.lock();
+    try {
+      ticket = nextTicket++;
+      if (open == null) {
+        open = new Batch<>(System.nanoTime() + maxWaitNanos);
+        batch = open;
+        batch.items.add(item);
+        interrupted = lead(batch);
+      } else {
+        batch = open;
+        batch.items.add(item);
+        if (batch.items.size() >= limit()) {
+          close(batch);
+        }
+        changed.signalAll();
+        while (!batch.done) {
+          changed.awaitUninterruptibly();
+        }
+      }
+      while (nextFinished != ticket) {
+        changed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (batch.failure == null) {
+        finish.accept(item);
+      }
+    } finally {
+      lock.lock();
+      try {
+        nextFinished++;
+        settled--;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (interrupted || Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (batch.failure != null) {
+      throw batch.failure;
+    }
+  }
+
+  /**
+   * Waits for the batch to fill, closes it and runs the handler. Called and
+   * returns with the lock held.
+   *
+   * @param batch the batch this thread leads
+   * @return true if the thread was interrupted while waiting
+   */
+  private boolean lead(final Batch<T> batch) {
+    boolean interrupted = false;
+    long remaining = batch.deadline - System.nanoTime();
+    while (open == batch && batch.items.size() < limit() && remaining > 0) {
+      try {
+        remaining = changed.awaitNanos(remaining);
+      } catch (InterruptedException ex) {
+        interrupted = true;
+        remaining = batch.deadline - System.nanoTime();
+      }
+    }
+    if (open == batch) {
+      close(batch);
+    }
+    lock.unlock();
+    try {
+      handler.accept(batch.items);
+    } catch (RuntimeException ex) {
+      batch.failure = ex;
+    } finally {
+      lock.lock();
+      batch.done = true;
+      changed.signalAll();
+    }
+    return interrupted;
+  }
+
+  /**
+   * Stops the batch taking items. Called with the lock held.
+   *
+   * @param batch the open batch
+   */
+  private void close(final Batch<T> batch) {
+    open = null;
+    settled += batch.items.size();
+  }
+
+  /**
+   * @return how many items the open batch should wait for
+   */
+  private int limit() {
+    return Math.max(1, Math.min(maxSize, parties.getAsInt() - settled));
+  }
+}
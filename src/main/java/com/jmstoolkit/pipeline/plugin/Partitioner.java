@@ -0,0 +1,296 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import com.jmstoolkit.pipeline.XPathRegistry;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.XPath;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which sends each message, unchanged, to one of several destinations chosen
+ * by its key, so that the messages of a key always go to the same one. Use
+ * it to spread a plugin such as an {@link XMLValueTransform} over several
+ * Pipelines, each reading one destination, while each of them keeps seeing
+ * the same keys, and so keeps hitting its lookup cache.
+ *
+ * The destinations are chosen with a {@link ConsistentHashRing} of their JNDI
+ * names, so adding a destination moves only about 1/N of the keys.
+ *
+ * The work XML is a <code>partitions</code> element with:
+ * <ul>
+ * <li><code>key</code>: a message property, or an XPath starting with /,
+ * JMSXGroupID if there is none. A message without a key goes to a
+ * destination chosen by its JMSMessageID,
+ * <li>one or more <code>destination</code> JNDI names. A range in braces is
+ * expanded, <code>dynamicQueues/PL.OUT.{0..3}</code> is four destinations,
+ * <li><code>virtualNodes</code>: the points per destination on the ring,
+ * 160 by default.
+ * </ul>
+ *
+ * @author Scott Douglass
+ */
+public class Partitioner extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Partitioner.class.getName());
+  /** Default points per destination on the ring. */
+  public static final int D_VIRTUAL_NODES = 160;
+  /** A range in a destination name. */
+  private static final Pattern RANGE
+    = Pattern.compile("\\{(\\d+)\\.\\.(\\d+)\\}");
+  /** The key property, when there is no XPath. */
+  private String keyProperty = D_PARTITION_KEY;
+  /** The key XPath, null for a property. */
+  private XPath keyPath;
+  /** The destinations, in the order configured. */
+  private final List<Partition> partitions = new ArrayList<>();
+  /** The destinations by key. */
+  private ConsistentHashRing<Partition> ring;
+  /** Messages without a key. */
+  private final LongAdder unkeyed = new LongAdder();
+
+  /** One destination. */
+  private static final class Partition {
+
+    /** The destination. */
+    private final Destination destination;
+    /** The messages sent to it. */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     *
+     * @param inDestination the destination
+     */
+    Partition(final Destination inDestination) {
+      this.destination = inDestination;
+    }
+  }
+
+  /**
+   * Constructor for creating a useful <code>Partitioner</code>.
+   *
+   * @param pluginName The human readable name for the Partitioner.
+   * @param inConfig The partitions XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Partitioner(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      configure(XMLParsers.parse(inConfig, false).getRootElement());
+      LOGGER.log(Level.INFO, "{0} has {1} partitions",
+        new Object[]{getName(), partitions.size()});
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for partitioner: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (InvalidXPathException ex) {
+      LOGGER.log(Level.SEVERE, "Bad XPath: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   *
+   * @param root the partitions element
+   * @throws NamingException if a destination doesn't exist
+   * @throws XMLTransformException if a setting is bad
+   */
+  private void configure(final Element root)
+    throws NamingException, XMLTransformException {
+    final String key = trim(root.elementText("key"));
+    if (key.startsWith("/")) {
+      keyPath = XPathRegistry.get(key);
+    } else if (!key.isEmpty()) {
+      keyProperty = key;
+    }
+    final Map<String, Partition> nodes = new LinkedHashMap<>();
+    for (Element element : root.elements("destination")) {
+      for (String jndiName : expand(trim(element.getText()))) {
+        if (!nodes.containsKey(jndiName)) {
+          final Partition partition = new Partition((Destination)
+            getJndiTemplate().lookup(jndiName, Destination.class));
+          nodes.put(jndiName, partition);
+          partitions.add(partition);
+        }
+      }
+    }
+    final String virtualNodes = trim(root.elementText("virtualNodes"));
+    try {
+      ring = new ConsistentHashRing<>(nodes, virtualNodes.isEmpty()
+        ? D_VIRTUAL_NODES : Integer.parseInt(virtualNodes));
+    } catch (IllegalArgumentException ex) {
+      throw new XMLTransformException("Bad partitions: " + getName(), ex);
+    }
+  }
+
+  /**
+   * Expand the first range in braces of a destination name, and so on
+   * recursively.
+   *
+   * @param name the name, such as PL.OUT.{0..3}
+   * @return the names, such as PL.OUT.0 to PL.OUT.3
+   * @throws XMLTransformException if the range is bad
+   */
+  static List<String> expand(final String name)
+    throws XMLTransformException {
+    final List<String> result = new ArrayList<>();
+    final Matcher matcher = RANGE.matcher(name);
+    if (!matcher.find()) {
+      if (!name.isEmpty()) {
+        result.add(name);
+      }
+      return result;
+    }
+    final int from;
+    final int to;
+    try {
+      from = Integer.parseInt(matcher.group(1));
+      to = Integer.parseInt(matcher.group(2));
+    } catch (NumberFormatException ex) {
+      throw new XMLTransformException("Bad range: " + name, ex);
+    }
+    if (to < from) {
+      throw new XMLTransformException("Bad range: " + name);
+    }
+    for (int i = from; i <= to; i++) {
+      result.addAll(expand(name.substring(0, matcher.start()) + i
+        + name.substring(matcher.end())));
+    }
+    return result;
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Sends the
+   * message to the destination of its key.
+   *
+   * @param message The JMS Message received.
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage. TextMessages only please.",
+        messageId);
+      return;
+    }
+    try {
+      String key;
+      if (keyPath == null) {
+        final Object value = message.getObjectProperty(keyProperty);
+        key = value == null ? null : value.toString();
+      } else {
+        key = keyPath.valueOf(XMLParsers.parse(
+          ((TextMessage) message).getText(), false));
+      }
+      if (key == null || key.isEmpty()) {
+        unkeyed.increment();
+        key = String.valueOf(messageId);
+      }
+      final Partition partition = ring.get(key);
+      LOGGER.log(Level.FINE, "{0} Partitioned by service: {1} to {2}",
+        new Object[]{messageId, getName(), partition.destination});
+      send(partition.destination,
+        inSession -> copyMessage((TextMessage) message, inSession));
+      partition.count.increment();
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to read message: ", ex);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: ",
+        ex);
+    } catch (JmsException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to send message: ", ex);
+    }
+  }
+
+  /**
+   * Adds the number of messages sent to each destination, and of messages
+   * without a key, to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    for (int i = 0; i < partitions.size(); i++) {
+      stats.put("partition" + i, partitions.get(i).count.sum());
+    }
+    stats.put("unkeyed", unkeyed.sum());
+    return stats;
+  }
+
+  /**
+   * @return the number of destinations
+   */
+  public final int getPartitionCount() {
+    return partitions.size();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * A whole key/value table held in memory. The query must return the key in
+ * its first column, followed by the value, or by the columns the row mapper
+ * reads. The table is loaded into a
+ * new map and then swapped in, so lookups never wait for a reload and never
+ * see a half loaded table.
+ *
+ * @author Scott Douglass
+ */
+public class PreloadedLookup {
+
+  /** Rows fetched per round trip while loading. */
+  private static final int FETCH_SIZE = 1000;
+  /** Used to load the table. */
+  private final JdbcTemplate jdbcTemplate;
+  /** The query returning key, value rows. */
+  private final String sql;
+  /** How often to reload, in seconds, 0 for never. */
+  private final long refreshSeconds;
+  /** Reads the values after the key. */
+  private final RowMapper<String[]> rowMapper;
+  /** The current table. */
+  private volatile Map<String, String[]> values = Collections.emptyMap();
+  /** Number of successful loads. */
+  private final AtomicLong loads = new AtomicLong();
+  /** Number of failed loads. */
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   *
+   * @param dataSource the JDBC data source
+   * @param inSql the query returning key, value rows
+   * @param inRefreshSeconds how often to reload, 0 for never
+   * @throws SQLException if the query isn't a select
+   */
+  public PreloadedLookup(final DataSource dataSource, final String inSql,
+    final long inRefreshSeconds) throws SQLException {
+    this(dataSource, inSql, inRefreshSeconds,
+      (rs, rowNum) -> new String[]{rs.getString(2)});
+  }
+
+  /**
+   *
+   * @param dataSource the JDBC data source
+   * @param inSql the query returning key, value rows
+   * @param inRefreshSeconds how often to reload, 0 for never
+   * @param inRowMapper reads the values after the key
+   * @throws SQLException if the query isn't a select
+   */
+  public PreloadedLookup(final DataSource dataSource, final String inSql,
+    final long inRefreshSeconds, final RowMapper<String[]> inRowMapper)
+    throws SQLException {
+    if (inSql == null
+      || !inSql.toLowerCase(Locale.getDefault()).startsWith("select ")) {
+      throw new SQLException("SQL statement must beging with 'select'.");
+    }
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setFetchSize(FETCH_SIZE);
+    this.sql = inSql;
+    this.refreshSeconds = inRefreshSeconds;
+    this.rowMapper = inRowMapper;
+  }
+
+  /**
+   * Stream the result of the query into a new map and swap it in.
+   *
+   * @throws DataAccessException if the query fails, the old table is kept
+   */
+  public final void load() throws DataAccessException {
+    final Map<String, String[]> table = new HashMap<>(
+      Math.max(16, (int) (values.size() / 0.75f) + 1));
+    try {
+      jdbcTemplate.query(sql, rs -> {
+        table.put(rs.getString(1), rowMapper.mapRow(rs, table.size()));
+      });
+    } catch (DataAccessException ex) {
+      failures.incrementAndGet();
+      throw ex;
+    }
+    values = table;
+    loads.incrementAndGet();
+  }
+
+  /**
+   *
+   * @param key the key
+   * @return the values, or null if the key isn't in the table
+   */
+  public final String[] get(final String key) {
+    return values.get(key);
+  }
+
+  /**
+   * @return the number of rows in the table
+   */
+  public final int size() {
+    return values.size();
+  }
+
+  /**
+   * @return true once a load has succeeded, before that the table is empty
+   * and no use for lookups
+   */
+  public final boolean isLoaded() {
+    return loads.get() > 0;
+  }
+
+  /**
+   * @return the number of successful loads
+   */
+  public final long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * @return the number of failed loads
+   */
+  public final long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @return how often to reload, in seconds, 0 for never
+   */
+  public final long getRefreshSeconds() {
+    return refreshSeconds;
+  }
+
+  /**
+   * @return the query
+   */
+  public final String getSql() {
+    return sql;
+  }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which puts messages back in order after stages which handle them
+ * concurrently. Messages are grouped by JMSCorrelationID, or by a message
+ * property, and passed on in the order of a sequence property within each
+ * group, such as the one set by a {@link Splitter}.
+ *
+ * The work XML is a <code>resequence</code> element with these optional
+ * settings:
+ * <ul>
+ * <li><code>sequence</code>: the sequence property, sequence by default,
+ * <li><code>group</code>: the group property, the JMSCorrelationID if there
+ * is none,
+ * <li><code>first</code>: the first sequence number of a group, 1 by
+ * default,
+ * <li><code>maxBuffer</code>: the most messages waiting in a group, 1000 by
+ * default,
+ * <li><code>maxDistance</code>: how far ahead of the next expected message
+ * one may be, 1000 by default,
+ * <li><code>gapTimeout</code>: how long to wait for a missing message in ms,
+ * 5000 by default,
+ * <li><code>idleTimeout</code>: when to forget a group which has nothing
+ * waiting, in ms, 600000 by default. A group whose <code>total</code> has
+ * been passed on is forgotten at once,
+ * <li><code>maxCompleted</code>: the number of such completed groups whose
+ * key is remembered, for idleTimeout, 10000 by default. Any message of one
+ * of them is dropped as a duplicate, so group keys shouldn't be reused.
+ * </ul>
+ * When a buffer is full, a message is too far ahead, or a gap times out,
+ * the missing messages are given up on and the waiting ones passed on. A
+ * message given up on which arrives after all is passed on at once, out of
+ * order, a copy of one already passed on is dropped as a duplicate.
+ *
+ * Each group is a {@link SequenceBuffer}, which has no locks on the way
+ * through: whichever consumer thread is passing messages on also passes on
+ * the ones put in by other threads. In transacted mode a message may so be
+ * sent in the transaction of another message of the group.
+ *
+ * @author Scott Douglass
+ */
+public class Resequencer extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Resequencer.class.getName());
+  /** Default most messages waiting in a group. */
+  public static final int D_MAX_BUFFER = 1000;
+  /** Default distance ahead of the next expected message. */
+  public static final long D_MAX_DISTANCE = 1000L;
+  /** Default wait for a missing message in ms. */
+  public static final long D_GAP_TIMEOUT = 5000L;
+  /** Default time before an idle group is forgotten in ms. */
+  public static final long D_IDLE_TIMEOUT = 600000L;
+  /** Default number of completed groups remembered. */
+  public static final int D_MAX_COMPLETED = 10000;
+  /** The sequence property. */
+  private String sequence = Splitter.P_SEQUENCE;
+  /** The group property, null for the JMSCorrelationID. */
+  private String group;
+  /** The first sequence number of a group. */
+  private long first = 1;
+  /** The most messages waiting in a group. */
+  private int maxBuffer = D_MAX_BUFFER;
+  /** How far ahead of the next expected message one may be. */
+  private long maxDistance = D_MAX_DISTANCE;
+  /** How long to wait for a missing message in ms. */
+  private long gapTimeout = D_GAP_TIMEOUT;
+  /** When to forget an idle group in ms. */
+  private long idleTimeout = D_IDLE_TIMEOUT;
+  /** The number of completed groups remembered. */
+  private int maxCompleted = D_MAX_COMPLETED;
+  /** The groups by key. */
+  private final Map<String, Group> groups = new ConcurrentHashMap<>();
+  /** Recently completed groups, oldest first, guarded by itself. */
+  private final LinkedHashMap<String, Long> completed
+    = new LinkedHashMap<String, Long>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<String, Long> eldest) {
+        return size() > maxCompleted;
+      }
+    };
+  /** The reordering counters of all groups. */
+  private final SequenceBuffer.Counters counters
+    = new SequenceBuffer.Counters();
+  /** Messages without a sequence number, passed on at once. */
+  private final LongAdder unsequenced = new LongAdder();
+
+  /** The messages of one group. */
+  private static final class Group {
+
+    /** The key. */
+    private final String key;
+    /** The messages, in order. */
+    private final SequenceBuffer<TextMessage> messages;
+    /** The number of messages in the group, 0 if unknown. */
+    private volatile long total;
+    /** Set once the group is forgotten. */
+    private volatile boolean removed;
+
+    /**
+     *
+     * @param inKey the key
+     * @param inMessages the messages
+     */
+    Group(final String inKey, final SequenceBuffer<TextMessage> inMessages) {
+      this.key = inKey;
+      this.messages = inMessages;
+    }
+  }
+
+  /**
+   * Constructor for creating a useful <code>Resequencer</code>.
+   *
+   * @param pluginName The human readable name for the Resequencer.
+   * @param inConfig The resequence XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Resequencer(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      configure(XMLParsers.parse(inConfig, false));
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for resequencer: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   *
+   * @param work the resequence XML
+   * @throws XMLTransformException if a setting is bad
+   */
+  final void configure(final Document work) throws XMLTransformException {
+    final String sequenceName = trim(work.valueOf("/resequence/sequence"));
+    if (!sequenceName.isEmpty()) {
+      sequence = sequenceName;
+    }
+    final String groupName = trim(work.valueOf("/resequence/group"));
+    group = groupName.isEmpty() ? null : groupName;
+    try {
+      first = getLong(work, "first", first);
+      maxBuffer = (int) getLong(work, "maxBuffer", maxBuffer);
+      maxDistance = getLong(work, "maxDistance", maxDistance);
+      gapTimeout = getLong(work, "gapTimeout", gapTimeout);
+      idleTimeout = getLong(work, "idleTimeout", idleTimeout);
+      maxCompleted = (int) getLong(work, "maxCompleted", maxCompleted);
+    } catch (NumberFormatException ex) {
+      throw new XMLTransformException("Bad number in resequencer: "
+        + getName(), ex);
+    }
+    if (maxBuffer < 1 || maxDistance < 1 || gapTimeout < 1
+      || idleTimeout < 1 || maxCompleted < 0) {
+      throw new XMLTransformException("Bad limits in resequencer: "
+        + getName());
+    }
+  }
+
+  /**
+   *
+   * @param work the resequence XML
+   * @param setting the element name
+   * @param defaultValue the value if the element is missing
+   * @return the value
+   */
+  private long getLong(final Document work, final String setting,
+    final long defaultValue) {
+    final String value = trim(work.valueOf("/resequence/" + setting));
+    return value.isEmpty() ? defaultValue : Long.parseLong(value);
+  }
+
+  /**
+   * Starts the consumers, then checks for gaps and idle groups a few times
+   * per gap timeout.
+   */
+  @Override
+  public void init() {
+    super.init();
+    final long period = Math.max(10L, gapTimeout / 4);
+    getScheduler().scheduleWithFixedDelay(this::checkGroups, period, period,
+      TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the consumers, then passes on the messages still waiting in every
+   * group, giving up on the missing ones. They were already received, so
+   * they would be lost otherwise.
+   */
+  @Override
+  public void stop() {
+    super.stop();
+    for (Group g : groups.values()) {
+      remove(g);
+      g.messages.flush();
+    }
+  }
+
+  /**
+   * Gives up on gaps which have timed out and forgets idle groups, and
+   * groups which completed more than idleTimeout ago.
+   */
+  private void checkGroups() {
+    final long now = System.currentTimeMillis();
+    synchronized (completed) {
+      final Iterator<Long> done = completed.values().iterator();
+      while (done.hasNext() && now - done.next() > idleTimeout) {
+        done.remove();
+      }
+    }
+    for (Group g : groups.values()) {
+      if (g.messages.size() > 0) {
+        if (now - g.messages.getProgress() > gapTimeout) {
+          g.messages.skip();
+          checkComplete(g);
+        }
+      } else if (now - g.messages.getProgress() > idleTimeout) {
+        remove(g);
+      }
+    }
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Adds the
+   * message to its group and passes on what is next in line.
+   *
+   * @param message The JMS Message received.
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage. TextMessages only please.",
+        messageId);
+      return;
+    }
+    final TextMessage text = (TextMessage) message;
+    try {
+      final String key = group == null
+        ? message.getJMSCorrelationID() : message.getStringProperty(group);
+      if (key == null || !message.propertyExists(sequence)) {
+        unsequenced.increment();
+        emit(text);
+        countOperation();
+        return;
+      }
+      final long seq = message.getLongProperty(sequence);
+      final long now = System.currentTimeMillis();
+      Group g = groups.get(key);
+      if (g == null) {
+        if (isCompleted(key)) {
+          counters.addDuplicate();
+          LOGGER.log(Level.INFO, "{0} Completed {1}, dropped by: {2}",
+            new Object[]{messageId, key, getName()});
+          countOperation();
+          return;
+        }
+        g = groups.computeIfAbsent(key, k -> new Group(k,
+          new SequenceBuffer<>(first, maxBuffer, maxDistance, this::emit,
+            counters, now)));
+      }
+      if (message.propertyExists(Splitter.P_TOTAL)) {
+        g.total = message.getLongProperty(Splitter.P_TOTAL);
+      }
+      g.messages.add(seq, text, now);
+      checkComplete(g);
+      if (g.removed) {
+        // forgotten while this message was added, don't leave it behind
+        g.messages.flush();
+      }
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to read message: ", ex);
+    }
+  }
+
+  /**
+   * Forget a group once its <code>total</code> has been passed on, and
+   * remember that it completed.
+   *
+   * @param g the group
+   */
+  private void checkComplete(final Group g) {
+    if (g.total > 0 && g.messages.getNext() > g.total + first - 1) {
+      // remembered before it goes, so a copy always finds one of them
+      synchronized (completed) {
+        completed.put(g.key, System.currentTimeMillis());
+      }
+      remove(g);
+    }
+  }
+
+  /**
+   *
+   * @param key a group key
+   * @return true if the group completed recently
+   */
+  private boolean isCompleted(final String key) {
+    synchronized (completed) {
+      return completed.containsKey(key);
+    }
+  }
+
+  /**
+   * Forget a group.
+   *
+   * @param g the group
+   */
+  private void remove(final Group g) {
+    g.removed = true;
+    groups.remove(g.key, g);
+  }
+
+  /**
+   *
+   * @param message the message to pass on
+   */
+  private void emit(final TextMessage message) {
+    try {
+      send(inSession -> copyMessage(message, inSession));
+    } catch (JmsException ex) {
+      LOGGER.log(Level.SEVERE, getName() + " Failed to send message", ex);
+    }
+  }
+
+  /**
+   * Adds the group and reordering counters to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    long waiting = 0;
+    for (Group g : groups.values()) {
+      waiting += g.messages.size();
+    }
+    stats.put("groups", (long) groups.size());
+    synchronized (completed) {
+      stats.put("completed", (long) completed.size());
+    }
+    stats.put("waiting", waiting);
+    stats.put("late", counters.getLate());
+    stats.put("skipped", counters.getSkipped());
+    stats.put("duplicates", counters.getDuplicates());
+    stats.put("unsequenced", unsequenced.sum());
+    return stats;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.io.ByteArrayOutputStream;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * A <code>ByteArrayOutputStream</code> meant to be kept per thread and used
+ * over and over, which can write its contents into a
+ * <code>BytesMessage</code> without the copy made by
+ * <code>toByteArray()</code>.
+ *
+ * @author Scott Douglass
+ */
+final class ReusableOutputStream extends ByteArrayOutputStream {
+
+  /**
+   * Buffers which grew past this many bytes are not worth keeping around
+   * between messages.
+   */
+  static final int MAX_RETAINED = 8 * 1024 * 1024;
+
+  /** Starts with an 8KB buffer. */
+  ReusableOutputStream() {
+    super(8192);
+  }
+
+  /**
+   *
+   * @param message the message to write the buffered bytes to
+   * @throws JMSException on JMS error
+   */
+  void writeTo(final BytesMessage message) throws JMSException {
+    message.writeBytes(buf, 0, count);
+  }
+
+  /**
+   * @return true if the buffer is small enough to keep for the next message
+   */
+  boolean isRetainable() {
+    return buf.length <= MAX_RETAINED;
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import com.jmstoolkit.pipeline.XPathRegistry;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.XPath;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which sends each message, unchanged, to the destination of the first route
+ * whose condition it matches, or to the default destination. One Router
+ * replaces an XMLTransform per branch, each of which would have received
+ * and transformed every message.
+ *
+ * The work XML is a <code>routes</code> element holding, in order,
+ * <code>route</code> elements with a condition and a
+ * <code>destination</code> JNDI name, and an optional <code>default</code>
+ * JNDI name, the plugin's output if there is none. A condition is one of:
+ * <ul>
+ * <li><code>xpath</code>: an XPath expression, true for the route to match,
+ * <li><code>property</code>: the message property named by its
+ * <code>name</code> attribute equals its text, or only exists if the text is
+ * empty. The message body isn't read.
+ * </ul>
+ * An XPath of the form <code>/simple/path = 'literal'</code> is decided by a
+ * StAX scan which compares the text of every element at the path, true if
+ * any of them equals the literal, as the XPath would be. The scan stops as
+ * soon as the literal of every such route has been seen, so only a message
+ * which fails one of them is read to the end. The
+ * message is only parsed into a <code>Document</code> when a route with any
+ * other XPath is reached. The conditions are compiled once.
+ *
+ * @author Scott Douglass
+ */
+public class Router extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Router.class.getName());
+  /** An XPath the scan can decide: a simple path equal to a literal. */
+  private static final Pattern SCANNABLE
+    = Pattern.compile("\\s*(\\S+?)\\s*=\\s*'([^']*)'\\s*");
+  /** Thread safe, shared. */
+  private static final XMLInputFactory INPUT_FACTORY
+    = XMLInputFactory.newInstance();
+  /** The routes, in order. */
+  private final List<Route> routes = new ArrayList<>();
+  /** The literals the scan looks for, by path. */
+  private final Map<String, Set<String>> scanLiterals = new HashMap<>();
+  /** The number of literals the scan looks for. */
+  private int scanCount;
+  /** Where messages matching no route go. */
+  private Destination defaultRoute;
+  /** Messages matching no route. */
+  private final LongAdder defaulted = new LongAdder();
+
+  /** A route condition. */
+  private interface Condition {
+
+    /**
+     *
+     * @param routing the message being routed
+     * @return true if the message takes the route
+     * @throws JMSException if a property can't be read
+     * @throws XMLStreamException if the scan fails
+     * @throws DocumentException if the message can't be parsed
+     */
+    boolean test(Routing routing) throws JMSException, XMLStreamException,
+      DocumentException;
+  }
+
+  /** A condition and where the messages matching it go. */
+  private static final class Route {
+
+    /** The condition. */
+    private final Condition condition;
+    /** The destination. */
+    private final Destination destination;
+    /** Messages sent on this route. */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     *
+     * @param inCondition the condition
+     * @param inDestination the destination
+     */
+    Route(final Condition inCondition, final Destination inDestination) {
+      this.condition = inCondition;
+      this.destination = inDestination;
+    }
+  }
+
+  /** The message being routed, read no further than the routes need. */
+  private final class Routing {
+
+    /** The message. */
+    private final TextMessage message;
+    /** The literals seen at each scanned path. */
+    private Map<String, Set<String>> seen;
+    /** The parsed message. */
+    private Document document;
+
+    /**
+     *
+     * @param inMessage the message
+     */
+    Routing(final TextMessage inMessage) {
+      this.message = inMessage;
+    }
+
+    /**
+     *
+     * @param path a scanned path
+     * @param literal a literal looked for at the path
+     * @return true if an element at the path has the literal as its text
+     * @throws JMSException if the text can't be read
+     * @throws XMLStreamException if the message isn't well formed
+     */
+    boolean isSeen(final String path, final String literal)
+      throws JMSException, XMLStreamException {
+      if (seen == null) {
+        seen = scan(message.getText());
+      }
+      return seen.getOrDefault(path, Collections.emptySet())
+        .contains(literal);
+    }
+
+    /**
+     *
+     * @return the parsed message
+     * @throws JMSException if the text can't be read
+     * @throws DocumentException if the message can't be parsed
+     */
+    Document getDocument() throws JMSException, DocumentException {
+      if (document == null) {
+        document = XMLParsers.parse(message.getText(), false);
+      }
+      return document;
+    }
+  }
+
+  /**
+   * Constructor for creating a useful <code>Router</code>.
+   *
+   * @param pluginName The human readable name for the Router.
+   * @param inConfig The routes XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Router(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      final Element root = XMLParsers.parse(inConfig, false).getRootElement();
+      for (Element element : root.elements("route")) {
+        addRoute(element, lookup(element.elementTextTrim("destination")));
+      }
+      final String defaultName = trim(root.elementText("default"));
+      defaultRoute = defaultName.isEmpty() ? getOutput() : lookup(defaultName);
+      LOGGER.log(Level.INFO, "{0} has {1} routes, {2} scanned paths",
+        new Object[]{getName(), routes.size(), scanLiterals.size()});
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for router: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (InvalidXPathException ex) {
+      LOGGER.log(Level.SEVERE, "Bad XPath: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   *
+   * @param jndiName the JNDI name of a route's destination
+   * @return the destination
+   * @throws NamingException if there is no such destination
+   */
+  private Destination lookup(final String jndiName) throws NamingException {
+    return (Destination) getJndiTemplate().lookup(jndiName, Destination.class);
+  }
+
+  /**
+   * Add a route after the others.
+   *
+   * @param route the route configuration
+   * @param destination where the messages taking it go
+   * @throws XMLTransformException if the route has no condition or two
+   */
+  final void addRoute(final Element route, final Destination destination)
+    throws XMLTransformException {
+    routes.add(new Route(getCondition(route), destination));
+  }
+
+  /**
+   * Compile the condition of a route.
+   *
+   * @param route the route configuration
+   * @return the condition
+   * @throws XMLTransformException if the route has no condition or two
+   */
+  private Condition getCondition(final Element route)
+    throws XMLTransformException {
+    final Element xpath = route.element("xpath");
+    final Element property = route.element("property");
+    if ((xpath == null) == (property == null)) {
+      throw new XMLTransformException("A route needs an xpath or a property "
+        + "in router: " + getName());
+    }
+    if (property != null) {
+      final String propertyName = trim(property.attributeValue("name"));
+      final String value = property.getTextTrim();
+      if (propertyName.isEmpty()) {
+        throw new XMLTransformException("A property needs a name in router: "
+          + getName());
+      }
+      return routing -> value.isEmpty()
+        ? routing.message.propertyExists(propertyName)
+        : value.equals(routing.message.getStringProperty(propertyName));
+    }
+    final String expression = xpath.getTextTrim();
+    final Matcher matcher = SCANNABLE.matcher(expression);
+    if (matcher.matches()
+      && XMLValueTransformer.isSimplePath(matcher.group(1))) {
+      final String path = matcher.group(1);
+      final String value = matcher.group(2);
+      if (scanLiterals.computeIfAbsent(path, k -> new HashSet<>())
+        .add(value)) {
+        scanCount++;
+      }
+      return routing -> routing.isSeen(path, value);
+    }
+    final XPath compiled = XPathRegistry.get(expression);
+    return routing -> compiled.booleanValueOf(routing.getDocument());
+  }
+
+  /**
+   * Read the message, comparing the text of every element at a scanned path
+   * with the literals looked for there, until all of them have been seen.
+   * An element can't be inside another one with the same path, so one is
+   * captured at a time per path.
+   *
+   * @param body the message
+   * @return the literals seen, by path
+   * @throws XMLStreamException if the message isn't well formed
+   */
+  private Map<String, Set<String>> scan(final String body)
+    throws XMLStreamException {
+    final Map<String, Set<String>> found = new HashMap<>();
+    int missing = scanCount;
+    final Map<String, StringBuilder> capturing = new HashMap<>();
+    final Deque<String> paths = new ArrayDeque<>();
+    final XMLEventReader reader
+      = INPUT_FACTORY.createXMLEventReader(new StringReader(body));
+    try {
+      while (missing > 0 && reader.hasNext()) {
+        final XMLEvent event = reader.nextEvent();
+        if (event.isStartElement()) {
+          final String path = StreamingEnricher.path(paths.peek(),
+            event.asStartElement().getName());
+          paths.push(path);
+          if (scanLiterals.containsKey(path)) {
+            capturing.put(path, new StringBuilder());
+          }
+        } else if (event.isCharacters() && !capturing.isEmpty()) {
+          final String data = event.asCharacters().getData();
+          for (StringBuilder text : capturing.values()) {
+            text.append(data);
+          }
+        } else if (event.isEndElement()) {
+          final String path = paths.pop();
+          final StringBuilder text = capturing.remove(path);
+          if (text != null
+            && scanLiterals.get(path).contains(text.toString())
+            && found.computeIfAbsent(path, k -> new HashSet<>())
+              .add(text.toString())) {
+            missing--;
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return found;
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Sends the
+   * message to the destination of the first route it matches.
+   *
+   * @param message The JMS Message received.
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage. TextMessages only please.",
+        messageId);
+      return;
+    }
+    try {
+      final Destination destination = route((TextMessage) message);
+      LOGGER.log(Level.FINE, "{0} Routed by service: {1} to {2}",
+        new Object[]{messageId, getName(), destination});
+      send(destination,
+        inSession -> copyMessage((TextMessage) message, inSession));
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to read message: ", ex);
+    } catch (XMLStreamException | DocumentException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: ",
+        ex);
+    } catch (JmsException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to send message: ", ex);
+    }
+  }
+
+  /**
+   * Find where a message goes, and count it on its route.
+   *
+   * @param message the message
+   * @return the destination of the first route it matches, or the default
+   * @throws JMSException if the message can't be read
+   * @throws XMLStreamException if the scan fails
+   * @throws DocumentException if the message can't be parsed
+   */
+  final Destination route(final TextMessage message) throws JMSException,
+    XMLStreamException, DocumentException {
+    final Routing routing = new Routing(message);
+    for (Route route : routes) {
+      if (route.condition.test(routing)) {
+        route.count.increment();
+        return route.destination;
+      }
+    }
+    defaulted.increment();
+    return defaultRoute;
+  }
+
+  /**
+   * Adds the number of messages sent on each route, and to the default
+   * destination, to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    for (int i = 0; i < routes.size(); i++) {
+      stats.put("route" + (i + 1), routes.get(i).count.sum());
+    }
+    stats.put("defaulted", defaulted.sum());
+    return stats;
+  }
+
+  /**
+   * @return the number of routes, not counting the default
+   */
+  public final int getRouteCount() {
+    return routes.size();
+  }
+}
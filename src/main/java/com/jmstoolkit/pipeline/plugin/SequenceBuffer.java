@@ -0,0 +1,295 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Puts the messages of one sequence back in order and passes them on.
+ *
+ * There are no locks on the way through. The messages wait in a concurrent
+ * sorted buffer, and whichever thread wins a compare-and-set passes on
+ * every message which is next in line, including ones added by other
+ * threads.
+ *
+ * A missing message is given up on when the buffer holds more than
+ * <code>maxBuffer</code> messages, when one is <code>maxDistance</code> or
+ * more ahead of it, or when <code>skip</code> is called because it has
+ * been missing too long. The sequence numbers given up on are remembered,
+ * so that such a message arriving after its turn is passed on at once, out
+ * of order, while a copy of one already passed on is dropped as a
+ * duplicate. At most <code>maxBuffer</code> gaps are remembered, a message
+ * from an older one is taken for a duplicate too.
+ *
+ * @param <T> the messages
+ * @author Scott Douglass
+ */
+final class SequenceBuffer<T> {
+
+  /** The counters shared by the buffers of a plugin. */
+  static final class Counters {
+
+    /** Messages passed on after their turn. */
+    private final LongAdder late = new LongAdder();
+    /** Missing messages given up on. */
+    private final LongAdder skipped = new LongAdder();
+    /** Messages with a sequence number already waiting or passed on. */
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * Count a duplicate found outside the buffers.
+     */
+    void addDuplicate() {
+      duplicates.increment();
+    }
+
+    /**
+     * @return the messages passed on after their turn
+     */
+    long getLate() {
+      return late.sum();
+    }
+
+    /**
+     * @return the missing messages given up on
+     */
+    long getSkipped() {
+      return skipped.sum();
+    }
+
+    /**
+     * @return the messages dropped as duplicates
+     */
+    long getDuplicates() {
+      return duplicates.sum();
+    }
+  }
+
+  /** The messages waiting, by sequence number. */
+  private final ConcurrentSkipListMap<Long, T> buffer
+    = new ConcurrentSkipListMap<>();
+  /** The number of messages waiting. */
+  private final AtomicInteger size = new AtomicInteger();
+  /** Held by the thread passing messages on. */
+  private final AtomicBoolean draining = new AtomicBoolean();
+  /** Messages up to this sequence number don't wait for missing ones. */
+  private final AtomicLong skipTo = new AtomicLong(Long.MIN_VALUE);
+  /** The ranges given up on, first to last exclusive, guarded by itself. */
+  private final TreeMap<Long, Long> gaps = new TreeMap<>();
+  /** The most messages waiting. */
+  private final int maxBuffer;
+  /** How far ahead of the next expected message one may be. */
+  private final long maxDistance;
+  /** Passes a message on. */
+  private final Consumer<T> emit;
+  /** Where to count. */
+  private final Counters counters;
+  /** The next sequence number to pass on, written by the drainer. */
+  private volatile long next;
+  /** When a message last arrived or was passed on. */
+  private volatile long progress;
+
+  /**
+   *
+   * @param first the first sequence number
+   * @param inMaxBuffer the most messages waiting
+   * @param inMaxDistance how far ahead of the next expected message one may
+   * be
+   * @param inEmit passes a message on
+   * @param inCounters where to count
+   * @param now the current time
+   */
+  SequenceBuffer(final long first, final int inMaxBuffer,
+    final long inMaxDistance, final Consumer<T> inEmit,
+    final Counters inCounters, final long now) {
+    this.next = first;
+    this.maxBuffer = inMaxBuffer;
+    this.maxDistance = inMaxDistance;
+    this.emit = inEmit;
+    this.counters = inCounters;
+    this.progress = now;
+  }
+
+  /**
+   * Add a message, and pass on what is next in line.
+   *
+   * @param seq its sequence number
+   * @param message the message
+   * @param now the current time
+   */
+  void add(final long seq, final T message, final long now) {
+    progress = now;
+    if (seq < next) {
+      late(seq, message);
+    } else if (buffer.putIfAbsent(seq, message) != null) {
+      counters.duplicates.increment();
+    } else {
+      size.incrementAndGet();
+      if (seq - next >= maxDistance) {
+        skipTo.accumulateAndGet(seq - maxDistance, Math::max);
+      }
+      drain();
+    }
+  }
+
+  /**
+   * Give up on the messages missing before the first waiting one.
+   */
+  void skip() {
+    final Map.Entry<Long, T> head = buffer.firstEntry();
+    if (head != null) {
+      skipTo.accumulateAndGet(head.getKey(), Math::max);
+      drain();
+    }
+  }
+
+  /**
+   * Give up on every missing message, passing on all the waiting ones.
+   */
+  void flush() {
+    skipTo.set(Long.MAX_VALUE);
+    drain();
+  }
+
+  /**
+   * Pass on the messages next in line, unless another thread is already
+   * doing so. Checks again after letting go, so a message added meanwhile
+   * isn't left waiting.
+   */
+  private void drain() {
+    while (draining.compareAndSet(false, true)) {
+      try {
+        Map.Entry<Long, T> head;
+        while ((head = buffer.firstEntry()) != null && isReady(head)) {
+          final long seq = head.getKey();
+          buffer.remove(seq);
+          size.decrementAndGet();
+          progress = System.currentTimeMillis();
+          if (seq < next) {
+            // its turn passed while it was being added
+            late(seq, head.getValue());
+            continue;
+          }
+          if (seq > next) {
+            // remembered before next moves past it, for late arrivals
+            addGap(next, seq);
+            counters.skipped.add(seq - next);
+          }
+          next = seq + 1;
+          emit.accept(head.getValue());
+        }
+      } finally {
+        draining.set(false);
+      }
+      final Map.Entry<Long, T> head = buffer.firstEntry();
+      if (head == null || !isReady(head)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   *
+   * @param head the first waiting message
+   * @return true if the message can be passed on now
+   */
+  private boolean isReady(final Map.Entry<Long, T> head) {
+    return head.getKey() <= next || head.getKey() <= skipTo.get()
+      || size.get() > maxBuffer;
+  }
+
+  /**
+   * Pass on a message whose turn has passed if it was given up on, or drop
+   * it as a duplicate.
+   *
+   * @param seq its sequence number
+   * @param message the message
+   */
+  private void late(final long seq, final T message) {
+    if (unskip(seq)) {
+      counters.late.increment();
+      emit.accept(message);
+    } else {
+      counters.duplicates.increment();
+    }
+  }
+
+  /**
+   * Remember a range given up on, forgetting the oldest beyond
+   * <code>maxBuffer</code>.
+   *
+   * @param from the first sequence number
+   * @param to the last sequence number, exclusive
+   */
+  private void addGap(final long from, final long to) {
+    synchronized (gaps) {
+      gaps.put(from, to);
+      while (gaps.size() > maxBuffer) {
+        gaps.pollFirstEntry();
+      }
+    }
+  }
+
+  /**
+   * Take a sequence number out of the ranges given up on.
+   *
+   * @param seq the sequence number
+   * @return true if it was given up on, false if it was passed on
+   */
+  private boolean unskip(final long seq) {
+    synchronized (gaps) {
+      final Map.Entry<Long, Long> gap = gaps.floorEntry(seq);
+      if (gap == null || seq >= gap.getValue()) {
+        return false;
+      }
+      gaps.remove(gap.getKey());
+      if (gap.getKey() < seq) {
+        gaps.put(gap.getKey(), seq);
+      }
+      if (seq + 1 < gap.getValue()) {
+        gaps.put(seq + 1, gap.getValue());
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the next sequence number to pass on
+   */
+  long getNext() {
+    return next;
+  }
+
+  /**
+   * @return the number of messages waiting
+   */
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * @return when a message last arrived or was passed on
+   */
+  long getProgress() {
+    return progress;
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.BytesMessage;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import org.dom4j.DocumentException;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * An implementation of the {@link com.jmstoolkit.pipeline.Plugin} interface
+ * which splits a batch document into one message per record. The batch is
+ * read with StAX and each record is published as soon as its end tag is
+ * read, so only one record is held at a time instead of a
+ * <code>Document</code> of the whole batch.
+ *
+ * The work XML is a <code>split</code> element with a <code>path</code>,
+ * an absolute path of element names such as <code>/batch/trade</code>, see
+ * {@link XMLValueTransformer#isSimplePath(String)}. Namespaces declared
+ * above a record are declared again on it, so every record is a complete
+ * document.
+ *
+ * Every record gets the batch's correlation ID, or the batch's message ID
+ * if it had none, and the <code>splitId</code>, <code>sequence</code> (from
+ * 1) and <code>total</code> properties, so that the records can be handled
+ * in parallel and put back together. To know the total before the first
+ * record is sent the batch is read twice, the first time with the StAX
+ * cursor API which only counts elements.
+ *
+ * @author Scott Douglass
+ */
+public class Splitter extends AbstractPlugin {
+
+  /** The Logger for this class. */
+  private static final Logger LOGGER
+    = Logger.getLogger(Splitter.class.getName());
+  /** Message property holding the message ID of the batch. */
+  public static final String P_SPLIT_ID = "splitId";
+  /** Message property holding the position of a record, from 1. */
+  public static final String P_SEQUENCE = "sequence";
+  /** Message property holding the number of records in the batch. */
+  public static final String P_TOTAL = "total";
+  /** Thread safe, shared. */
+  private static final XMLInputFactory INPUT_FACTORY
+    = XMLInputFactory.newInstance();
+  /** Thread safe, shared. */
+  private static final XMLOutputFactory OUTPUT_FACTORY
+    = XMLOutputFactory.newInstance();
+  /** Thread safe, shared. */
+  private static final XMLEventFactory EVENT_FACTORY
+    = XMLEventFactory.newInstance();
+  /** The path of the records. */
+  private String path;
+  /** Records published. */
+  private final LongAdder records = new LongAdder();
+
+  /**
+   * Constructor for creating a useful <code>Splitter</code>.
+   *
+   * @param pluginName The human readable name for the Splitter.
+   * @param inConfig The split XML.
+   * @param inputName The JNDI name of the JMS Destination to subscribe to.
+   * @param outputName The JNDI name of the JMS Destination to publish to.
+   * @param replyToName The JNDI name of the JMS Destination for reply/status.
+   * @param connectionFactory A JMS ConnectionFactory implementation.
+   * @param inJndiTemplate A Spring Framework JndiTemplate.
+   */
+  public Splitter(final String pluginName, final String inConfig,
+    final String inputName,
+    final String outputName, final String replyToName,
+    final ConnectionFactory connectionFactory,
+    final JndiTemplate inJndiTemplate) {
+    super();
+    this.jndiTemplate = inJndiTemplate;
+    setName(pluginName);
+    setInName(inputName);
+    setOutName(outputName);
+    setReplyToName(replyToName);
+    try {
+      setInput((Destination) getJndiTemplate().lookup(
+        inputName, Destination.class));
+      setOutput((Destination) getJndiTemplate().lookup(
+        outputName, Destination.class));
+      setReplyTo((Destination) getJndiTemplate().lookup(
+        replyToName, Destination.class));
+      getJmsTemplate().setConnectionFactory(connectionFactory);
+      getJmsTemplate().setDefaultDestination(getOutput());
+      setPath(XMLParsers.parse(inConfig, false).valueOf("/split/path"));
+    } catch (NamingException ex) {
+      LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
+        + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for splitter: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (XMLTransformException ex) {
+      LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
+      setStatus(STATUS_FAILED);
+    }
+  }
+
+  /**
+   *
+   * @param inPath the path of the records
+   * @throws XMLTransformException if it isn't a simple path
+   */
+  final void setPath(final String inPath) throws XMLTransformException {
+    final String trimmed = trim(inPath);
+    if (!XMLValueTransformer.isSimplePath(trimmed)) {
+      throw new XMLTransformException("Not a simple path: " + trimmed
+        + " in splitter: " + getName());
+    }
+    this.path = trimmed;
+  }
+
+  /**
+   * Implementation of JMS <code>MessageListener</code> interface. Publishes
+   * every record of the batch as its own <code>TextMessage</code>.
+   *
+   * @param message The JMS Message received.
+   */
+  @Override
+  public final void onMessage(final Message message) {
+    String messageId = "";
+    try {
+      messageId = message.getJMSMessageID();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
+    }
+    if (!(message instanceof TextMessage)
+      && !(message instanceof BytesMessage)) {
+      LOGGER.log(Level.WARNING,
+        "{0} Message is not a TextMessage or BytesMessage.", messageId);
+      return;
+    }
+    try {
+      final String splitId = messageId;
+      final String correlationId = message.getJMSCorrelationID() == null
+        ? messageId : message.getJMSCorrelationID();
+      final int total = count(open(message));
+      final int[] sequence = {0};
+      split(INPUT_FACTORY.createXMLEventReader(open(message)), record -> {
+        final int position = ++sequence[0];
+        send(inSession -> {
+          final TextMessage part = inSession.createTextMessage(record);
+          part.setStringProperty(P_SPLIT_ID, splitId);
+          part.setIntProperty(P_SEQUENCE, position);
+          part.setIntProperty(P_TOTAL, total);
+          return new BasicMessageProcessor(correlationId)
+            .postProcessMessage(part);
+        });
+        records.increment();
+      });
+      LOGGER.log(Level.INFO, "{0} Split into {1} records by service: {2}",
+        new Object[]{messageId, total, getName()});
+      countOperation();
+    } catch (JMSException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to read message: ", ex);
+    } catch (XMLStreamException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: ",
+        ex);
+    } catch (JmsException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " Failed to send record: ", ex);
+    }
+  }
+
+  /**
+   * Read the body of a message from the start.
+   *
+   * @param message a TextMessage or BytesMessage
+   * @return a cursor over the body
+   * @throws JMSException if the body can't be read
+   * @throws XMLStreamException if the reader can't be created
+   */
+  private static XMLStreamReader open(final Message message)
+    throws JMSException, XMLStreamException {
+    if (message instanceof TextMessage) {
+      return INPUT_FACTORY.createXMLStreamReader(
+        new StringReader(((TextMessage) message).getText()));
+    }
+    ((BytesMessage) message).reset();
+    return INPUT_FACTORY.createXMLStreamReader(
+      new BytesMessageInputStream((BytesMessage) message));
+  }
+
+  /**
+   * Count the records with the cursor API, which creates no event objects.
+   *
+   * @param reader a cursor over the batch, closed when done
+   * @return the number of records
+   * @throws XMLStreamException if the batch isn't well formed
+   */
+  final int count(final XMLStreamReader reader) throws XMLStreamException {
+    int result = 0;
+    final Deque<String> paths = new ArrayDeque<>();
+    try {
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          final String current = StreamingEnricher.path(paths.peek(),
+            reader.getName());
+          paths.push(current);
+          if (path.equals(current)) {
+            result++;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          paths.pop();
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return result;
+  }
+
+  /**
+   * Hand each record to a consumer as soon as it has been read.
+   *
+   * @param reader a reader of the batch, closed when done
+   * @param consumer takes each record's XML
+   * @throws XMLStreamException if the batch isn't well formed
+   */
+  final void split(final XMLEventReader reader,
+    final Consumer<String> consumer) throws XMLStreamException {
+    final Deque<String> paths = new ArrayDeque<>();
+    final Deque<List<Namespace>> declared = new ArrayDeque<>();
+    StringWriter out = null;
+    XMLEventWriter writer = null;
+    int depth = 0;
+    try {
+      while (reader.hasNext()) {
+        final XMLEvent event = reader.nextEvent();
+        if (writer != null) {
+          if (event.isStartElement()) {
+            depth++;
+          } else if (event.isEndElement()) {
+            depth--;
+          }
+          writer.add(event);
+          if (depth == 0) {
+            writer.close();
+            writer = null;
+            paths.pop();
+            declared.pop();
+            consumer.accept(out.toString());
+          }
+        } else if (event.isStartElement()) {
+          final StartElement start = event.asStartElement();
+          final String current = StreamingEnricher.path(paths.peek(),
+            start.getName());
+          paths.push(current);
+          if (path.equals(current)) {
+            out = new StringWriter();
+            writer = OUTPUT_FACTORY.createXMLEventWriter(out);
+            writer.add(withNamespaces(start, declared));
+            depth = 1;
+          }
+          final List<Namespace> namespaces = new ArrayList<>();
+          final Iterator<?> it = start.getNamespaces();
+          while (it.hasNext()) {
+            namespaces.add((Namespace) it.next());
+          }
+          declared.push(namespaces);
+        } else if (event.isEndElement()) {
+          paths.pop();
+          declared.pop();
+        }
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+      reader.close();
+    }
+  }
+
+  /**
+   * Copy a record's start tag, declaring the namespaces declared above it.
+   *
+   * @param start the record's start tag
+   * @param declared the namespaces declared by each open element, innermost
+   * first
+   * @return the start tag to write
+   */
+  private static StartElement withNamespaces(final StartElement start,
+    final Deque<List<Namespace>> declared) {
+    final Map<String, Namespace> inScope = new LinkedHashMap<>();
+    final Iterator<?> own = start.getNamespaces();
+    while (own.hasNext()) {
+      final Namespace namespace = (Namespace) own.next();
+      inScope.put(namespace.getPrefix(), namespace);
+    }
+    for (List<Namespace> namespaces : declared) {
+      for (Namespace namespace : namespaces) {
+        inScope.putIfAbsent(namespace.getPrefix(), namespace);
+      }
+    }
+    return EVENT_FACTORY.createStartElement(start.getName(),
+      start.getAttributes(), inScope.values().iterator());
+  }
+
+  /**
+   * Adds the number of records published to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    stats.put("records", records.sum());
+    return stats;
+  }
+
+  /**
+   * @return the path of the records
+   */
+  public final String getPath() {
+    return path;
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Enriches a message with StAX instead of building a dom4j
+ * <code>Document</code>. Only absolute paths of element names are
+ * supported, see {@link XMLValueTransformer#isSimplePath(String)}, and no
+ * transformer may read a path another one writes.
+ *
+ * A message is handled in two halves. {@link #scan(String)} reads events
+ * until the value of every srcPath is known, keeping the events read so far.
+ * Once the values have been looked up {@link #finish(Scan, String[][])}
+ * writes the kept events and then the rest of the message straight from the
+ * reader to the writer, replacing the text of the first element at each
+ * destination path, the same element <code>selectSingleNode</code> would
+ * find.
+ *
+ * @author Scott Douglass
+ */
+final class StreamingEnricher {
+
+  /** Thread safe, shared. */
+  private static final XMLInputFactory INPUT_FACTORY
+    = XMLInputFactory.newInstance();
+  /** Thread safe, shared. */
+  private static final XMLOutputFactory OUTPUT_FACTORY
+    = XMLOutputFactory.newInstance();
+  /** Thread safe, shared. */
+  private static final XMLEventFactory EVENT_FACTORY
+    = XMLEventFactory.newInstance();
+
+  /** The transformers, in configured order. */
+  private final List<XMLValueTransformer> xforms;
+  /** Indexes of the transformers reading each srcPath. */
+  private final Map<String, List<Integer>> sources = new HashMap<>();
+
+  /** The events read while looking for the keys of one message. */
+  static final class Scan {
+
+    /** Reads the rest of the message. */
+    private final XMLEventReader reader;
+    /** Events already read. */
+    private final List<XMLEvent> events = new ArrayList<>();
+    /** The srcPath value of each transformer, null if not found. */
+    private final String[] keys;
+
+    /**
+     *
+     * @param inReader the message reader
+     * @param count the number of transformers
+     */
+    Scan(final XMLEventReader inReader, final int count) {
+      this.reader = inReader;
+      this.keys = new String[count];
+    }
+
+    /**
+     *
+     * @param index the transformer index
+     * @return the srcPath value, empty if the message didn't have one
+     */
+    String getKey(final int index) {
+      return keys[index] == null ? "" : keys[index];
+    }
+  }
+
+  /**
+   *
+   * @param inXforms the transformers, all using simple paths
+   */
+  StreamingEnricher(final List<XMLValueTransformer> inXforms) {
+    this.xforms = new ArrayList<>(inXforms);
+    for (int i = 0; i < xforms.size(); i++) {
+      sources.computeIfAbsent(xforms.get(i).getSrcPath(),
+        k -> new ArrayList<>()).add(i);
+    }
+  }
+
+  /**
+   * Whether the transformers can be run by a streaming enricher.
+   *
+   * @param xforms the transformers
+   * @return true if every path is simple and no transformer reads from
+   * another
+   */
+  static boolean supports(final List<XMLValueTransformer> xforms) {
+    for (int i = 0; i < xforms.size(); i++) {
+      final XMLValueTransformer xvt = xforms.get(i);
+      if (!XMLValueTransformer.isSimplePath(xvt.getSrcPath())) {
+        return false;
+      }
+      for (String target : xvt.getTargetPaths()) {
+        if (!XMLValueTransformer.isSimplePath(target)) {
+          return false;
+        }
+      }
+      for (int j = 0; j < i; j++) {
+        if (xvt.readsFrom(xforms.get(j))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read the message until every srcPath value is known.
+   *
+   * @param body the message
+   * @return the keys and the events read so far
+   * @throws XMLStreamException if the message isn't well formed
+   */
+  Scan scan(final String body) throws XMLStreamException {
+    final Scan scan = new Scan(
+      INPUT_FACTORY.createXMLEventReader(new StringReader(body)),
+      xforms.size());
+    final Deque<String> paths = new ArrayDeque<>();
+    final Map<String, StringBuilder> capturing = new HashMap<>();
+    final Set<String> found = new HashSet<>();
+    while (found.size() < sources.size() && scan.reader.hasNext()) {
+      final XMLEvent event = scan.reader.nextEvent();
+      scan.events.add(event);
+      if (event.isStartElement()) {
+        final String path = path(paths.peek(),
+          event.asStartElement().getName());
+        paths.push(path);
+        if (sources.containsKey(path) && !found.contains(path)) {
+          capturing.put(path, new StringBuilder());
+        }
+      } else if (event.isCharacters() && !capturing.isEmpty()) {
+        final String data = event.asCharacters().getData();
+        for (StringBuilder text : capturing.values()) {
+          text.append(data);
+        }
+      } else if (event.isEndElement()) {
+        final String path = paths.pop();
+        final StringBuilder text = capturing.remove(path);
+        if (text != null) {
+          found.add(path);
+          for (int index : sources.get(path)) {
+            scan.keys[index] = text.toString();
+          }
+        }
+      }
+    }
+    return scan;
+  }
+
+  /**
+   * Write the message with the looked up values in place.
+   *
+   * @param scan the result of <code>scan</code>
+   * @param rows the row looked up by each transformer, null for none
+   * @return the enriched message
+   * @throws XMLStreamException if the rest of the message isn't well formed
+   */
+  String finish(final Scan scan, final String[][] rows)
+    throws XMLStreamException {
+    final Map<String, String> values = new HashMap<>();
+    for (int i = 0; i < xforms.size(); i++) {
+      if (rows[i] != null) {
+        final List<String> targets = xforms.get(i).getTargetPaths();
+        for (int j = 0; j < targets.size(); j++) {
+          if (rows[i][j] != null) {
+            values.put(targets.get(j), rows[i][j]);
+          }
+        }
+      }
+    }
+    final StringWriter out = new StringWriter();
+    final XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out);
+    final Deque<String> paths = new ArrayDeque<>();
+    final Deque<Boolean> replaced = new ArrayDeque<>();
+    try {
+      for (XMLEvent event : scan.events) {
+        write(writer, event, values, paths, replaced);
+      }
+      while (scan.reader.hasNext()) {
+        write(writer, scan.reader.nextEvent(), values, paths, replaced);
+      }
+      writer.flush();
+    } finally {
+      writer.close();
+      scan.reader.close();
+    }
+    return out.toString();
+  }
+
+  /**
+   * Write one event, replacing the text directly inside the first element
+   * at each destination path.
+   *
+   * @param writer the output
+   * @param event the event
+   * @param values the new text by path, removed once written
+   * @param paths the open elements' paths
+   * @param replaced whether each open element's text is being replaced
+   * @throws XMLStreamException on write error
+   */
+  private static void write(final XMLEventWriter writer, final XMLEvent event,
+    final Map<String, String> values, final Deque<String> paths,
+    final Deque<Boolean> replaced) throws XMLStreamException {
+    if (event.isStartElement()) {
+      final String path = path(paths.peek(), event.asStartElement().getName());
+      paths.push(path);
+      writer.add(event);
+      final String value = values.remove(path);
+      replaced.push(value != null);
+      if (value != null) {
+        writer.add(EVENT_FACTORY.createCharacters(value));
+      }
+    } else if (event.isCharacters()) {
+      if (replaced.isEmpty() || !replaced.peek()) {
+        writer.add(event);
+      }
+    } else {
+      if (event.isEndElement()) {
+        paths.pop();
+        replaced.pop();
+      }
+      writer.add(event);
+    }
+  }
+
+  /**
+   * The XPath of an element, as it would be written in a simple path. An
+   * element name without a prefix only matches when it has no namespace,
+   * as in XPath 1.0.
+   *
+   * @param parent the parent's path, null for the root element
+   * @param name the element name
+   * @return the path
+   */
+  static String path(final String parent, final QName name) {
+    final StringBuilder path = new StringBuilder();
+    if (parent != null) {
+      path.append(parent);
+    }
+    path.append('/');
+    if (!name.getPrefix().isEmpty()) {
+      path.append(name.getPrefix()).append(':');
+    } else if (!name.getNamespaceURI().isEmpty()) {
+      path.append('{').append(name.getNamespaceURI()).append('}');
+    }
+    return path.append(name.getLocalPart()).toString();
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A hierarchical timing wheel: many timeouts driven by one timer. Scheduling
+ * and cancelling a timeout take constant time, and each tick only looks at
+ * the timeouts due in it, whatever the number waiting.
+ *
+ * There are four wheels of 64 slots. A slot of the first wheel is one tick,
+ * a slot of each following wheel spans a whole turn of the wheel before it.
+ * A timeout is put in the finest wheel which reaches its deadline. When a
+ * wheel turns over, the next slot of the wheel above it is emptied into the
+ * finer wheels, so a timeout moves down at most three times before it
+ * expires. Deadlines beyond the last wheel wait in its farthest slot.
+ *
+ * Not thread safe, the owner locks.
+ *
+ * @param <T> the things timing out
+ * @author Scott Douglass
+ */
+final class TimingWheel<T> {
+
+  /** log2 of the number of slots of a wheel. */
+  private static final int BITS = 6;
+  /** The number of slots of a wheel. */
+  private static final int SLOTS = 1 << BITS;
+  /** The number of wheels. */
+  private static final int LEVELS = 4;
+  /** The most ticks ahead the wheels reach. */
+  private static final long SPAN = 1L << (BITS * LEVELS);
+
+  /** A scheduled timeout. */
+  static final class Timeout<T> {
+
+    /** What times out. */
+    private final T item;
+    /** The tick it times out in. */
+    private final long due;
+    /** The slot holding it, null once expired or cancelled. */
+    private Set<Timeout<T>> slot;
+
+    /**
+     *
+     * @param inItem what times out
+     * @param inDue the tick it times out in
+     */
+    private Timeout(final T inItem, final long inDue) {
+      this.item = inItem;
+      this.due = inDue;
+    }
+
+    /**
+     * @return what times out
+     */
+    T getItem() {
+      return item;
+    }
+  }
+
+  /** The slots, by wheel. */
+  private final List<List<Set<Timeout<T>>>> wheels = new ArrayList<>();
+  /** The length of a tick in ms. */
+  private final long tickMillis;
+  /** The time of tick 0. */
+  private final long startMillis;
+  /** The last tick done. */
+  private long tick;
+  /** The number of timeouts waiting. */
+  private int size;
+
+  /**
+   *
+   * @param inTickMillis the length of a tick in ms, the precision of the
+   * timeouts
+   * @param inStartMillis the current time
+   */
+  TimingWheel(final long inTickMillis, final long inStartMillis) {
+    if (inTickMillis < 1) {
+      throw new IllegalArgumentException("Bad tick: " + inTickMillis);
+    }
+    this.tickMillis = inTickMillis;
+    this.startMillis = inStartMillis;
+    for (int level = 0; level < LEVELS; level++) {
+      final List<Set<Timeout<T>>> wheel = new ArrayList<>(SLOTS);
+      for (int i = 0; i < SLOTS; i++) {
+        wheel.add(new LinkedHashSet<>());
+      }
+      wheels.add(wheel);
+    }
+  }
+
+  /**
+   * Schedule a timeout. A deadline which has already passed times out on
+   * the next tick.
+   *
+   * @param item what times out
+   * @param deadlineMillis when
+   * @return the timeout, to cancel it
+   */
+  Timeout<T> schedule(final T item, final long deadlineMillis) {
+    final long ticks = deadlineMillis - startMillis;
+    final long due = Math.max(tick + 1,
+      ticks / tickMillis + (ticks % tickMillis > 0 ? 1 : 0));
+    final Timeout<T> timeout = new Timeout<>(item, due);
+    place(timeout);
+    size++;
+    return timeout;
+  }
+
+  /**
+   * Cancel a timeout, if it hasn't expired yet.
+   *
+   * @param timeout the timeout
+   * @return true if it was cancelled
+   */
+  boolean cancel(final Timeout<T> timeout) {
+    if (timeout == null || timeout.slot == null) {
+      return false;
+    }
+    timeout.slot.remove(timeout);
+    timeout.slot = null;
+    size--;
+    return true;
+  }
+
+  /**
+   * Do every tick up to now.
+   *
+   * @param nowMillis the current time
+   * @return what timed out, tick by tick
+   */
+  List<T> advance(final long nowMillis) {
+    final List<T> result = new ArrayList<>();
+    final long target = (nowMillis - startMillis) / tickMillis;
+    while (tick < target) {
+      tick++;
+      for (int level = LEVELS - 1; level > 0; level--) {
+        if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+          cascade(level);
+        }
+      }
+      final Set<Timeout<T>> slot
+        = wheels.get(0).get((int) (tick & (SLOTS - 1)));
+      for (Timeout<T> timeout : slot) {
+        timeout.slot = null;
+        result.add(timeout.item);
+      }
+      size -= slot.size();
+      slot.clear();
+    }
+    return result;
+  }
+
+  /**
+   * Move the timeouts of a wheel's current slot into the finer wheels.
+   *
+   * @param level the wheel
+   */
+  private void cascade(final int level) {
+    final Set<Timeout<T>> slot = wheels.get(level).get(
+      (int) ((tick >>> (BITS * level)) & (SLOTS - 1)));
+    final List<Timeout<T>> moving = new ArrayList<>(slot);
+    slot.clear();
+    for (Timeout<T> timeout : moving) {
+      place(timeout);
+    }
+  }
+
+  /**
+   * Put a timeout in the finest wheel which reaches its deadline.
+   *
+   * @param timeout the timeout
+   */
+  private void place(final Timeout<T> timeout) {
+    final long delta = timeout.due - tick;
+    final long due = delta < SPAN ? timeout.due : tick + SPAN - 1;
+    int level = 0;
+    while (level < LEVELS - 1 && due - tick >= 1L << (BITS * (level + 1))) {
+      level++;
+    }
+    final Set<Timeout<T>> slot = wheels.get(level).get(
+      (int) ((due >>> (BITS * level)) & (SLOTS - 1)));
+    slot.add(timeout);
+    timeout.slot = slot;
+  }
+
+  /**
+   * @return the number of timeouts waiting
+   */
+  int size() {
+    return size;
+  }
+}
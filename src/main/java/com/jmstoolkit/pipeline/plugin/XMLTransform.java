@@ -15,12 +15,21 @@
 package com.jmstoolkit.pipeline.plugin;
 
 import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.jms.BytesMessage;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import javax.naming.NamingException;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
 import org.springframework.jndi.JndiTemplate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,6 +39,11 @@ import java.util.logging.Logger;
  * {@link XSLTransformer} to transform an input XML message and publish
  * the transformed XML message.
  *
+ * The work is either one stylesheet or a <code>stylesheets</code> element
+ * holding several, in order, each one inline or read from the file named by
+ * a <code>file</code> element. Several stylesheets are applied as one SAX
+ * chain, without parsing or serializing between them.
+ *
  * @author Scott Douglass
  */
 public class XMLTransform extends AbstractPlugin {
@@ -37,8 +51,17 @@ public class XMLTransform extends AbstractPlugin {
   /** The Logger for this class. */
   private static final Logger LOGGER =
     Logger.getLogger(XMLTransform.class.getName());
+  /** The namespace of inline stylesheets. */
+  private static final String XSL_NAMESPACE
+    = "http://www.w3.org/1999/XSL/Transform";
   /** XSLTransormer, cool! */
   private final XSLTransformer xslt = new XSLTransformer();
+  /** Output buffer for bytes, one per consumer thread. */
+  private final ThreadLocal<ReusableOutputStream> byteBuffers
+    = ThreadLocal.withInitial(ReusableOutputStream::new);
+  /** Output buffer for text, one per consumer thread. */
+  private final ThreadLocal<StringWriter> textBuffers
+    = ThreadLocal.withInitial(StringWriter::new);
 
   /**
    * Constructor for creating a useful <code>XMLTransform</code>.
@@ -73,7 +96,7 @@ public class XMLTransform extends AbstractPlugin {
       getJmsTemplate().setConnectionFactory(connectionFactory);
       getJmsTemplate().setDefaultDestination(getOutput());
       //
-      xslt.setXslt(inXsl);
+      setXslt(inXsl);
     } catch (NamingException ex) {
       LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
         + getName(), ex);
@@ -81,12 +104,52 @@ public class XMLTransform extends AbstractPlugin {
     } catch (XSLTransformerException e) {
       LOGGER.log(Level.SEVERE, "Bad XSLT", e);
       setStatus(STATUS_FAILED);
+    } catch (DocumentException ex) {
+      LOGGER.log(Level.SEVERE, "Invalid work XML for transform: ", ex);
+      setStatus(STATUS_FAILED);
     }
   }
 
+  /**
+   * Configure the transformer from the work: a single stylesheet, or a
+   * <code>stylesheets</code> element listing them in order.
+   *
+   * @param inXsl the work
+   * @throws XSLTransformerException if a stylesheet is bad or missing
+   * @throws DocumentException if the work isn't well formed XML
+   */
+  private void setXslt(final String inXsl)
+    throws XSLTransformerException, DocumentException {
+    if (inXsl == null || !inXsl.contains("stylesheets")) {
+      xslt.setXslt(inXsl);
+      return;
+    }
+    final Element root = XMLParsers.parse(inXsl, false).getRootElement();
+    if (!"stylesheets".equals(root.getName())) {
+      xslt.setXslt(inXsl);
+      return;
+    }
+    final List<String> xsls = new ArrayList<>();
+    for (Element element : root.elements()) {
+      if ("file".equals(element.getName())) {
+        xsls.add(XSLTransformer.read(new File(element.getTextTrim())));
+      } else if (XSL_NAMESPACE.equals(element.getNamespaceURI())) {
+        xsls.add(element.asXML());
+      } else {
+        throw new XSLTransformerException("Not a stylesheet: "
+          + element.getName() + " in transform: " + getName());
+      }
+    }
+    xslt.setXslts(xsls);
+    LOGGER.log(Level.INFO, "{0} chains {1} stylesheets",
+      new Object[]{getName(), xsls.size()});
+  }
+
   /**
    * Implementation of JMS <code>MessageListener</code> interface. Performs
-   * the work when a message is received.
+   * the work when a message is received. A <code>BytesMessage</code> is
+   * transformed as a stream of bytes into a <code>BytesMessage</code>, a
+   * <code>TextMessage</code> into a <code>TextMessage</code>.
    *
    * @param message The JMS Message received.
    */
@@ -99,27 +162,78 @@ public class XMLTransform extends AbstractPlugin {
       LOGGER.log(Level.SEVERE, "Failed to get message id", ex);
     }
     try {
-      if (message instanceof TextMessage) {
-        final String body = trim(((TextMessage) message).getText());
-        try {
-          System.out.println("############################################");
-          System.out.println("Transform input message received by "
-            + getName() + ":");
-          System.out.println(body.subSequence(0, 78));
-          System.out.println("############################################");
-          LOGGER.log(Level.INFO, "{0} Transform performed by service: {1}",
-            new Object[]{messageId, getName()});
-          getJmsTemplate().convertAndSend(getXslt().transform(body));
-          this.setOperationCount(this.getOperationCount() + 1);
-        } catch (XSLTransformerException ex) {
-          LOGGER.log(Level.SEVERE, messageId + " XSL Transform failed: ", ex);
-        }
+      if (message instanceof BytesMessage) {
+        LOGGER.log(Level.INFO, "{0} Transform performed by service: {1}",
+          new Object[]{messageId, getName()});
+        transformBytes((BytesMessage) message);
+        countOperation();
+      } else if (message instanceof TextMessage) {
+        final String body = ((TextMessage) message).getText();
+        System.out.println("############################################");
+        System.out.println("Transform input message received by "
+          + getName() + ":");
+        System.out.println(body.subSequence(0, Math.min(78, body.length())));
+        System.out.println("############################################");
+        LOGGER.log(Level.INFO, "{0} Transform performed by service: {1}",
+          new Object[]{messageId, getName()});
+        transformText(body);
+        countOperation();
       }
+    } catch (XSLTransformerException ex) {
+      LOGGER.log(Level.SEVERE, messageId + " XSL Transform failed: ", ex);
     } catch (JMSException ex) {
       LOGGER.log(Level.SEVERE, messageId + " Failed to get message text: ", ex);
     }
   }
 
+  /**
+   * Stream the body of a <code>BytesMessage</code> through the XSL into this
+   * thread's output buffer and publish the buffer as a
+   * <code>BytesMessage</code>.
+   *
+   * @param message the message to transform
+   * @throws XSLTransformerException on error
+   */
+  private void transformBytes(final BytesMessage message)
+    throws XSLTransformerException {
+    final ReusableOutputStream outXml = byteBuffers.get();
+    try {
+      outXml.reset();
+      getXslt().transform(new BytesMessageInputStream(message), outXml);
+      send(session -> {
+        final BytesMessage result = session.createBytesMessage();
+        outXml.writeTo(result);
+        return result;
+      });
+    } finally {
+      if (!outXml.isRetainable()) {
+        byteBuffers.remove();
+      }
+    }
+  }
+
+  /**
+   * Transform the text of a <code>TextMessage</code> through a Reader into
+   * this thread's output buffer and publish the result as a
+   * <code>TextMessage</code>.
+   *
+   * @param body the XML text
+   * @throws XSLTransformerException on error
+   */
+  private void transformText(final String body)
+    throws XSLTransformerException {
+    final StringWriter outXml = textBuffers.get();
+    try {
+      outXml.getBuffer().setLength(0);
+      getXslt().transform(new StringReader(body), outXml);
+      send(outXml.toString(), null);
+    } finally {
+      if (outXml.getBuffer().capacity() > ReusableOutputStream.MAX_RETAINED) {
+        textBuffers.remove();
+      }
+    }
+  }
+
   /**
    * @return the xslt transformer
    */
@@ -15,27 +15,36 @@
 package com.jmstoolkit.pipeline.plugin;
 
 import com.jmstoolkit.pipeline.AbstractPlugin;
-import java.io.StringReader;
+import com.jmstoolkit.pipeline.XMLParsers;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import javax.naming.NamingException;
-import org.apache.commons.dbcp.BasicDataSource;
+import javax.sql.DataSource;
+import javax.xml.stream.XMLStreamException;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.io.SAXReader;
+import org.dom4j.InvalidXPathException;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.jndi.JndiTemplate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.dom4j.Node;
 
 /**
  * An implementation of the {@link com.jmstoolkit.pipeline.AbstractPlugin}
@@ -54,9 +63,11 @@ public class XMLValueTransform extends AbstractPlugin {
   /**
    * Use a pooling JDBC DataSource by default.
    */
-  private BasicDataSource defaultDataSource = new BasicDataSource();
-  //private DriverManagerDataSource defaultDataSource =
-  //new DriverManagerDataSource();
+  private DataSource defaultDataSource;
+  /**
+   * The pools and lookups from the work XML.
+   */
+  private Enricher enricher;
   /**
    * Spring JdbcTemplate.
    */
@@ -66,6 +77,92 @@ public class XMLValueTransform extends AbstractPlugin {
    */
   private final List<XMLValueTransformer> xforms
     = new LinkedList<>();
+  /**
+   * Gathers messages handled at the same time by different consumers, so
+   * their lookups can be done together. Null when not batching.
+   */
+  private MicroBatcher<Enrichment> batcher;
+  /**
+   * The xforms grouped into steps. No xform reads a path written by another
+   * xform in the same step, so the lookups of a step can run together.
+   */
+  private final List<List<XMLValueTransformer>> steps = new ArrayList<>();
+  /**
+   * Most lookups for one message running at the same time, 0 for one per
+   * xform in the widest step.
+   */
+  private int parallelism;
+  /** Runs the lookups of a step, null when they run one after another. */
+  private ExecutorService lookups;
+  /** Enriches messages without a dom4j Document, null when not streaming. */
+  private StreamingEnricher streamer;
+
+  /** A message being enriched. */
+  private static final class Enrichment {
+
+    /** The JMS message id, for logging. */
+    private final String messageId;
+    /** The parsed message, null when streaming. */
+    private final Document doc;
+    /** The partly read message when streaming, otherwise null. */
+    private final StreamingEnricher.Scan scan;
+    /** The row found by each XMLValueTransformer when streaming. */
+    private final String[][] rows;
+    /** The number of XMLValueTransformers which succeeded. */
+    private int count;
+
+    /**
+     *
+     * @param inMessageId the JMS message id
+     * @param inDoc the parsed message
+     */
+    Enrichment(final String inMessageId, final Document inDoc) {
+      this.messageId = inMessageId;
+      this.doc = inDoc;
+      this.scan = null;
+      this.rows = null;
+    }
+
+    /**
+     *
+     * @param inMessageId the JMS message id
+     * @param inScan the partly read message
+     * @param xforms the number of XMLValueTransformers
+     */
+    Enrichment(final String inMessageId, final StreamingEnricher.Scan inScan,
+      final int xforms) {
+      this.messageId = inMessageId;
+      this.doc = null;
+      this.scan = inScan;
+      this.rows = new String[xforms][];
+    }
+
+    /**
+     *
+     * @param xvt the XMLValueTransformer
+     * @param index its index in xforms, used when streaming
+     * @return the key it looks up in this message
+     */
+    String lookupKey(final XMLValueTransformer xvt, final int index) {
+      return (doc == null) ? scan.getKey(index) : xvt.lookupKey(doc);
+    }
+
+    /**
+     *
+     * @param xvt the XMLValueTransformer
+     * @param index its index in xforms, used when streaming
+     * @param row the row it found
+     */
+    void apply(final XMLValueTransformer xvt, final int index,
+      final String[] row) {
+      if (doc == null) {
+        rows[index] = row;
+      } else {
+        xvt.apply(doc, row);
+      }
+      count++;
+    }
+  }
 
   /**
    * Constructor for creating a useful <code>XMLValueTransform</code>.
@@ -100,44 +197,30 @@ public class XMLValueTransform extends AbstractPlugin {
       // Setup the JmsTemplate
       getJmsTemplate().setConnectionFactory(connectionFactory);
       getJmsTemplate().setDefaultDestination(getOutput());
-      // Setup the default JDBC DataSource:
+      // Setup the JDBC pools and the value transforms
       final Document doc = getWork(inConfig);
-      defaultDataSource.setDriverClassName(
-        trim(doc.valueOf("//enrich/defaultDatabase/driver")));
-      defaultDataSource.setUrl(
-        trim(doc.valueOf("//enrich/defaultDatabase/url")));
-      defaultDataSource.setUsername(
-        trim(doc.valueOf("//enrich/defaultDatabase/username")));
-      defaultDataSource.setPassword(
-        trim(doc.valueOf("//enrich/defaultDatabase/password")));
-      //FIXME: pool properties hard coded here
-      defaultDataSource.setMaxActive(5);
-      defaultDataSource.setMaxIdle(2);
-      defaultDataSource.setMinIdle(1);
-
-      jdbcTemplate = new JdbcTemplate(getDefaultDataSource());
-
-      // create list of value transforms from the elements list
-      final List<Node> elements
-        = doc.selectNodes("//enrich/elements/element");
-      for (Node node : elements) {
-        JdbcTemplate vttemplate = jdbcTemplate;
-        final String ddriver = node.valueOf("database/driver");
-        if (ddriver != null && !"".equals(ddriver)) {
-          // normally we'll use the defaultDataSource which is a pooling source
-          // but we give the ability to specify a unique DataSource as well
-          final DriverManagerDataSource dmds = new DriverManagerDataSource();
-          dmds.setDriverClassName(trim(node.valueOf("database/driver")));
-          dmds.setUrl(trim(node.valueOf("database/url")));
-          dmds.setUsername(trim(node.valueOf("database/username")));
-          dmds.setPassword(trim(node.valueOf("database/password")));
-          vttemplate = new JdbcTemplate(dmds);
+      enricher = new Enricher(getName(), doc.getRootElement());
+      defaultDataSource = enricher.getDefaultDataSource();
+      jdbcTemplate = enricher.getJdbcTemplate();
+      xforms.addAll(enricher.getXforms());
+      batcher = getBatcher(doc);
+      groupSteps();
+      if (Boolean.parseBoolean(trim(doc.valueOf("/enrich/streaming")))) {
+        if (StreamingEnricher.supports(xforms)) {
+          streamer = new StreamingEnricher(xforms);
+        } else {
+          LOGGER.log(Level.WARNING, "{0} can not stream elements with XPath"
+            + " expressions or which read each other, using dom4j",
+            getName());
+        }
+      }
+      final String threads = trim(doc.valueOf("/enrich/parallelism"));
+      if (!threads.isEmpty()) {
+        parallelism = Integer.parseInt(threads);
+        if (parallelism < 1) {
+          throw new XMLValueTransformException(
+            "Bad parallelism for: " + getName());
         }
-        final XMLValueTransformer xvt = new XMLValueTransformer(vttemplate);
-        xvt.setSrcPath(trim(node.valueOf("srcPath")));
-        xvt.setDstPath(trim(node.valueOf("dstPath")));
-        xvt.setSql(trim(node.valueOf("sql"))); // validates SQL statement
-        xforms.add(xvt);
       }
     } catch (NamingException ex) {
       LOGGER.log(Level.SEVERE, "Bad JNDI name for Destination: "
@@ -150,10 +233,39 @@ public class XMLValueTransform extends AbstractPlugin {
       LOGGER.log(Level.SEVERE, "Bad work XML: ", ex);
       setStatus(STATUS_FAILED);
     } catch (SQLException ex) {
-      LOGGER.log(Level.SEVERE, "Bad SQL query: ", ex);
+      LOGGER.log(Level.SEVERE, "Bad SQL query or database: ", ex);
+      setStatus(STATUS_FAILED);
+    } catch (NumberFormatException ex) {
+      LOGGER.log(Level.SEVERE, "Bad parallelism for: " + getName(), ex);
+      setStatus(STATUS_FAILED);
+    } catch (InvalidXPathException ex) {
+      LOGGER.log(Level.SEVERE, "Bad srcPath or dstPath: ", ex);
+      setStatus(STATUS_FAILED);
     }
   }
 
+  /**
+   * Puts each xform in the step after the last earlier xform whose value it
+   * reads. Values are still written in the configured order, so only
+   * reading another xform's value forces a later step.
+   */
+  private void groupSteps() {
+    final int[] step = new int[xforms.size()];
+    for (int i = 0; i < xforms.size(); i++) {
+      for (int j = 0; j < i; j++) {
+        if (xforms.get(i).readsFrom(xforms.get(j))) {
+          step[i] = Math.max(step[i], step[j] + 1);
+        }
+      }
+      while (steps.size() <= step[i]) {
+        steps.add(new ArrayList<>());
+      }
+      steps.get(step[i]).add(xforms.get(i));
+    }
+    LOGGER.log(Level.INFO, "{0} looks up {1} elements in {2} steps",
+      new Object[]{getName(), xforms.size(), steps.size()});
+  }
+
   /**
    * Method to parse and validate the <code>work</code> XML String.
    *
@@ -165,11 +277,10 @@ public class XMLValueTransform extends AbstractPlugin {
   private Document getWork(final String work) throws DocumentException,
     XMLValueTransformException {
     // validate vs. DTD: enrich.dtd
-    final SAXReader saxReader = new SAXReader(true);
-    final Document doc = saxReader.read(new StringReader(work));
+    final Document doc = XMLParsers.parse(work, true);
     // additional validation...
     try {
-      Class.forName(trim(doc.valueOf("//enrich/defaultDatabase/driver")));
+      Class.forName(trim(doc.valueOf("/enrich/defaultDatabase/driver")));
     } catch (ClassNotFoundException ex) {
       throw new XMLValueTransformException(
         "Default database driver not found in classpath: " + ex);
@@ -177,6 +288,106 @@ public class XMLValueTransform extends AbstractPlugin {
     return doc;
   }
 
+  /**
+   * Create the batcher from the optional <code>batch</code> configuration.
+   * The wait is in milliseconds, none means a batch is only as big as the
+   * number of messages which arrive together.
+   *
+   * @param doc the work XML
+   * @return the batcher, or null if messages aren't batched
+   * @throws XMLValueTransformException if the batch configuration is bad
+   */
+  private MicroBatcher<Enrichment> getBatcher(final Document doc)
+    throws XMLValueTransformException {
+    MicroBatcher<Enrichment> result = null;
+    final String size = trim(doc.valueOf("/enrich/batch/size"));
+    if (!size.isEmpty()) {
+      final String wait = trim(doc.valueOf("/enrich/batch/wait"));
+      try {
+        result = new MicroBatcher<>(Integer.parseInt(size),
+          wait.isEmpty() ? 0 : Long.parseLong(wait),
+          this::getBusyConsumers, this::enrich);
+      } catch (IllegalArgumentException ex) {
+        throw new XMLValueTransformException(
+          "Bad batch configuration for: " + getName(), ex);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads the preloaded tables before the consumers are started, then
+   * schedules their refreshes.
+   */
+  @Override
+  public void init() {
+    if (enricher != null) {
+      enricher.start(getScheduler());
+    }
+    int widest = 0;
+    for (List<XMLValueTransformer> step : steps) {
+      widest = Math.max(widest, step.size());
+    }
+    final int threads = (parallelism == 0)
+      ? widest : Math.min(parallelism, widest);
+    if (threads > 1 && lookups == null) {
+      lookups = newLookupExecutor(threads);
+    }
+    super.init();
+  }
+
+  /**
+   * Shuts down the lookup threads and gives back the JDBC pools once the
+   * consumers have stopped.
+   */
+  @Override
+  public void stop() {
+    super.stop();
+    if (lookups != null) {
+      lookups.shutdown();
+      lookups = null;
+    }
+    if (enricher != null) {
+      enricher.close();
+    }
+  }
+
+  /**
+   * A fixed number of daemon threads with a bounded queue. When the queue
+   * is full the consumer thread does the lookup itself, which also covers a
+   * lookup submitted while the plugin is being stopped.
+   *
+   * @param threads the number of lookup threads
+   * @return the executor
+   */
+  private ExecutorService newLookupExecutor(final int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(threads * 4),
+      r -> {
+        final Thread thread = new Thread(r,
+          getName() + "-lookup-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      },
+      (r, executor) -> r.run());
+  }
+
+  /**
+   * Adds the lookup cache and preload counters, summed over all the
+   * elements, to the plugin counters.
+   *
+   * @return the counter names and their values
+   */
+  @Override
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> stats = super.getStatistics();
+    if (enricher != null) {
+      enricher.addStatistics(stats);
+    }
+    return stats;
+  }
+
   /**
    * Implementation of JMS <code>MessageListener</code> interface. Performs the
    * work when a message is received.
@@ -198,33 +409,26 @@ public class XMLValueTransform extends AbstractPlugin {
         System.out.println("############################################");
         System.out.println("Transform input message received by "
           + getName() + ":");
-        System.out.println(body.substring(0, 78));
+        System.out.println(body.substring(0, Math.min(78, body.length())));
         System.out.println("############################################");
 
         try {
-          // do NOT validate vs. DTD
-          final SAXReader saxReader = new SAXReader();
-          Document doc = saxReader.read(new StringReader(body));
-          int count = 0;
-          for (XMLValueTransformer xvt : this.getXforms()) {
-            try {
-              doc = xvt.transform(doc);
-              count++;
-            } catch (DataAccessException ex) {
-              LOGGER.log(Level.WARNING, messageId + " JDBC failed: "
-                + xvt.toString(), ex);
-            }
+          final Enrichment enrichment;
+          if (streamer == null) {
+            // do NOT validate vs. DTD
+            enrichment = new Enrichment(messageId,
+              XMLParsers.parse(body, false));
+          } else {
+            enrichment = new Enrichment(messageId, streamer.scan(body),
+              getXforms().size());
           }
-          LOGGER.log(
-            Level.INFO, "{0} {1} of {2} XMLValueTransformers succeeded",
-            new Object[]{messageId, count, getXforms().size()});
-          LOGGER.log(Level.INFO, "{0} Transform performed by service: {1}",
-            new Object[]{messageId, getName()});
-
-          getJmsTemplate().convertAndSend(doc.asXML());
-
-          this.operationCount++;
-        } catch (DocumentException ex) {
+          if (batcher == null) {
+            enrich(Collections.singletonList(enrichment));
+            publish(enrichment);
+          } else {
+            batcher.process(enrichment, this::publish);
+          }
+        } catch (DocumentException | XMLStreamException ex) {
           LOGGER.log(Level.SEVERE, messageId + " Unable to parse XML message: "
             + body + ". ", ex);
         }
@@ -239,17 +443,155 @@ public class XMLValueTransform extends AbstractPlugin {
     }
   }
 
+  /**
+   * Runs each XMLValueTransformer over all of the messages, looking up the
+   * keys from every message at once. The lookups of one step run at the
+   * same time, and their values are written in the configured order. When
+   * streaming there is only one step, so the position in the step is the
+   * position in xforms.
+   *
+   * @param batch the messages
+   */
+  private void enrich(final List<Enrichment> batch) {
+    final ExecutorService executor = lookups;
+    int first = 0;
+    for (List<XMLValueTransformer> step : steps) {
+      final List<List<String>> keys = new ArrayList<>(step.size());
+      for (int i = 0; i < step.size(); i++) {
+        final List<String> stepKeys = new ArrayList<>(batch.size());
+        for (Enrichment enrichment : batch) {
+          stepKeys.add(enrichment.lookupKey(step.get(i), first + i));
+        }
+        keys.add(stepKeys);
+      }
+      final List<Future<Map<String, String[]>>> futures = new ArrayList<>();
+      if (executor != null) {
+        for (int i = 1; i < step.size(); i++) {
+          final XMLValueTransformer xvt = step.get(i);
+          final List<String> stepKeys = keys.get(i);
+          futures.add(executor.submit(() -> lookup(xvt, stepKeys, batch)));
+        }
+      }
+      for (int i = 0; i < step.size(); i++) {
+        final Map<String, String[]> values;
+        if (i == 0 || executor == null) {
+          values = lookup(step.get(i), keys.get(i), batch);
+        } else {
+          values = await(futures.get(i - 1), step.get(i), batch);
+        }
+        if (values != null) {
+          apply(step.get(i), first + i, keys.get(i), values, batch);
+        }
+      }
+      first += step.size();
+    }
+  }
+
+  /**
+   *
+   * @param xvt the XMLValueTransformer
+   * @param keys the key from each message
+   * @param batch the messages
+   * @return the values found, or null if the lookup failed
+   */
+  private Map<String, String[]> lookup(final XMLValueTransformer xvt,
+    final List<String> keys, final List<Enrichment> batch) {
+    try {
+      return xvt.getRows(keys);
+    } catch (DataAccessException ex) {
+      LOGGER.log(Level.WARNING, batch.size() + " message(s) JDBC failed: "
+        + xvt.toString(), ex);
+      return null;
+    }
+  }
+
+  /**
+   *
+   * @param future a lookup running on another thread
+   * @param xvt the XMLValueTransformer
+   * @param batch the messages
+   * @return the values found, or null if the lookup failed
+   */
+  private Map<String, String[]> await(
+    final Future<Map<String, String[]>> future,
+    final XMLValueTransformer xvt, final List<Enrichment> batch) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      LOGGER.log(Level.WARNING, "{0} message(s) interrupted: {1}",
+        new Object[]{batch.size(), xvt});
+      return null;
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Error) {
+        throw (Error) ex.getCause();
+      }
+      throw (RuntimeException) ex.getCause();
+    }
+  }
+
+  /**
+   *
+   * @param xvt the XMLValueTransformer
+   * @param index the position of the XMLValueTransformer in xforms
+   * @param keys the key from each message
+   * @param values the values found
+   * @param batch the messages
+   */
+  private void apply(final XMLValueTransformer xvt, final int index,
+    final List<String> keys, final Map<String, String[]> values,
+    final List<Enrichment> batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      final Enrichment enrichment = batch.get(i);
+      final String[] row = values.get(keys.get(i));
+      if (row == null) {
+        LOGGER.log(Level.WARNING, "{0} No value for {1}: {2}",
+          new Object[]{enrichment.messageId, keys.get(i), xvt});
+      } else {
+        enrichment.apply(xvt, index, row);
+      }
+    }
+  }
+
+  /**
+   *
+   * @param enrichment the enriched message to send on
+   */
+  private void publish(final Enrichment enrichment) {
+    final String xml;
+    if (enrichment.doc == null) {
+      try {
+        xml = streamer.finish(enrichment.scan, enrichment.rows);
+      } catch (XMLStreamException ex) {
+        LOGGER.log(Level.SEVERE, enrichment.messageId
+          + " Unable to parse XML message: ", ex);
+        return;
+      }
+    } else {
+      xml = enrichment.doc.asXML();
+    }
+    LOGGER.log(
+      Level.INFO, "{0} {1} of {2} XMLValueTransformers succeeded",
+      new Object[]{enrichment.messageId, enrichment.count, getXforms().size()});
+    LOGGER.log(Level.INFO, "{0} Transform performed by service: {1}",
+      new Object[]{enrichment.messageId, getName()});
+
+    send(xml, null);
+
+    countOperation();
+  }
+
   /**
    * @return the defaultDataSource
    */
-  public final BasicDataSource getDefaultDataSource() {
+  public final DataSource getDefaultDataSource() {
     return defaultDataSource;
   }
 
   /**
    * @param inDefaultDataSource the JDBC data source
    */
-  public final void setDefaultDataSource(BasicDataSource inDefaultDataSource) {
+  public final void setDefaultDataSource(DataSource inDefaultDataSource) {
     this.defaultDataSource = inDefaultDataSource;
   }
 
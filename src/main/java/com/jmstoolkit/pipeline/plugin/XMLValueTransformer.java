@@ -14,12 +14,26 @@
  */
 package com.jmstoolkit.pipeline.plugin;
 
+import com.jmstoolkit.pipeline.XPathRegistry;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 import javax.sql.DataSource;
 import org.dom4j.Document;
+import org.dom4j.XPath;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
 /**
  * Update an XML document with data from a database.
@@ -28,6 +42,11 @@ import org.springframework.jdbc.core.JdbcTemplate;
  */
 public class XMLValueTransformer {
 
+  /** Most keys in one IN list. */
+  private static final int MAX_IN_LIST = 500;
+  /** An absolute path of element names, without predicates or axes. */
+  private static final Pattern SIMPLE_PATH
+    = Pattern.compile("(/[A-Za-z_][\\w.-]*(:[A-Za-z_][\\w.-]*)?)+");
   /** Spring JdbcTemplate. */
   private JdbcTemplate jdbcTemplate;
   /** SQL query. */
@@ -36,10 +55,44 @@ public class XMLValueTransformer {
   private String srcPath;
   /** Xpath for destination in XML. */
   private String dstPath;
+  /** Compiled srcPath. */
+  private XPath srcXPath;
+  /** Compiled dstPath, null to write back to the srcPath. */
+  private XPath dstXPath;
   /** JDBC data source. */
   private DataSource dataSource;
   /** Is it safe? */
   private Boolean safe = true;
+  /** Optional cache of looked up rows. */
+  private LookupCache<String, String[]> cache;
+  /** Optional in memory copy of the whole lookup table. */
+  private PreloadedLookup preload;
+  /** Optional query for many keys at once, using an IN (:keys) list. */
+  private String batchSql;
+  /** Columns written to their own paths, empty for a single value. */
+  private final List<Mapping> mappings = new ArrayList<>();
+
+  /** One column of the query and where its value goes. */
+  private static final class Mapping {
+
+    /** The column label. */
+    private final String column;
+    /** Xpath for destination in XML. */
+    private final String dstPath;
+    /** Compiled dstPath. */
+    private final XPath target;
+
+    /**
+     *
+     * @param inColumn the column label
+     * @param inDstPath the destination xpath
+     */
+    Mapping(final String inColumn, final String inDstPath) {
+      this.column = inColumn;
+      this.dstPath = inDstPath;
+      this.target = XPathRegistry.get(inDstPath);
+    }
+  }
 
   /**
    *
@@ -60,30 +113,251 @@ public class XMLValueTransformer {
 
   /**
    * Get one value from a database and convert it to a <code>String</code>.
+   * With column mappings this is the value of the first mapped column.
    * @param where A single value to be passed to a parameterized SQL query
    * @return A <code>String</code> representation of the single result
    * @throws DataAccessException if there's a JDBC failure
    */
   public final String getValue(final String where) throws DataAccessException {
-    return this.getJdbcTemplate().queryForObject(sql, String.class, where);
+    return getRow(where)[0];
+  }
+
+  /**
+   * Get one row from a database, one value per mapped column. Until the
+   * preloaded table has loaded, the row is queried as if there were none.
+   * @param where A single value to be passed to a parameterized SQL query
+   * @return the values, in mapping order
+   * @throws DataAccessException if there's a JDBC failure
+   */
+  public final String[] getRow(final String where)
+    throws DataAccessException {
+    final String[] result;
+    if (preload != null && preload.isLoaded()) {
+      result = preload.get(where);
+    } else if (cache != null) {
+      result = cache.get(where, this::query);
+    } else {
+      return this.getJdbcTemplate().queryForObject(sql,
+        (rs, rowNum) -> readRow(rs, 0), where);
+    }
+    if (result == null) {
+      throw new EmptyResultDataAccessException(1);
+    }
+    return result;
+  }
+
+  /**
+   * Cache loader, which turns "no such row" into <code>null</code> so that it
+   * can be cached too.
+   *
+   * @param where the query parameter
+   * @return the row or null if there is no row
+   */
+  private String[] query(final String where) {
+    try {
+      return this.getJdbcTemplate().queryForObject(sql,
+        (rs, rowNum) -> readRow(rs, 0), where);
+    } catch (EmptyResultDataAccessException ex) {
+      return null;
+    }
   }
 
   /**
-   * Update one XML node with data from a database.
+   * Read the mapped columns of the current row. Without mappings this is the
+   * single column after <code>offset</code>; with mappings the columns are
+   * read by name.
+   *
+   * @param rs the result set, positioned on a row
+   * @param offset the number of columns before the value, such as a key
+   * @return the values, in mapping order
+   * @throws SQLException if a column can't be read
+   */
+  final String[] readRow(final ResultSet rs, final int offset)
+    throws SQLException {
+    if (mappings.isEmpty()) {
+      return new String[]{rs.getString(offset + 1)};
+    }
+    final String[] row = new String[mappings.size()];
+    for (int i = 0; i < row.length; i++) {
+      row[i] = rs.getString(mappings.get(i).column);
+    }
+    return row;
+  }
+
+  /**
+   * Get the values for many keys. With column mappings each value is the
+   * first mapped column.
+   *
+   * @param keys the query parameters
+   * @return the values found, keys without a value are left out
+   * @throws DataAccessException if there's a JDBC failure
+   * @see #getRows(Collection)
+   */
+  public final Map<String, String> getValues(final Collection<String> keys)
+    throws DataAccessException {
+    final Map<String, String> result = new HashMap<>();
+    for (Map.Entry<String, String[]> row : getRows(keys).entrySet()) {
+      result.put(row.getKey(), row.getValue()[0]);
+    }
+    return result;
+  }
+
+  /**
+   * Get the rows for many keys, using the preloaded table, once it has
+   * loaded, or the cache where possible. The keys that are left are looked
+   * up with one <code>batchSql</code> query per {@value #MAX_IN_LIST} keys,
+   * or one query per key when there is no <code>batchSql</code>.
+   *
+   * @param keys the query parameters
+   * @return the rows found, keys without a row are left out
+   * @throws DataAccessException if there's a JDBC failure
+   */
+  public final Map<String, String[]> getRows(final Collection<String> keys)
+    throws DataAccessException {
+    final Map<String, String[]> result = new HashMap<>();
+    final Set<String> distinct = new LinkedHashSet<>(keys);
+    if ((preload != null && preload.isLoaded()) || batchSql == null) {
+      for (String key : distinct) {
+        try {
+          result.put(key, getRow(key));
+        } catch (EmptyResultDataAccessException ex) {
+          // no value for this key
+        }
+      }
+      return result;
+    }
+    final Set<String> wanted = new LinkedHashSet<>();
+    for (String key : distinct) {
+      if (cache == null || !cache.isCached(key)) {
+        wanted.add(key);
+      }
+    }
+    final Map<String, String[]> found = queryBatch(wanted);
+    for (String key : distinct) {
+      final String[] row;
+      if (cache == null) {
+        row = found.get(key);
+      } else if (wanted.contains(key)) {
+        row = cache.get(key, found::get);
+      } else {
+        // cached when checked, but it may have expired since
+        row = cache.get(key, this::query);
+      }
+      if (row != null) {
+        result.put(key, row);
+      }
+    }
+    return result;
+  }
+
+  /**
+   *
+   * @param keys the query parameters
+   * @return the rows found by the <code>batchSql</code>
+   * @throws DataAccessException if there's a JDBC failure
+   */
+  private Map<String, String[]> queryBatch(final Set<String> keys)
+    throws DataAccessException {
+    final Map<String, String[]> found = new HashMap<>();
+    final NamedParameterJdbcTemplate named
+      = new NamedParameterJdbcTemplate(this.getJdbcTemplate());
+    final List<String> all = new ArrayList<>(keys);
+    for (int i = 0; i < all.size(); i += MAX_IN_LIST) {
+      final List<String> chunk
+        = all.subList(i, Math.min(all.size(), i + MAX_IN_LIST));
+      named.query(batchSql, Collections.singletonMap("keys", chunk), rs -> {
+        found.put(rs.getString(1), readRow(rs, 1));
+      });
+    }
+    return found;
+  }
+
+  /**
+   * Update XML nodes with data from a database.
    * @param doc The dom4j <code>Document</code>
    * @return the XML Document
    * @throws DataAccessException if there's a JDBC exception
    */
   public final Document transform(final Document doc)
     throws DataAccessException {
-    if (dstPath == null || dstPath.isEmpty()) {
-      dstPath = srcPath;
-    }
-    final String result = this.getValue(doc.valueOf(srcPath));
-    doc.selectSingleNode(dstPath).setText(result);
+    apply(doc, this.getRow(lookupKey(doc)));
     return doc;
   }
 
+  /**
+   *
+   * @param doc The dom4j <code>Document</code>
+   * @return the value at <code>srcPath</code> to look up
+   */
+  public final String lookupKey(final Document doc) {
+    return srcXPath.valueOf(doc);
+  }
+
+  /**
+   * Write a looked up row into the document. Without mappings the single
+   * value goes to the <code>dstPath</code>, with mappings each column goes
+   * to its own path. Null columns are left out.
+   *
+   * @param doc The dom4j <code>Document</code>
+   * @param row the looked up values, in mapping order
+   */
+  public final void apply(final Document doc, final String[] row) {
+    if (mappings.isEmpty()) {
+      final XPath target = (dstXPath == null) ? srcXPath : dstXPath;
+      target.selectSingleNode(doc).setText(row[0]);
+      return;
+    }
+    for (int i = 0; i < row.length; i++) {
+      if (row[i] != null) {
+        mappings.get(i).target.selectSingleNode(doc).setText(row[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the paths this transformer writes to
+   */
+  public final List<String> getTargetPaths() {
+    final List<String> result = new ArrayList<>();
+    if (mappings.isEmpty()) {
+      result.add((dstPath == null || dstPath.isEmpty()) ? srcPath : dstPath);
+    } else {
+      for (Mapping mapping : mappings) {
+        result.add(mapping.dstPath);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether the key this transformer reads could be changed by another
+   * transformer's values. Paths which are not simple element paths are
+   * assumed to overlap anything.
+   *
+   * @param other a transformer configured before this one
+   * @return true if this one has to read after the other one writes
+   */
+  public final boolean readsFrom(final XMLValueTransformer other) {
+    final String read = srcPath;
+    for (String written : other.getTargetPaths()) {
+      if (!isSimplePath(read) || !isSimplePath(written)
+        || read.equals(written) || read.startsWith(written + "/")
+        || written.startsWith(read + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   *
+   * @param path an XPath
+   * @return true if the path is an absolute path of element names only
+   */
+  public static boolean isSimplePath(final String path) {
+    return path != null && SIMPLE_PATH.matcher(path).matches();
+  }
+
   /**
    *
    * @return the configuration as a String
@@ -95,8 +369,26 @@ public class XMLValueTransformer {
     signature.append(srcPath);
     signature.append(",dstPath=");
     signature.append(dstPath);
+    for (Mapping mapping : mappings) {
+      signature.append(",");
+      signature.append(mapping.column);
+      signature.append("=");
+      signature.append(mapping.dstPath);
+    }
     signature.append(",sql=");
     signature.append(sql);
+    if (batchSql != null) {
+      signature.append(",batchSql=");
+      signature.append(batchSql);
+    }
+    if (preload != null) {
+      signature.append(",preloaded=");
+      signature.append(preload.size());
+    }
+    if (cache != null) {
+      signature.append(",cached=");
+      signature.append(cache.size());
+    }
     return signature.toString();
   }
 
@@ -147,8 +439,10 @@ public class XMLValueTransformer {
 
   /**
    * @param inSrcPath source xpath
+   * @throws org.dom4j.InvalidXPathException if the xpath doesn't compile
    */
   public final void setSrcPath(final String inSrcPath) {
+    this.srcXPath = XPathRegistry.get(inSrcPath);
     this.srcPath = inSrcPath;
   }
 
@@ -160,12 +454,39 @@ public class XMLValueTransformer {
   }
 
   /**
-   * @param inDstPath destination xpath
+   * @param inDstPath destination xpath, null or empty to write back to the
+   * source xpath
+   * @throws org.dom4j.InvalidXPathException if the xpath doesn't compile
    */
   public final void setDstPath(final String inDstPath) {
+    this.dstXPath = (inDstPath == null || inDstPath.isEmpty())
+      ? null : XPathRegistry.get(inDstPath);
     this.dstPath = inDstPath;
   }
 
+  /**
+   * Write a column of the query to its own path instead of writing a
+   * single value to the <code>dstPath</code>.
+   *
+   * @param column the column label
+   * @param inDstPath destination xpath for the column value
+   * @throws org.dom4j.InvalidXPathException if the xpath doesn't compile
+   */
+  public final void addMapping(final String column, final String inDstPath) {
+    mappings.add(new Mapping(column, inDstPath));
+  }
+
+  /**
+   * @return the column labels, empty for a single value query
+   */
+  public final List<String> getColumns() {
+    final List<String> result = new ArrayList<>();
+    for (Mapping mapping : mappings) {
+      result.add(mapping.column);
+    }
+    return result;
+  }
+
   /**
    * @return the dataSource
    */
@@ -180,6 +501,60 @@ public class XMLValueTransformer {
     this.dataSource = inDataSource;
   }
 
+  /**
+   * @return the cache, or null if values are not cached
+   */
+  public final LookupCache<String, String[]> getCache() {
+    return cache;
+  }
+
+  /**
+   * @param inCache a cache for looked up rows, or null for none
+   */
+  public final void setCache(final LookupCache<String, String[]> inCache) {
+    this.cache = inCache;
+  }
+
+  /**
+   * @return the query for many keys, or null if there is none
+   */
+  public final String getBatchSql() {
+    return batchSql;
+  }
+
+  /**
+   * @param inBatchSql a select returning key and value columns for the keys
+   * in a <code>:keys</code> IN list, or null for none
+   * @throws SQLException if the query isn't a select using :keys
+   */
+  public final void setBatchSql(final String inBatchSql)
+    throws SQLException {
+    if (inBatchSql == null || inBatchSql.isEmpty()) {
+      this.batchSql = null;
+    } else if (inBatchSql.toLowerCase(Locale.getDefault()).startsWith("select ")
+      && inBatchSql.contains(":keys")) {
+      this.batchSql = inBatchSql;
+    } else {
+      throw new SQLException(
+        "Batch SQL must begin with 'select' and use an IN (:keys) list.");
+    }
+  }
+
+  /**
+   * @return the preloaded table, or null if values are queried
+   */
+  public final PreloadedLookup getPreload() {
+    return preload;
+  }
+
+  /**
+   * @param inPreload a preloaded table to look values up in instead of
+   * querying once it has loaded, or null for none
+   */
+  public final void setPreload(final PreloadedLookup inPreload) {
+    this.preload = inPreload;
+  }
+
   /**
    * @return the safe
    */
@@ -14,34 +14,64 @@
  */
 package com.jmstoolkit.pipeline.plugin;
 
+import com.jmstoolkit.pipeline.TemplatesCache;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
+import org.dom4j.Document;
+import org.dom4j.io.DocumentResult;
+import org.dom4j.io.DocumentSource;
 
 /**
+ * Applies an XSL stylesheet to XML. The compiled stylesheet comes from the
+ * shared {@link TemplatesCache} and each thread gets its own
+ * <code>Transformer</code>, so one instance can be used by all the consumers
+ * of a plugin at the same time.
+ *
+ * Further stylesheets can follow the first one, see
+ * <code>setXslts</code>. Each one's SAX output feeds the next one's
+ * <code>TransformerHandler</code>, so there is no XML text in between.
  *
  * @author Scott Douglass
  */
 public class XSLTransformer {
 
-  /** XSL Transformer Factory. */
-  private static final TransformerFactory TRANSFORMER_FACTORY =
-    TransformerFactory.newInstance();
-  /** XML Tranformer. */
-  private Transformer transformer;
+  /** The compiled XSL. */
+  private volatile Templates templates;
+  /** XML Tranformers, one per thread, for the current templates. */
+  private volatile ThreadLocal<Transformer> transformers = new ThreadLocal<>();
   /** The XSL. */
-  private String xslt;
+  private volatile String xslt;
+  /** The compiled stylesheets applied after the first one, in order. */
+  private volatile List<Templates> following = Collections.emptyList();
+  /** Creates TransformerHandlers, factories are not thread safe. */
+  private static final ThreadLocal<SAXTransformerFactory> SAX_FACTORIES
+    = ThreadLocal.withInitial(
+      () -> (SAXTransformerFactory) TransformerFactory.newInstance());
 
   /**
    *
@@ -53,14 +83,50 @@ public class XSLTransformer {
     if (inXslt == null || inXslt.trim().isEmpty()) {
       throw new XSLTransformerException("XSL string was null or empty.");
     }
-    this.xslt = inXslt.trim();
-    final StringReader xslReader = new StringReader(this.xslt);
-    final Source xslSource = new StreamSource(xslReader);
+    final String trimmed = inXslt.trim();
     try {
-      setTransformer(TRANSFORMER_FACTORY.newTransformer(xslSource));
+      this.templates = TemplatesCache.getTemplates(trimmed);
     } catch (TransformerConfigurationException ex) {
       throw new XSLTransformerException("Failed to create xslTransformer", ex);
     }
+    this.transformers = new ThreadLocal<>();
+    this.xslt = trimmed;
+    this.following = Collections.emptyList();
+  }
+
+  /**
+   * Use several stylesheets one after another, each transforming the
+   * output of the one before.
+   *
+   * @param inXslts the XSL texts, in order
+   * @throws XSLTransformerException if one of them can't be compiled
+   */
+  public final void setXslts(final List<String> inXslts)
+    throws XSLTransformerException {
+    if (inXslts == null || inXslts.isEmpty()) {
+      throw new XSLTransformerException("XSL list was null or empty.");
+    }
+    final List<Templates> rest = new ArrayList<>();
+    for (String xsl : inXslts.subList(1, inXslts.size())) {
+      if (xsl == null || xsl.trim().isEmpty()) {
+        throw new XSLTransformerException("XSL string was null or empty.");
+      }
+      try {
+        rest.add(TemplatesCache.getTemplates(xsl.trim()));
+      } catch (TransformerConfigurationException ex) {
+        throw new XSLTransformerException("Failed to create xslTransformer",
+          ex);
+      }
+    }
+    setXslt(inXslts.get(0));
+    this.following = Collections.unmodifiableList(rest);
+  }
+
+  /**
+   * @return the number of stylesheets applied
+   */
+  public final int getXsltCount() {
+    return (templates == null) ? 0 : 1 + following.size();
   }
 
   /**
@@ -78,7 +144,16 @@ public class XSLTransformer {
    */
   public final void setXslt(final File inXslFile)
     throws XSLTransformerException {
+    this.setXslt(read(inXslFile));
+  }
 
+  /**
+   *
+   * @param inXslFile the XSL file
+   * @return its text, each line trimmed
+   * @throws XSLTransformerException if the file can't be read
+   */
+  static String read(final File inXslFile) throws XSLTransformerException {
     final StringBuilder xsl = new StringBuilder();
     BufferedReader reader = null;
     try {
@@ -88,12 +163,14 @@ public class XSLTransformer {
         xsl.append(line.trim());
         xsl.append("\n");
       }
-      this.setXslt(xsl.toString().trim());
+      return xsl.toString().trim();
     } catch (IOException ex) {
       throw new XSLTransformerException("Error reading XSLT file", ex);
     } finally {
       try {
-        reader.close();
+        if (reader != null) {
+          reader.close();
+        }
       } catch (IOException ex) {
         // ignore
       }
@@ -130,30 +207,158 @@ public class XSLTransformer {
 
     final Source xmlSource = new StreamSource(new StringReader(inXml.trim()));
     final StringWriter outXml = new StringWriter();
-    final Result xmlResult = new StreamResult(outXml);
+    transform(xmlSource, new StreamResult(outXml));
+    return outXml.toString().trim();
+  }
+
+  /**
+   * Transform a stream of XML bytes straight into another stream, without
+   * building any Strings. The encoding of the input is taken from the XML
+   * declaration, the encoding of the output from the XSL.
+   *
+   * @param inXml the XML bytes
+   * @param outXml where the transformed XML bytes are written
+   * @throws XSLTransformerException on error
+   */
+  public final void transform(final InputStream inXml,
+    final OutputStream outXml) throws XSLTransformerException {
+    try {
+      transform(new StreamSource(skipWhitespace(inXml)),
+        new StreamResult(outXml));
+    } catch (IOException ex) {
+      throw new XSLTransformerException("Failed to read XML input", ex);
+    }
+  }
 
+  /**
+   * Transform a stream of XML characters straight into a Writer. Leading
+   * white space is skipped as it is read, rather than trimming a copy of the
+   * whole document.
+   *
+   * @param inXml the XML text
+   * @param outXml where the transformed XML is written
+   * @throws XSLTransformerException on error
+   */
+  public final void transform(final Reader inXml, final Writer outXml)
+    throws XSLTransformerException {
     try {
-      this.getTransformer().transform(xmlSource, xmlResult);
+      transform(new StreamSource(skipWhitespace(inXml)),
+        new StreamResult(outXml));
+    } catch (IOException ex) {
+      throw new XSLTransformerException("Failed to read XML input", ex);
+    }
+  }
+
+  /**
+   * Transform a dom4j <code>Document</code> into a new one, the events go
+   * straight from one tree to the other without any XML text in between.
+   *
+   * @param inXml the XML document
+   * @return the transformed document
+   * @throws XSLTransformerException on error
+   */
+  public final Document transform(final Document inXml)
+    throws XSLTransformerException {
+    final DocumentResult result = new DocumentResult();
+    transform(new DocumentSource(inXml), result);
+    return result.getDocument();
+  }
+
+  /**
+   *
+   * @param xmlSource the XML input
+   * @param xmlResult the transformed XML output
+   * @throws XSLTransformerException on error
+   */
+  private void transform(final Source xmlSource, final Result xmlResult)
+    throws XSLTransformerException {
+    try {
+      Result result = xmlResult;
+      final List<Templates> rest = this.following;
+      for (int i = rest.size() - 1; i >= 0; i--) {
+        final TransformerHandler handler
+          = SAX_FACTORIES.get().newTransformerHandler(rest.get(i));
+        handler.setResult(result);
+        result = new SAXResult(handler);
+      }
+      this.getTransformer().transform(xmlSource, result);
     } catch (TransformerConfigurationException e) {
       throw new XSLTransformerException("Failed to create XSL transformer", e);
     } catch (TransformerException e) {
       throw new XSLTransformerException("XSL transformer barfed", e);
     }
+  }
 
-    return outXml.toString().trim();
+  /**
+   * An XML declaration must be the very first thing in a document, so white
+   * space in front of it has to go.
+   *
+   * @param in the XML bytes
+   * @return a stream positioned on the first non white space byte
+   * @throws IOException on error
+   * @throws XSLTransformerException if there is nothing but white space
+   */
+  private static InputStream skipWhitespace(final InputStream in)
+    throws IOException, XSLTransformerException {
+    final PushbackInputStream pushback = new PushbackInputStream(in, 1);
+    int b = pushback.read();
+    while (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+      b = pushback.read();
+    }
+    if (b == -1) {
+      throw new XSLTransformerException("Input stream was empty.");
+    }
+    pushback.unread(b);
+    return pushback;
+  }
+
+  /**
+   *
+   * @param in the XML text
+   * @return a Reader positioned on the first non white space character
+   * @throws IOException on error
+   * @throws XSLTransformerException if there is nothing but white space
+   */
+  private static Reader skipWhitespace(final Reader in)
+    throws IOException, XSLTransformerException {
+    final PushbackReader pushback = new PushbackReader(in, 1);
+    int c = pushback.read();
+    while (c != -1 && Character.isWhitespace(c)) {
+      c = pushback.read();
+    }
+    if (c == -1) {
+      throw new XSLTransformerException("Input reader was empty.");
+    }
+    pushback.unread(c);
+    return pushback;
   }
 
   /**
-   * @return the transformer
+   * @return the transformer for the calling thread
+   * @throws XSLTransformerException if no XSL has been set
    */
-  public final Transformer getTransformer() {
-    return transformer;
+  public final Transformer getTransformer() throws XSLTransformerException {
+    final ThreadLocal<Transformer> local = this.transformers;
+    Transformer result = local.get();
+    if (result == null) {
+      if (this.templates == null) {
+        throw new XSLTransformerException("XSL string was null or empty.");
+      }
+      try {
+        result = this.templates.newTransformer();
+      } catch (TransformerConfigurationException ex) {
+        throw new XSLTransformerException("Failed to create xslTransformer",
+          ex);
+      }
+      local.set(result);
+    }
+    return result;
   }
 
   /**
-   * @param inTransformer the transformer to set
+   * @return the compiled XSL
    */
-  public final void setTransformer(final Transformer inTransformer) {
-    this.transformer = inTransformer;
+  public final Templates getTemplates() {
+    return templates;
   }
 }
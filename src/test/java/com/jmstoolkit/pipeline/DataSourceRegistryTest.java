@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class DataSourceRegistryTest {
+
+  public DataSourceRegistryTest() {
+  }
+
+  /**
+   * @return settings for an in memory Derby database
+   */
+  private static Properties getSettings() {
+    final Properties settings = new Properties();
+    settings.setProperty("driverClassName",
+      "org.apache.derby.jdbc.EmbeddedDriver");
+    settings.setProperty("url", "jdbc:derby:memory:registry;create=true");
+    settings.setProperty("username", "test");
+    settings.setProperty("password", "test");
+    settings.setProperty("maxActive", "2");
+    return settings;
+  }
+
+  /**
+   * Two users of the same database share one pool, which is closed when the
+   * last one gives it back.
+   *
+   * @throws Exception on JDBC problems
+   */
+  @Test
+  public void testAcquireRelease() throws Exception {
+    System.out.println("acquire/release");
+    final PooledDataSource first = DataSourceRegistry.acquire(getSettings());
+    final PooledDataSource second = DataSourceRegistry.acquire(getSettings());
+    assertSame(first, second);
+    assertEquals(1, DataSourceRegistry.size());
+    assertEquals(2L, (long) first.getStatistics().get("users"));
+    assertEquals(2L, (long) first.getStatistics().get("maxActive"));
+    try (Connection connection = first.getConnection()) {
+      assertEquals(1L, (long) first.getStatistics().get("active"));
+    }
+    assertEquals(1L, (long) first.getStatistics().get("borrowed"));
+    DataSourceRegistry.release(first);
+    assertEquals(1, DataSourceRegistry.size());
+    DataSourceRegistry.release(second);
+    assertEquals(0, DataSourceRegistry.size());
+  }
+
+  /**
+   * A second user asking for the same database with different pool
+   * settings is refused, and doesn't count as a user.
+   *
+   * @throws Exception on JDBC problems
+   */
+  @Test
+  public void testConflictingSettings() throws Exception {
+    System.out.println("acquire: conflicting settings");
+    final PooledDataSource first = DataSourceRegistry.acquire(getSettings());
+    final Properties settings = getSettings();
+    settings.setProperty("maxActive", "10");
+    settings.setProperty("maxWait", "1000");
+    try {
+      DataSourceRegistry.acquire(settings);
+      fail("Expected an SQLException");
+    } catch (SQLException ex) {
+      assertTrue(ex.getMessage(),
+        ex.getMessage().endsWith("[maxActive, maxWait]"));
+    }
+    assertEquals(1L, (long) first.getStatistics().get("users"));
+    DataSourceRegistry.release(first);
+    assertEquals(0, DataSourceRegistry.size());
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class LocalInputTest {
+
+  public LocalInputTest() {
+  }
+
+  /**
+   * A full input refuses messages, a closed one handles what it queued
+   * and refuses the rest.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testOfferClose() throws Exception {
+    System.out.println("offer/close");
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch handled = new CountDownLatch(3);
+    final LocalInput input = new LocalInput("test", 2, 1, message -> {
+      blocked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      handled.countDown();
+    });
+    assertTrue(input.offer(new ActiveMQTextMessage()));
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    assertTrue(input.offer(new ActiveMQTextMessage()));
+    assertTrue(input.offer(new ActiveMQTextMessage()));
+    assertFalse(input.offer(new ActiveMQTextMessage()));
+    assertEquals(2, input.size());
+    release.countDown();
+    input.close();
+    assertTrue(handled.await(5, TimeUnit.SECONDS));
+    assertFalse(input.offer(new ActiveMQTextMessage()));
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class MessageSelectorsTest {
+
+  public MessageSelectorsTest() {
+  }
+
+  /**
+   * Selectors from the JMS specification and a few more are accepted.
+   */
+  @Test
+  public void testValid() {
+    System.out.println("validate: valid selectors");
+    final String[] valid = {
+      "JMSType = 'car' AND color = 'blue' AND weight > 2500",
+      "Country IN ('UK', 'US', 'France')",
+      "age NOT BETWEEN 15 AND 19",
+      "phone LIKE '12%3' OR word LIKE 'l_se'",
+      "underscored LIKE '\\_%' ESCAPE '\\'",
+      "prop_name IS NOT NULL",
+      "NOT (a = 1 OR b <> 2.5e-3) and -c * 2 / 3 + 1 >= .5",
+      "quantity < 10L AND rating <= 4.0D AND active = TRUE",
+      "name = 'O''Brien'"
+    };
+    for (String selector : valid) {
+      MessageSelectors.validate(selector);
+    }
+  }
+
+  /**
+   * Broken selectors are refused.
+   */
+  @Test
+  public void testInvalid() {
+    System.out.println("validate: invalid selectors");
+    final String[] invalid = {
+      "", "color = 'blue", "color == 'blue'", "a = 1 AND", "(a = 1",
+      "a BETWEEN 1", "a IN (1, 2)", "a NOT 5", "a LIKE 'x' ESCAPE 'ab'",
+      "a IS NOTHING", "a = 1 b = 2", "NULL = 1", "a = 1e", "a = #"
+    };
+    for (String selector : invalid) {
+      try {
+        MessageSelectors.validate(selector);
+        fail("Accepted: " + selector);
+      } catch (IllegalArgumentException ex) {
+        assertTrue(ex.getMessage().contains("selector"));
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.io.SAXReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a new <code>SAXReader</code> per message with the readers from
+ * {@link XMLParsers}, for a validated action message and a data message.
+ * The action message needs dtd/action.dtd in user.dir. Run with:
+ * mvn -Pbenchmark test -Dbenchmark=ParseBenchmark
+ *
+ * @author Scott Douglass
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+  /** A control message. */
+  private static final String ACTION = "<?xml version=\"1.0\"?>\n"
+    + "<!DOCTYPE plugin SYSTEM \"dtd/action.dtd\">\n"
+    + "<plugin><action>new</action><name>ECHO1</name><version>1</version>"
+    + "<type>com.jmstoolkit.pipeline.plugin.Echo</type><work/>"
+    + "<destinations><input>dynamicTopics/PL1.INPUT</input>"
+    + "<output>dynamicTopics/PL2.INPUT</output></destinations></plugin>";
+  /** A data message. */
+  private static final String TRADE = "<?xml version=\"1.0\"?>\n"
+    + "<trade><id>42</id><account>ACME</account><currency>XXX</currency>"
+    + "<amount>100.00</amount><name/></trade>";
+
+  /**
+   * @return the control message, parsed the way it used to be
+   * @throws DocumentException on parse errors
+   */
+  @Benchmark
+  public Document actionNewReader() throws DocumentException {
+    return new SAXReader(true).read(new StringReader(ACTION));
+  }
+
+  /**
+   * @return the control message, parsed with the pooled reader
+   * @throws DocumentException on parse errors
+   */
+  @Benchmark
+  public Document actionPooled() throws DocumentException {
+    return XMLParsers.parse(ACTION, true);
+  }
+
+  /**
+   * @return the data message, parsed the way it used to be
+   * @throws DocumentException on parse errors
+   */
+  @Benchmark
+  public Document dataNewReader() throws DocumentException {
+    return new SAXReader().read(new StringReader(TRADE));
+  }
+
+  /**
+   * @return the data message, parsed with the pooled reader
+   * @throws DocumentException on parse errors
+   */
+  @Benchmark
+  public Document dataPooled() throws DocumentException {
+    return XMLParsers.parse(TRADE, false);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class PartitionLanesTest {
+
+  public PartitionLanesTest() {
+  }
+
+  /**
+   * The messages of each key are handled in the order they were submitted,
+   * and every lane gets some keys.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testOrderPerKey() throws Exception {
+    System.out.println("orderPerKey");
+    final int keys = 50;
+    final int perKey = 100;
+    final Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+    final CountDownLatch handled = new CountDownLatch(keys * perKey);
+    final PartitionLanes lanes = new PartitionLanes("test", 4, 10,
+      message -> {
+        try {
+          seen.computeIfAbsent(message.getStringProperty("key"),
+            k -> new ArrayList<>()).add(message.getIntProperty("seq"));
+        } catch (JMSException ex) {
+          fail(ex.toString());
+        }
+        handled.countDown();
+      });
+    for (int seq = 0; seq < perKey; seq++) {
+      for (int k = 0; k < keys; k++) {
+        final ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setStringProperty("key", "account" + k);
+        message.setIntProperty("seq", seq);
+        assertTrue(lanes.submit("account" + k, message));
+      }
+    }
+    assertTrue(handled.await(10, TimeUnit.SECONDS));
+    for (List<Integer> sequence : seen.values()) {
+      for (int i = 0; i < perKey; i++) {
+        assertEquals(i, sequence.get(i).intValue());
+      }
+    }
+    for (int i = 0; i < lanes.getLanes(); i++) {
+      assertTrue(lanes.getHandled(i) > 0);
+    }
+    assertTrue(lanes.getSkew() >= 100);
+    lanes.close();
+    assertFalse(lanes.submit("account0", new ActiveMQTextMessage()));
+  }
+}
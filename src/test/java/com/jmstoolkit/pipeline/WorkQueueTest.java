@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class WorkQueueTest {
+
+  public WorkQueueTest() {
+  }
+
+  /**
+   * Closing waits for every queued message to be handled, however long
+   * that takes, as long as they keep being handled.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testCloseDrains() throws Exception {
+    System.out.println("close");
+    final AtomicInteger handled = new AtomicInteger();
+    final WorkQueue instance = new WorkQueue("test", 100, 2, message -> {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      handled.incrementAndGet();
+    });
+    for (int i = 0; i < 100; i++) {
+      assertTrue(instance.put(new ActiveMQTextMessage()));
+    }
+    instance.close();
+    assertEquals(100, handled.get());
+    assertEquals(100, instance.getHandled());
+    assertEquals(0, instance.size());
+    assertFalse(instance.put(new ActiveMQTextMessage()));
+    assertFalse(instance.offer(new ActiveMQTextMessage()));
+  }
+}
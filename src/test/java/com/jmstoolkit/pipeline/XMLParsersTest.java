@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import org.dom4j.Document;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class XMLParsersTest {
+
+  public XMLParsersTest() {
+  }
+
+  /**
+   * A data message naming a remote DTD is parsed without fetching it, and
+   * the DTD isn't cached, while a local DTD file is.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testParseRemoteDtd() throws Exception {
+    System.out.println("parse: remote DTD");
+    XMLParsers.clear();
+    final Document doc = XMLParsers.parse("<?xml version=\"1.0\"?>"
+      + "<!DOCTYPE trade SYSTEM \"http://example.invalid/trade.dtd\">"
+      + "<trade><account>A1</account></trade>", false);
+    assertEquals("A1", doc.valueOf("/trade/account"));
+    assertEquals(0, XMLParsers.size());
+    XMLParsers.parse("<?xml version=\"1.0\"?>"
+      + "<!DOCTYPE plugin SYSTEM \"dtd/action.dtd\"><plugin/>", false);
+    assertEquals(1, XMLParsers.size());
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.XPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares evaluating XPath strings with evaluating compiled XPaths from the
+ * {@link XPathRegistry}, for the lookups done per enrich message and per
+ * action message. Run with: mvn -Pbenchmark test -Dbenchmark=XPathBenchmark
+ *
+ * @author Scott Douglass
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XPathBenchmark {
+
+  /** An enrich message. */
+  private Document trade;
+  /** An action message. */
+  private Document action;
+  /** Compiled srcPath. */
+  private XPath currency;
+  /** Compiled action paths. */
+  private XPath name;
+
+  /**
+   * Builds the messages and compiles the paths.
+   */
+  @Setup
+  public void setUp() {
+    trade = DocumentHelper.createDocument();
+    final Element root = trade.addElement("trade");
+    root.addElement("id").addText("42");
+    root.addElement("account").addText("ACME");
+    root.addElement("currency").addText("XXX");
+    action = DocumentHelper.createDocument();
+    final Element plugin = action.addElement("plugin");
+    plugin.addElement("action").addText("new");
+    plugin.addElement("name").addText("enrich");
+    plugin.addElement("version").addText("1");
+    plugin.addElement("type").addText("XMLValueTransform");
+    currency = XPathRegistry.get("/trade/currency");
+    name = XPathRegistry.get("/plugin/name");
+  }
+
+  /**
+   * @return the srcPath value, parsing the XPath every time
+   */
+  @Benchmark
+  public String srcPathString() {
+    return trade.valueOf("/trade/currency");
+  }
+
+  /**
+   * @return the srcPath value, using the compiled XPath
+   */
+  @Benchmark
+  public String srcPathCompiled() {
+    return currency.valueOf(trade);
+  }
+
+  /**
+   * @return the plugin name, the way action messages used to be read
+   */
+  @Benchmark
+  public String actionDescendantString() {
+    return action.valueOf("//plugin/name");
+  }
+
+  /**
+   * @return the plugin name, using the compiled anchored XPath
+   */
+  @Benchmark
+  public String actionAnchoredCompiled() {
+    return name.valueOf(action);
+  }
+}
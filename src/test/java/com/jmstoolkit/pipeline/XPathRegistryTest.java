@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.dom4j.Document;
+import org.dom4j.XPath;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class XPathRegistryTest {
+
+  public XPathRegistryTest() {
+  }
+
+  /**
+   * A shared XPath has a fixed namespace context, so evaluating it doesn't
+   * change it, and threads evaluating it on their own documents each get
+   * their own values.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testConcurrentValueOf() throws Exception {
+    System.out.println("concurrent valueOf");
+    final XPath xpath = XPathRegistry.get("/trade/account");
+    final Object context = xpath.getNamespaceContext();
+    assertNotNull(context);
+    final ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Boolean>> results = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        final String account = "A" + t;
+        final Document doc = XMLParsers.parse("<trade xmlns:x=\"urn:" + t
+          + "\"><account>" + account + "</account></trade>", false);
+        results.add(threads.submit(() -> {
+          for (int i = 0; i < 10000; i++) {
+            if (!account.equals(xpath.valueOf(doc))) {
+              return false;
+            }
+          }
+          return true;
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      threads.shutdown();
+    }
+    assertSame(context, xpath.getNamespaceContext());
+  }
+}
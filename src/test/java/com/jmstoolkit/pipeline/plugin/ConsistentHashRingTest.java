@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class ConsistentHashRingTest {
+
+  /** The number of keys tried. */
+  private static final int KEYS = 100000;
+
+  public ConsistentHashRingTest() {
+  }
+
+  /**
+   *
+   * @param nodes the number of nodes
+   * @return a ring of nodes PL.OUT.0 to PL.OUT.(nodes - 1)
+   */
+  private static ConsistentHashRing<String> ring(final int nodes) {
+    final Map<String, String> names = new LinkedHashMap<>();
+    for (int i = 0; i < nodes; i++) {
+      names.put("PL.OUT." + i, "PL.OUT." + i);
+    }
+    return new ConsistentHashRing<>(names, Partitioner.D_VIRTUAL_NODES);
+  }
+
+  /**
+   * The keys spread evenly, and adding a node moves only the keys it takes,
+   * about 1/N of them.
+   */
+  @Test
+  public void testAddNode() {
+    System.out.println("addNode");
+    final ConsistentHashRing<String> four = ring(4);
+    final ConsistentHashRing<String> five = ring(5);
+    final Map<String, Integer> counts = new HashMap<>();
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      final String key = "account" + i;
+      final String before = four.get(key);
+      final String after = five.get(key);
+      counts.merge(before, 1, Integer::sum);
+      if (!before.equals(after)) {
+        assertEquals("PL.OUT.4", after);
+        moved++;
+      }
+    }
+    for (int count : counts.values()) {
+      assertTrue("uneven: " + counts, Math.abs(count - KEYS / 4) < KEYS / 20);
+    }
+    assertTrue("moved: " + moved, Math.abs(moved - KEYS / 5) < KEYS / 20);
+  }
+
+  /**
+   * Ranges in destination names are expanded.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testExpand() throws Exception {
+    System.out.println("expand");
+    assertEquals(Arrays.asList("Q.0", "Q.1", "Q.2"),
+      Partitioner.expand("Q.{0..2}"));
+    assertEquals(Arrays.asList("Q.1.0", "Q.1.1", "Q.2.0", "Q.2.1"),
+      Partitioner.expand("Q.{1..2}.{0..1}"));
+    assertEquals(Arrays.asList("PL.OUT"), Partitioner.expand("PL.OUT"));
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.AbstractPlugin;
+import com.jmstoolkit.pipeline.XMLParsers;
+import java.util.List;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.Test;
+import org.springframework.jms.JmsException;
+import org.springframework.jndi.JndiTemplate;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class DedupTest {
+
+  /** Keeps the messages sent. */
+  private final StubConnectionFactory broker = new StubConnectionFactory();
+  /** The messages sent. */
+  private final List<TextMessage> sent = broker.getSent();
+
+  public DedupTest() {
+  }
+
+  /**
+   * @param inConfig the dedup XML
+   * @return a Dedup sending through <code>broker</code>
+   * @throws Exception on error
+   */
+  private Dedup newDedup(final String inConfig) throws Exception {
+    final Dedup instance = new Dedup("DEDUP", inConfig, "in", "out",
+      "reply", null, new JndiTemplate());
+    instance.configure(XMLParsers.parse(inConfig, false));
+    instance.getJmsTemplate().setConnectionFactory(broker.create());
+    instance.getJmsTemplate().setDefaultDestination(new ActiveMQQueue("out"));
+    return instance;
+  }
+
+  /**
+   * @param messageId the JMSMessageID
+   * @param id the trade id
+   * @param redelivered true if the message is redelivered
+   * @return a trade message
+   * @throws Exception on error
+   */
+  private static Message trade(final String messageId, final int id,
+    final boolean redelivered) throws Exception {
+    final ActiveMQTextMessage message = new ActiveMQTextMessage();
+    message.setJMSMessageID(messageId);
+    message.setText("<trade><id>" + id + "</id></trade>");
+    message.setRedelivered(redelivered);
+    return message;
+  }
+
+  /**
+   * A message with a key already passed on is dropped, and the copy passed
+   * on keeps its message group.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testOnMessage() throws Exception {
+    System.out.println("onMessage");
+    final Dedup instance = newDedup("<dedup><key>/trade/id</key></dedup>");
+    final Message first = trade("ID:1", 7, false);
+    first.setStringProperty(AbstractPlugin.P_GROUP_ID, "book1");
+    instance.onMessage(first);
+    instance.onMessage(trade("ID:2", 7, false));
+    instance.onMessage(trade("ID:3", 8, false));
+    assertEquals(2, sent.size());
+    assertEquals("book1",
+      sent.get(0).getStringProperty(AbstractPlugin.P_GROUP_ID));
+    assertEquals(Long.valueOf(1),
+      instance.getStatistics().get("duplicates"));
+  }
+
+  /**
+   * A message which couldn't be passed on isn't a duplicate when it comes
+   * again, and in a batch mode the failure rolls the batch back.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testSendFailure() throws Exception {
+    System.out.println("onMessage: send failure");
+    final Dedup instance = newDedup("<dedup/>");
+    broker.setFailing(true);
+    instance.onMessage(trade("ID:1", 7, false));
+    broker.setFailing(false);
+    instance.onMessage(trade("ID:1", 7, true));
+    assertEquals(1, sent.size());
+    instance.setAcknowledge(AbstractPlugin.ACK_CLIENT, 10, 0);
+    broker.setFailing(true);
+    try {
+      instance.onMessage(trade("ID:2", 7, false));
+      fail("Expected a JmsException");
+    } catch (JmsException ex) {
+      broker.setFailing(false);
+    }
+    instance.onMessage(trade("ID:2", 7, true));
+    assertEquals(2, sent.size());
+    assertEquals(Long.valueOf(0),
+      instance.getStatistics().get("duplicates"));
+  }
+
+  /**
+   * In transacted mode a message which comes back after a rollback is
+   * passed on again, in client mode it is dropped.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testRedelivered() throws Exception {
+    System.out.println("onMessage: redelivered");
+    final Dedup instance = newDedup("<dedup/>");
+    instance.setAcknowledge(AbstractPlugin.ACK_TRANSACTED, 10, 0);
+    instance.onMessage(trade("ID:1", 7, false));
+    instance.onMessage(trade("ID:1", 7, true));
+    assertEquals(2, sent.size());
+    instance.setAcknowledge(AbstractPlugin.ACK_CLIENT, 10, 0);
+    instance.onMessage(trade("ID:1", 7, true));
+    assertEquals(2, sent.size());
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class DuplicateFilterTest {
+
+  public DuplicateFilterTest() {
+  }
+
+  /**
+   * A key seen in the window is a duplicate, and is forgotten after two
+   * windows.
+   */
+  @Test
+  public void testIsDuplicate() {
+    System.out.println("isDuplicate");
+    final DuplicateFilter instance
+      = new DuplicateFilter(1000, 1000, 0.01, 1000, 0);
+    assertFalse(instance.isDuplicate("ID:1", "ID", false, 0));
+    assertFalse(instance.isDuplicate("ID:2", "ID", false, 10));
+    assertTrue(instance.isDuplicate("ID:1", "ID", false, 20));
+    assertTrue(instance.isDuplicate("ID:2", "ID", false, 1500));
+    assertFalse(instance.isDuplicate("ID:1", "ID", false, 3100));
+    assertEquals(5, instance.getChecked());
+    assertEquals(2, instance.getDuplicates());
+  }
+
+  /**
+   * A key the Bloom filter wrongly knows is let through, and so is one the
+   * exact set has forgotten.
+   */
+  @Test
+  public void testFalsePositives() {
+    System.out.println("isDuplicate: false positives");
+    final DuplicateFilter instance
+      = new DuplicateFilter(60000, 10, 0.5, 10, 0);
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(instance.isDuplicate("key" + i, "ID", false, i));
+    }
+    assertEquals(0, instance.getDuplicates());
+    assertTrue(instance.getFalsePositives() > 0);
+    assertEquals(10, instance.getRecentSize());
+    assertTrue(instance.isDuplicate("key999", "ID", false, 1000));
+  }
+
+  /**
+   * A forgotten key is let through again, and so is a message which comes
+   * back after a rollback, but not another message with its key.
+   */
+  @Test
+  public void testForgetAndRollBack() {
+    System.out.println("forget");
+    final DuplicateFilter instance
+      = new DuplicateFilter(1000, 1000, 0.01, 1000, 0);
+    assertFalse(instance.isDuplicate("7", "ID:1", false, 0));
+    instance.forget("7");
+    assertFalse(instance.isDuplicate("7", "ID:1", false, 10));
+    assertTrue(instance.isDuplicate("7", "ID:1", false, 20));
+    assertFalse(instance.isDuplicate("7", "ID:1", true, 30));
+    assertTrue(instance.isDuplicate("7", "ID:2", true, 40));
+    assertEquals(2, instance.getDuplicates());
+    assertEquals(1, instance.getFalsePositives());
+  }
+}
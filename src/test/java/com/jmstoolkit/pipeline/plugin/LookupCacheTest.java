@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class LookupCacheTest {
+
+  /** Counts the calls to the loader. */
+  private final AtomicInteger loads = new AtomicInteger();
+  /** Loader which knows every key except "missing". */
+  private final LookupCache.Loader<String, String> loader = key -> {
+    loads.incrementAndGet();
+    return "missing".equals(key) ? null : key.toUpperCase();
+  };
+
+  public LookupCacheTest() {
+  }
+
+  /**
+   * A second lookup of the same key should come from the cache.
+   */
+  @Test
+  public void testHit() {
+    System.out.println("get: hit");
+    final LookupCache<String, String> cache = new LookupCache<>(10, 0, false);
+    assertEquals("USD", cache.get("usd", loader));
+    assertEquals("USD", cache.get("usd", loader));
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  /**
+   * The least recently used entry is evicted when the cache is full.
+   */
+  @Test
+  public void testEviction() {
+    System.out.println("get: eviction");
+    final LookupCache<String, String> cache = new LookupCache<>(1, 0, false);
+    cache.get("a", loader);
+    cache.get("b", loader);
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getEvictions());
+    cache.get("a", loader);
+    assertEquals(3, loads.get());
+  }
+
+  /**
+   * The segments never hold more than maxEntries between them.
+   */
+  @Test
+  public void testCapacity() {
+    System.out.println("get: capacity");
+    final LookupCache<String, String> cache = new LookupCache<>(20, 0, false);
+    for (int i = 0; i < 1000; i++) {
+      cache.get("key" + i, loader);
+    }
+    assertTrue(cache.size() <= 20);
+    assertEquals(1000 - cache.size(), cache.getEvictions());
+  }
+
+  /**
+   * Misses are only remembered when asked to.
+   */
+  @Test
+  public void testNegativeCaching() {
+    System.out.println("get: negative caching");
+    final LookupCache<String, String> plain = new LookupCache<>(10, 0, false);
+    assertNull(plain.get("missing", loader));
+    assertNull(plain.get("missing", loader));
+    assertEquals(2, loads.get());
+    final LookupCache<String, String> negative
+      = new LookupCache<>(10, 0, true);
+    assertNull(negative.get("missing", loader));
+    assertNull(negative.get("missing", loader));
+    assertEquals(3, loads.get());
+  }
+
+  /**
+   * Entries older than the time to live are loaded again.
+   *
+   * @throws Exception if the sleep is interrupted
+   */
+  @Test
+  public void testExpiry() throws Exception {
+    System.out.println("get: expiry");
+    final LookupCache<String, String> cache = new LookupCache<>(10, 20, false);
+    cache.get("usd", loader);
+    Thread.sleep(50);
+    cache.get("usd", loader);
+    assertEquals(2, loads.get());
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import com.jmstoolkit.pipeline.XMLParsers;
+import java.util.List;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.Test;
+import org.springframework.jndi.JndiTemplate;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class ResequencerTest {
+
+  /** Keeps the messages sent. */
+  private final StubConnectionFactory broker = new StubConnectionFactory();
+  /** The messages sent. */
+  private final List<TextMessage> sent = broker.getSent();
+
+  public ResequencerTest() {
+  }
+
+  /**
+   * @return a Resequencer sending through <code>broker</code>
+   * @throws Exception on error
+   */
+  private Resequencer newResequencer() throws Exception {
+    final String config = "<resequence/>";
+    final Resequencer instance = new Resequencer("RESEQ", config, "in",
+      "out", "reply", null, new JndiTemplate());
+    instance.configure(XMLParsers.parse(config, false));
+    instance.getJmsTemplate().setConnectionFactory(broker.create());
+    instance.getJmsTemplate().setDefaultDestination(new ActiveMQQueue("out"));
+    return instance;
+  }
+
+  /**
+   * @param batch the correlation id
+   * @param seq the sequence number
+   * @param total the number of messages in the batch, 0 for unknown
+   * @return a message of the batch
+   * @throws Exception on error
+   */
+  private static Message part(final String batch, final long seq,
+    final long total) throws Exception {
+    final ActiveMQTextMessage message = new ActiveMQTextMessage();
+    message.setJMSCorrelationID(batch);
+    message.setText("<part>" + seq + "</part>");
+    message.setLongProperty(Splitter.P_SEQUENCE, seq);
+    if (total > 0) {
+      message.setLongProperty(Splitter.P_TOTAL, total);
+    }
+    return message;
+  }
+
+  /**
+   * The messages waiting behind a gap are passed on, in order, when the
+   * plugin stops.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testStop() throws Exception {
+    System.out.println("stop");
+    final Resequencer instance = newResequencer();
+    instance.onMessage(part("B1", 3, 0));
+    instance.onMessage(part("B1", 2, 0));
+    assertTrue(sent.isEmpty());
+    assertEquals(Long.valueOf(2), instance.getStatistics().get("waiting"));
+    instance.stop();
+    assertEquals(2, sent.size());
+    assertEquals("<part>2</part>", sent.get(0).getText());
+    assertEquals("<part>3</part>", sent.get(1).getText());
+    assertEquals(Long.valueOf(0), instance.getStatistics().get("groups"));
+  }
+
+  /**
+   * A copy of a message of a group which has completed is dropped, rather
+   * than starting the group again.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testCompletedGroup() throws Exception {
+    System.out.println("onMessage: completed group");
+    final Resequencer instance = newResequencer();
+    instance.onMessage(part("B1", 2, 2));
+    instance.onMessage(part("B1", 1, 2));
+    assertEquals(2, sent.size());
+    assertEquals(Long.valueOf(0), instance.getStatistics().get("groups"));
+    instance.onMessage(part("B1", 2, 2));
+    instance.stop();
+    assertEquals(2, sent.size());
+    assertEquals(Long.valueOf(1), instance.getStatistics().get("duplicates"));
+    assertEquals(Long.valueOf(1), instance.getStatistics().get("completed"));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import javax.jms.Destination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.dom4j.DocumentHelper;
+import org.junit.Test;
+import org.springframework.jndi.JndiTemplate;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class RouterTest {
+
+  /** Where matching messages go. */
+  private static final Destination USD = new ActiveMQQueue("USD");
+  /** The messages routed, and whether they are in USD. */
+  private static final Object[][] MESSAGES = {
+    {"<trade><ccy>USD</ccy></trade>", true},
+    {"<trade><ccy>EUR</ccy></trade>", false},
+    {"<trade><ccy>EUR</ccy><ccy>USD</ccy></trade>", true},
+    {"<trade><ccy>EUR</ccy><leg><ccy>USD</ccy></leg></trade>", false},
+    {"<trade><ccy>U<!-- c -->SD</ccy></trade>", true},
+    {"<trade><ccy><code>USD</code></ccy></trade>", true},
+    {"<trade/>", false}
+  };
+
+  public RouterTest() {
+  }
+
+  /**
+   *
+   * @param xpath the condition of the only route
+   * @return a router sending matching messages to USD
+   * @throws Exception on error
+   */
+  private static Router router(final String xpath) throws Exception {
+    final Router router = new Router("ROUTER", "<routes/>", "in", "out",
+      "reply", null, new JndiTemplate());
+    router.addRoute(DocumentHelper.parseText("<route><xpath>" + xpath
+      + "</xpath></route>").getRootElement(), USD);
+    return router;
+  }
+
+  /**
+   * The streaming scan and the XPath agree, also when an element is
+   * repeated and only a later one matches.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testScanMatchesXPath() throws Exception {
+    System.out.println("route: scan and XPath");
+    final Router scanned = router("/trade/ccy = 'USD'");
+    final Router parsed = router("boolean(/trade/ccy = 'USD')");
+    for (Object[] test : MESSAGES) {
+      final ActiveMQTextMessage message = new ActiveMQTextMessage();
+      message.setText((String) test[0]);
+      final Destination expected = (Boolean) test[1] ? USD : null;
+      assertEquals((String) test[0], expected, parsed.route(message));
+      assertEquals((String) test[0], expected, scanned.route(message));
+    }
+    assertEquals(Long.valueOf(4), scanned.getStatistics().get("route1"));
+  }
+
+  /**
+   * The scan stops once the literal has been seen, so the rest of the
+   * message isn't read.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testScanStops() throws Exception {
+    System.out.println("route: scan stops");
+    final Router scanned = router("/trade/ccy = 'USD'");
+    final ActiveMQTextMessage message = new ActiveMQTextMessage();
+    message.setText("<trade><ccy>USD</ccy><broken></trade>");
+    assertEquals(USD, scanned.route(message));
+  }
+}
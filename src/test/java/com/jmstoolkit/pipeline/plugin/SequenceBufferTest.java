@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class SequenceBufferTest {
+
+  /** The messages passed on. */
+  private final List<Long> emitted
+    = Collections.synchronizedList(new ArrayList<>());
+  /** The counters. */
+  private final SequenceBuffer.Counters counters
+    = new SequenceBuffer.Counters();
+
+  public SequenceBufferTest() {
+  }
+
+  /**
+   * @param maxBuffer the most messages waiting
+   * @param maxDistance how far ahead a message may be
+   * @return a buffer starting at 1, whose messages are their sequence
+   */
+  private SequenceBuffer<Long> newBuffer(final int maxBuffer,
+    final long maxDistance) {
+    return new SequenceBuffer<>(1, maxBuffer, maxDistance, emitted::add,
+      counters, 0);
+  }
+
+  /**
+   * @param instance the buffer
+   * @param seqs the sequence numbers to add
+   */
+  private static void add(final SequenceBuffer<Long> instance,
+    final long... seqs) {
+    for (long seq : seqs) {
+      instance.add(seq, seq, 0);
+    }
+  }
+
+  /**
+   * Messages in order are passed on at once, others wait for their turn.
+   */
+  @Test
+  public void testOrder() {
+    System.out.println("add");
+    final SequenceBuffer<Long> instance = newBuffer(100, 100);
+    add(instance, 1, 2, 5, 3);
+    assertEquals(Arrays.asList(1L, 2L, 3L), emitted);
+    assertEquals(1, instance.size());
+    add(instance, 4);
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), emitted);
+    assertEquals(6, instance.getNext());
+    assertEquals(0, instance.size());
+    assertEquals(0, counters.getSkipped());
+  }
+
+  /**
+   * A full buffer gives up on the missing message.
+   */
+  @Test
+  public void testMaxBuffer() {
+    System.out.println("add: maxBuffer");
+    final SequenceBuffer<Long> instance = newBuffer(2, 100);
+    add(instance, 2, 3);
+    assertTrue(emitted.isEmpty());
+    add(instance, 4);
+    assertEquals(Arrays.asList(2L, 3L, 4L), emitted);
+    assertEquals(1, counters.getSkipped());
+  }
+
+  /**
+   * A message too far ahead gives up on the ones it is too far ahead of.
+   */
+  @Test
+  public void testMaxDistance() {
+    System.out.println("add: maxDistance");
+    final SequenceBuffer<Long> instance = newBuffer(100, 3);
+    add(instance, 2, 5);
+    assertEquals(Arrays.asList(2L), emitted);
+    assertEquals(1, counters.getSkipped());
+    add(instance, 4, 3);
+    assertEquals(Arrays.asList(2L, 3L, 4L, 5L), emitted);
+  }
+
+  /**
+   * A gap given up on is skipped, and a message from it arriving after all
+   * is passed on once.
+   */
+  @Test
+  public void testSkipAndLate() {
+    System.out.println("skip");
+    final SequenceBuffer<Long> instance = newBuffer(100, 100);
+    add(instance, 1, 4, 6);
+    instance.skip();
+    assertEquals(Arrays.asList(1L, 4L), emitted);
+    assertEquals(2, counters.getSkipped());
+    add(instance, 3, 3, 2);
+    instance.flush();
+    assertEquals(Arrays.asList(1L, 4L, 3L, 2L, 6L), emitted);
+    assertEquals(3, counters.getSkipped());
+    assertEquals(2, counters.getLate());
+    assertEquals(1, counters.getDuplicates());
+    add(instance, 5, 5);
+    assertEquals(3, counters.getLate());
+    assertEquals(2, counters.getDuplicates());
+  }
+
+  /**
+   * A copy of a message waiting or already passed on is dropped.
+   */
+  @Test
+  public void testDuplicates() {
+    System.out.println("add: duplicates");
+    final SequenceBuffer<Long> instance = newBuffer(100, 100);
+    add(instance, 3, 3, 1, 1, 2);
+    assertEquals(Arrays.asList(1L, 2L, 3L), emitted);
+    assertEquals(2, counters.getDuplicates());
+    assertEquals(0, counters.getLate());
+  }
+
+  /**
+   * Messages added by several threads at once are all passed on, in order
+   * and once.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testConcurrentAdd() throws Exception {
+    System.out.println("add: concurrent");
+    final SequenceBuffer<Long> instance = newBuffer(100000, 100000);
+    final ExecutorService pool = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      final long offset = t + 1;
+      pool.execute(() -> {
+        for (long seq = offset; seq <= 10000; seq += 4) {
+          instance.add(seq, seq, 0);
+          instance.add(seq, seq, 0);
+        }
+      });
+    }
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(10000, emitted.size());
+    for (int i = 0; i < emitted.size(); i++) {
+      assertEquals(i + 1, emitted.get(i).longValue());
+    }
+    assertEquals(10000, counters.getDuplicates());
+  }
+}
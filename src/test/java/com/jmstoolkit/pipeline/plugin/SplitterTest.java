@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.junit.Test;
+import org.springframework.jndi.JndiTemplate;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class SplitterTest {
+
+  /** A batch with a namespace declared above the records. */
+  private static final String BATCH = "<?xml version=\"1.0\"?>"
+    + "<batch xmlns:t=\"urn:trade\"><header>h</header>"
+    + "<trade id=\"1\"><t:ccy>EUR</t:ccy></trade>"
+    + "<other><trade id=\"x\"/></other>"
+    + "<trade id=\"2\"><t:ccy>USD</t:ccy></trade>"
+    + "</batch>";
+
+  public SplitterTest() {
+  }
+
+  /**
+   * Only the elements at the path are records, each one a complete
+   * document with the namespaces it uses.
+   *
+   * @throws Exception on error
+   */
+  @Test
+  public void testSplit() throws Exception {
+    System.out.println("split");
+    final Splitter instance = new Splitter("SPLIT", "<split/>", "in", "out",
+      "reply", null, new JndiTemplate());
+    instance.setPath("/batch/trade");
+    final XMLInputFactory factory = XMLInputFactory.newInstance();
+    assertEquals(2, instance.count(
+      factory.createXMLStreamReader(new StringReader(BATCH))));
+    final List<String> records = new ArrayList<>();
+    instance.split(factory.createXMLEventReader(new StringReader(BATCH)),
+      records::add);
+    assertEquals(2, records.size());
+    final Document second = DocumentHelper.parseText(records.get(1));
+    assertEquals("2", second.valueOf("/trade/@id"));
+    assertEquals("USD", second.getRootElement().elementText(
+      DocumentHelper.createQName("ccy",
+        DocumentHelper.createNamespace("t", "urn:trade"))));
+  }
+
+  /**
+   * A path which isn't a simple path is refused.
+   *
+   * @throws Exception on error
+   */
+  @Test(expected = XMLTransformException.class)
+  public void testBadPath() throws Exception {
+    System.out.println("split: bad path");
+    new Splitter("SPLIT", "<split/>", "in", "out", "reply", null, new JndiTemplate())
+      .setPath("//trade");
+  }
+}
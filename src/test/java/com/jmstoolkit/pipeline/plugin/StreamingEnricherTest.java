@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class StreamingEnricherTest {
+
+  public StreamingEnricherTest() {
+  }
+
+  /**
+   *
+   * @param srcPath the source xpath
+   * @param dstPath the destination xpath
+   * @return a transformer which is never asked to query
+   */
+  private static XMLValueTransformer xform(final String srcPath,
+    final String dstPath) {
+    final XMLValueTransformer xvt = new XMLValueTransformer((JdbcTemplate) null);
+    xvt.setSrcPath(srcPath);
+    xvt.setDstPath(dstPath);
+    return xvt;
+  }
+
+  /**
+   * The key is found after the destination, so the destination has to be
+   * held back until the value is known.
+   *
+   * @throws Exception on XML errors
+   */
+  @Test
+  public void testScanFinish() throws Exception {
+    System.out.println("scan/finish");
+    final StreamingEnricher streamer = new StreamingEnricher(
+      Collections.singletonList(xform("/trade/currency", "/trade/name")));
+    final StreamingEnricher.Scan scan = streamer.scan(
+      "<trade><name>old</name><currency>XXX</currency><id>1</id></trade>");
+    assertEquals("XXX", scan.getKey(0));
+    final String result = streamer.finish(scan, new String[][]{{"USD"}});
+    assertTrue(result, result.endsWith(
+      "<trade><name>USD</name><currency>XXX</currency><id>1</id></trade>"));
+  }
+
+  /**
+   * Only simple paths of independent transformers can be streamed.
+   */
+  @Test
+  public void testSupports() {
+    System.out.println("supports");
+    assertTrue(StreamingEnricher.supports(Arrays.asList(
+      xform("/trade/currency", "/trade/name"),
+      xform("/trade/account", "/trade/owner"))));
+    assertFalse(StreamingEnricher.supports(Arrays.asList(
+      xform("/trade/currency", "/trade/name"),
+      xform("/trade/name", "/trade/owner"))));
+    assertFalse(StreamingEnricher.supports(Collections.singletonList(
+      xform("//currency", "/trade/name"))));
+  }
+}
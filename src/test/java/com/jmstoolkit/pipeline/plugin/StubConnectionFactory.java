@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+/**
+ * A ConnectionFactory for tests without a broker, whose producers keep the
+ * messages they send, or fail.
+ *
+ * @author Scott Douglass
+ */
+final class StubConnectionFactory {
+
+  /** The messages sent. */
+  private final List<TextMessage> sent
+    = Collections.synchronizedList(new ArrayList<>());
+  /** True to make sends fail. */
+  private volatile boolean failing;
+
+  /**
+   * @return a ConnectionFactory whose producers add to <code>sent</code>,
+   * or fail
+   */
+  ConnectionFactory create() {
+    return (ConnectionFactory) Proxy.newProxyInstance(
+      getClass().getClassLoader(), new Class<?>[]{ConnectionFactory.class,
+        Connection.class, Session.class, MessageProducer.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "createConnection":
+          case "createSession":
+          case "createProducer":
+            return proxy;
+          case "createTextMessage":
+            final ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setText((String) args[0]);
+            return message;
+          case "send":
+            if (failing) {
+              throw new JMSException("Broker gone");
+            }
+            sent.add((TextMessage) args[0]);
+            return null;
+          default:
+            final Class<?> type = method.getReturnType();
+            return type == boolean.class ? false
+              : type == int.class || type == long.class ? 0 : null;
+        }
+      });
+  }
+
+  /**
+   * @return the messages sent
+   */
+  List<TextMessage> getSent() {
+    return sent;
+  }
+
+  /**
+   * @param inFailing true to make sends fail
+   */
+  void setFailing(final boolean inFailing) {
+    this.failing = inFailing;
+  }
+}
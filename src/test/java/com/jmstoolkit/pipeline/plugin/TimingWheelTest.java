@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.pipeline.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Scott Douglass
+ */
+public class TimingWheelTest {
+
+  public TimingWheelTest() {
+  }
+
+  /**
+   * Timeouts expire on the tick of their deadline, not before, including
+   * ones which have moved down from the coarser wheels.
+   */
+  @Test
+  public void testAdvance() {
+    System.out.println("advance");
+    final TimingWheel<Long> instance = new TimingWheel<>(10, 0);
+    final Random random = new Random(42);
+    final List<Long> deadlines = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      deadlines.add((long) random.nextInt(3000000) + 1);
+    }
+    deadlines.addAll(Arrays.asList(10L, 640L, 40960L, 2621440L));
+    for (Long deadline : deadlines) {
+      instance.schedule(deadline, deadline);
+    }
+    assertEquals(deadlines.size(), instance.size());
+    Collections.sort(deadlines);
+    final List<Long> expired = new ArrayList<>();
+    for (long now = 0; now <= 3000000; now += 10) {
+      for (Long deadline : instance.advance(now)) {
+        assertTrue(deadline + " expired at " + now, deadline <= now);
+        assertTrue(deadline + " expired late at " + now, deadline > now - 10);
+        expired.add(deadline);
+      }
+    }
+    Collections.sort(expired);
+    assertEquals(deadlines, expired);
+    assertEquals(0, instance.size());
+  }
+
+  /**
+   * A cancelled timeout doesn't expire.
+   */
+  @Test
+  public void testCancel() {
+    System.out.println("cancel");
+    final TimingWheel<String> instance = new TimingWheel<>(100, 1000);
+    final TimingWheel.Timeout<String> a = instance.schedule("a", 1500);
+    instance.schedule("b", 1500);
+    assertTrue(instance.cancel(a));
+    assertFalse(instance.cancel(a));
+    assertEquals(Collections.emptyList(), instance.advance(1400));
+    assertEquals(Collections.singletonList("b"), instance.advance(1500));
+    assertEquals(0, instance.size());
+  }
+}
@@ -15,6 +15,8 @@
 package com.jmstoolkit.pipeline.plugin;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
 import org.apache.derby.jdbc.EmbeddedDataSource40;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
@@ -27,6 +29,7 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.dao.EmptyResultDataAccessException;
 import static org.junit.Assert.*;
 
 /**
@@ -50,6 +53,14 @@ public class XMLValueTransformerTest {
   private static Document SOURCE;
   /** The expected result XML document, after the lookup.*/
   private static Document RESULT;
+  /** SQL to preload the lookup table. */
+  private static final String SQL_PRELOAD =
+    "select alias, name from currency";
+  /** SQL to look up many keys at once. */
+  private static final String SQL_BATCH =
+    "select alias, name from currency where alias in (:keys)";
+  /** The Derby data source. */
+  private static EmbeddedDataSource40 DATA_SOURCE;
   /** The Derby database name. */
   private static final String DB_NAME="XDB";
   
@@ -71,6 +82,7 @@ public class XMLValueTransformerTest {
     //Connection connection = DriverManager.getConnection("jdbc:derby:XDB;create=true");     
     
     EmbeddedDataSource40 dataSource = new EmbeddedDataSource40();
+    DATA_SOURCE = dataSource;
     dataSource.setCreateDatabase("create");
     dataSource.setDatabaseName(DB_NAME);
     Connection connection = dataSource.getConnection();
@@ -138,4 +150,94 @@ public class XMLValueTransformerTest {
     Document result = XFORM.transform(SOURCE);
     assertEquals(RESULT.asXML(), result.asXML());
   }
+
+  /**
+   * Test of getValue with a preloaded table, which should query until the
+   * table has loaded, then find the value without a query, and not find
+   * keys that aren't in the table.
+   *
+   * @throws Exception on JDBC problems
+   */
+  @Test
+  public void testPreload() throws Exception {
+    System.out.println("getValue: preloaded");
+    final XMLValueTransformer xform = new XMLValueTransformer(DATA_SOURCE);
+    xform.setSql(SQL_SELECT);
+    xform.setSrcPath("/trade/currency");
+    final PreloadedLookup preload = new PreloadedLookup(DATA_SOURCE,
+      SQL_PRELOAD, 0);
+    xform.setPreload(preload);
+    assertEquals("USD", xform.getValue("XXX"));
+    preload.load();
+    assertEquals(1, preload.size());
+    assertEquals("USD", xform.getValue("XXX"));
+    try {
+      xform.getValue("YYY");
+      fail("YYY is not in the table");
+    } catch (EmptyResultDataAccessException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * Test of getValues with a batch query, which should find every key that
+   * is in the table with one query and leave out the ones that aren't.
+   *
+   * @throws Exception on JDBC problems
+   */
+  @Test
+  public void testGetValues() throws Exception {
+    System.out.println("getValues");
+    final XMLValueTransformer xform = new XMLValueTransformer(DATA_SOURCE);
+    xform.setSql(SQL_SELECT);
+    xform.setBatchSql(SQL_BATCH);
+    xform.setSrcPath("/trade/currency");
+    final Map<String, String> result
+      = xform.getValues(Arrays.asList("XXX", "YYY", "XXX"));
+    assertEquals(1, result.size());
+    assertEquals("USD", result.get("XXX"));
+  }
+
+  /**
+   * Test of readsFrom, which decides which lookups can run at the same time.
+   */
+  @Test
+  public void testReadsFrom() {
+    System.out.println("readsFrom");
+    final XMLValueTransformer first = new XMLValueTransformer(DATA_SOURCE);
+    first.setSrcPath("/trade/currency");
+    first.setDstPath("/trade/name");
+    final XMLValueTransformer second = new XMLValueTransformer(DATA_SOURCE);
+    second.setSrcPath("/trade/name");
+    assertTrue(second.readsFrom(first));
+    second.setSrcPath("/trade/currency");
+    assertFalse(second.readsFrom(first));
+    second.setSrcPath("//name");
+    assertTrue(second.readsFrom(first));
+  }
+
+  /**
+   * Test of transform with column mappings, which should write two columns
+   * from one row to two paths.
+   *
+   * @throws Exception on JDBC problems
+   */
+  @Test
+  public void testMappings() throws Exception {
+    System.out.println("transform: mappings");
+    final XMLValueTransformer xform = new XMLValueTransformer(DATA_SOURCE);
+    xform.setSql("select id, name from currency where alias = ?");
+    xform.setSrcPath("/trade/currency");
+    xform.addMapping("name", "/trade/name");
+    xform.addMapping("id", "/trade/id");
+    final Document doc = DocumentHelper.createDocument();
+    final Element root = doc.addElement("trade");
+    root.addElement("currency").addText("XXX");
+    root.addElement("name");
+    root.addElement("id");
+    xform.transform(doc);
+    assertEquals("USD", doc.valueOf("/trade/name"));
+    assertEquals("1", doc.valueOf("/trade/id"));
+    assertEquals("XXX", doc.valueOf("/trade/currency"));
+  }
 }
@@ -15,8 +15,17 @@
 package com.jmstoolkit.pipeline.plugin;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.xml.transform.Transformer;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -83,6 +92,101 @@ public class XSLTransformerTest {
     assertEquals(OUTXML, result);
   }
 
+  /**
+   * Test of the streaming transform methods, which should give the same
+   * result as the String version, even with white space before the XML
+   * declaration.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testTransformStream() throws Exception {
+    System.out.println("transform: streams of bytes and characters");
+    final XSLTransformer instance = new XSLTransformer();
+    instance.setXslt(XSLT);
+    final String expected = instance.transform(INXML);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    instance.transform(new ByteArrayInputStream(
+      ("\n  " + INXML).getBytes(StandardCharsets.UTF_8)), bytes);
+    assertEquals(expected,
+      new String(bytes.toByteArray(), StandardCharsets.UTF_8).trim());
+    final StringWriter chars = new StringWriter();
+    instance.transform(new StringReader("\n  " + INXML), chars);
+    assertEquals(expected, chars.toString().trim());
+  }
+
+  /**
+   * Transforming a dom4j Document should give the same values as
+   * transforming its text, only the indenting differs.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testTransformDocument() throws Exception {
+    System.out.println("transform: dom4j document to document");
+    final XSLTransformer instance = new XSLTransformer();
+    instance.setXslt(XSLT);
+    final Document expected = DocumentHelper.parseText(
+      instance.transform(INXML));
+    final Document result = instance.transform(
+      DocumentHelper.parseText(INXML));
+    assertEquals("xml2", result.getRootElement().getName());
+    assertEquals(expected.valueOf("/xml2/id2"), result.valueOf("/xml2/id2"));
+    assertEquals(expected.valueOf("/xml2/name2"),
+      result.valueOf("/xml2/name2"));
+  }
+
+  /**
+   * A second stylesheet should transform the output of the first.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testTransformChain() throws Exception {
+    System.out.println("transform: chained stylesheets");
+    final String rename = "<xsl:stylesheet version=\"1.0\" "
+      + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+      + "<xsl:template match=\"/xml2\"><xml3><id3>"
+      + "<xsl:value-of select=\"id2\"/></id3></xml3></xsl:template>"
+      + "</xsl:stylesheet>";
+    final XSLTransformer single = new XSLTransformer();
+    single.setXslt(XSLT);
+    final XSLTransformer instance = new XSLTransformer();
+    instance.setXslts(Arrays.asList(XSLT, rename));
+    assertEquals(2, instance.getXsltCount());
+    final Document expected = DocumentHelper.parseText(
+      single.transform(INXML));
+    final Document result = DocumentHelper.parseText(
+      instance.transform(INXML));
+    assertEquals("xml3", result.getRootElement().getName());
+    assertEquals(expected.valueOf("/xml2/id2"), result.valueOf("/xml3/id3"));
+  }
+
+  /**
+   * Two transformers using the same XSL should share the compiled
+   * Templates, but each thread should get its own Transformer.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testSharedTemplates() throws Exception {
+    System.out.println("transform: compiled XSL is shared");
+    final XSLTransformer first = new XSLTransformer();
+    first.setXslt(XSLT);
+    final XSLTransformer second = new XSLTransformer();
+    second.setXslt(XSLT);
+    assertSame(first.getTemplates(), second.getTemplates());
+    final Transformer[] other = new Transformer[1];
+    final Thread thread = new Thread(() -> {
+      try {
+        other[0] = first.getTransformer();
+      } catch (XSLTransformerException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    thread.start();
+    thread.join();
+    assertNotNull(other[0]);
+    assertSame(first.getTransformer(), first.getTransformer());
+    assertNotSame(first.getTransformer(), other[0]);
+  }
+
   public static String loadTextFile(String inFileName) throws Exception {
     BufferedInputStream messageFileStream = null;
     File messageFile = new File(inFileName);